@@ -0,0 +1,349 @@
+/*
+ *    Copyright 2012 Werner Bayer
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package at.pardus.android.webview.gm.run;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.webkit.CookieManager;
+import android.webkit.WebResourceResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Loads documents with HtmlInjector from a local HTTP server standing in for
+ * the origin.
+ */
+@RunWith(AndroidJUnit4.class)
+public class HtmlInjectorTest {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final String JS_CODE = "run('\u00e9\u4e2d');";
+
+	private static final String HEAD = "<!DOCTYPE html><html><head>";
+
+	private static final String DOCUMENT = HEAD
+			+ "<title>t</title></head><body></body></html>";
+
+	/**
+	 * Server answering each request with the next queued response and closing
+	 * the connection.
+	 */
+	private static class StandInServer implements Runnable {
+
+		private static final byte[] NO_RESPONSE = "HTTP/1.1 500 No Response\r\nContent-Length: 0\r\n\r\n"
+				.getBytes(UTF_8);
+
+		private final ServerSocket serverSocket;
+
+		private final Thread thread;
+
+		private final List<byte[]> responses = Collections
+				.synchronizedList(new ArrayList<byte[]>());
+
+		// request lines and headers, lower case
+		private final List<String> requests = Collections
+				.synchronizedList(new ArrayList<String>());
+
+		public StandInServer() throws IOException {
+			serverSocket = new ServerSocket(0, 50,
+					InetAddress.getByName("127.0.0.1"));
+			thread = new Thread(this, "StandInServer");
+			thread.start();
+		}
+
+		public String getUrl(String path) {
+			return "http://127.0.0.1:" + serverSocket.getLocalPort() + path;
+		}
+
+		public void respond(String status, String[] headers, byte[] body) {
+			StringBuilder head = new StringBuilder("HTTP/1.1 ").append(status)
+					.append("\r\n");
+			for (String header : headers) {
+				head.append(header).append("\r\n");
+			}
+			head.append("Content-Length: ").append(body.length)
+					.append("\r\nConnection: close\r\n\r\n");
+			byte[] headBytes = head.toString().getBytes(UTF_8);
+			byte[] response = new byte[headBytes.length + body.length];
+			System.arraycopy(headBytes, 0, response, 0, headBytes.length);
+			System.arraycopy(body, 0, response, headBytes.length, body.length);
+			responses.add(response);
+		}
+
+		public List<String> getRequests() {
+			synchronized (requests) {
+				return new ArrayList<String>(requests);
+			}
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				Socket socket;
+				try {
+					socket = serverSocket.accept();
+				} catch (IOException e) {
+					// closed
+					return;
+				}
+				try {
+					requests.add(readHead(socket.getInputStream()));
+					OutputStream out = socket.getOutputStream();
+					out.write(responses.isEmpty() ? NO_RESPONSE : responses
+							.remove(0));
+					out.flush();
+				} catch (IOException e) {
+					// test fails on the client side
+				} finally {
+					try {
+						socket.close();
+					} catch (IOException e) {
+						// ignore
+					}
+				}
+			}
+		}
+
+		public void close() throws IOException, InterruptedException {
+			serverSocket.close();
+			thread.join();
+		}
+
+		private static String readHead(InputStream in) throws IOException {
+			StringBuilder head = new StringBuilder();
+			int b;
+			while (head.indexOf("\r\n\r\n") == -1 && (b = in.read()) != -1) {
+				head.append((char) b);
+			}
+			return head.toString().toLowerCase(Locale.ENGLISH);
+		}
+
+	}
+
+	private StandInServer server;
+
+	private String url;
+
+	@Before
+	public void setUp() throws IOException {
+		server = new StandInServer();
+		url = server.getUrl("/doc");
+	}
+
+	@After
+	public void tearDown() throws IOException, InterruptedException {
+		server.close();
+	}
+
+	private static Map<String, String> requestHeaders() {
+		Map<String, String> headers = new HashMap<String, String>();
+		headers.put("Accept", "text/html,application/xhtml+xml,*/*;q=0.8");
+		headers.put("User-Agent", "StandIn/1.0");
+		return headers;
+	}
+
+	private static byte[] concat(byte[] a, byte[] b, byte[] c) {
+		byte[] result = new byte[a.length + b.length + c.length];
+		System.arraycopy(a, 0, result, 0, a.length);
+		System.arraycopy(b, 0, result, a.length, b.length);
+		System.arraycopy(c, 0, result, a.length + b.length, c.length);
+		return result;
+	}
+
+	private static byte[] readData(WebResourceResponse response)
+			throws IOException {
+		InputStream in = response.getData();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int n;
+		while ((n = in.read(buffer)) != -1) {
+			out.write(buffer, 0, n);
+		}
+		in.close();
+		return out.toByteArray();
+	}
+
+	private static String getHeader(WebResourceResponse response, String name) {
+		for (Map.Entry<String, String> header : response.getResponseHeaders()
+				.entrySet()) {
+			if (name.equalsIgnoreCase(header.getKey())) {
+				return header.getValue();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Asserts that the origin has been requested exactly once.
+	 *
+	 * @return the request line and headers, lower case
+	 */
+	private String assertRequestedOnce() {
+		List<String> requests = server.getRequests();
+		assertEquals(1, requests.size());
+		assertTrue(requests.get(0), requests.get(0)
+				.startsWith("get /doc http/1.1\r\n"));
+		return requests.get(0);
+	}
+
+	/**
+	 * Asserts that a response is passed on with its status and data.
+	 */
+	private void assertPassedOn(String status, String[] headers, byte[] body)
+			throws IOException {
+		server.respond(status, headers, body);
+		WebResourceResponse response = HtmlInjector.load(url,
+				requestHeaders(), JS_CODE);
+		assertRequestedOnce();
+		assertEquals(status, response.getStatusCode() + " "
+				+ response.getReasonPhrase());
+		assertEquals(Integer.toString(body.length),
+				getHeader(response, "Content-Length"));
+		assertArrayEquals(body, readData(response));
+	}
+
+	@Test
+	public void injectsIntoHtmlDocument() throws IOException {
+		CookieManager cookieManager = CookieManager.getInstance();
+		cookieManager.setCookie(url, "sent=1");
+		server.respond("200 OK", new String[] {
+				"Content-Type: text/html; charset=utf-8",
+				"Set-Cookie: received=2; Path=/", "X-Frame-Options: DENY" },
+				DOCUMENT.getBytes(UTF_8));
+		WebResourceResponse response = HtmlInjector.load(url,
+				requestHeaders(), JS_CODE);
+		String request = assertRequestedOnce();
+		assertTrue(request, request.contains("\r\nuser-agent: standin/1.0\r\n"));
+		assertTrue(request, request.contains("sent=1"));
+		assertTrue(cookieManager.getCookie(url).contains("received=2"));
+		assertEquals(200, response.getStatusCode());
+		assertEquals("OK", response.getReasonPhrase());
+		assertEquals("text/html", response.getMimeType());
+		assertEquals("utf-8", response.getEncoding());
+		assertEquals("DENY", getHeader(response, "X-Frame-Options"));
+		// changed by the injection
+		assertNull(getHeader(response, "Content-Length"));
+		assertNull(getHeader(response, "Set-Cookie"));
+		assertArrayEquals(concat(HEAD.getBytes(UTF_8),
+				HtmlInjector.toScriptElement(JS_CODE, UTF_8),
+				DOCUMENT.substring(HEAD.length()).getBytes(UTF_8)),
+				readData(response));
+	}
+
+	@Test
+	public void encodesScriptInDocumentCharset() throws IOException {
+		Charset windows1252 = Charset.forName("windows-1252");
+		server.respond("200 OK",
+				new String[] { "Content-Type: text/html; charset=windows-1252" },
+				DOCUMENT.getBytes(windows1252));
+		WebResourceResponse response = HtmlInjector.load(url,
+				requestHeaders(), JS_CODE);
+		assertEquals("windows-1252", response.getEncoding());
+		assertArrayEquals(concat(HEAD.getBytes(windows1252),
+				HtmlInjector.toScriptElement(JS_CODE, windows1252), DOCUMENT
+						.substring(HEAD.length()).getBytes(windows1252)),
+				readData(response));
+	}
+
+	@Test
+	public void encodesScriptInMetaCharset() throws IOException {
+		Charset windows1252 = Charset.forName("windows-1252");
+		String document = HEAD + "<meta charset=\"windows-1252\"></head>";
+		server.respond("200 OK", new String[] { "Content-Type: text/html" },
+				document.getBytes(windows1252));
+		WebResourceResponse response = HtmlInjector.load(url,
+				requestHeaders(), JS_CODE);
+		assertNull(response.getEncoding());
+		assertArrayEquals(concat(HEAD.getBytes(windows1252),
+				HtmlInjector.toScriptElement(JS_CODE, windows1252), document
+						.substring(HEAD.length()).getBytes(windows1252)),
+				readData(response));
+	}
+
+	@Test
+	public void passesOnUtf16DocumentUnchanged() throws IOException {
+		assertPassedOn("200 OK",
+				new String[] { "Content-Type: text/html; charset=UTF-16LE" },
+				DOCUMENT.getBytes("UTF-16LE"));
+	}
+
+	@Test
+	public void passesOnOtherTypesUnchanged() throws IOException {
+		assertPassedOn("200 OK",
+				new String[] { "Content-Type: application/json" },
+				"{\"html\": \"<head>\"}".getBytes(UTF_8));
+		server.respond("200 OK", new String[] {
+				"Content-Type: text/html; charset=utf-8",
+				"Content-Disposition: attachment; filename=a.html" },
+				DOCUMENT.getBytes(UTF_8));
+		WebResourceResponse response = HtmlInjector.load(url,
+				requestHeaders(), JS_CODE);
+		assertArrayEquals(DOCUMENT.getBytes(UTF_8), readData(response));
+		assertEquals("attachment; filename=a.html",
+				getHeader(response, "Content-Disposition"));
+	}
+
+	@Test
+	public void passesOnErrorsUnchanged() throws IOException {
+		assertPassedOn("404 Not Found",
+				new String[] { "Content-Type: text/html" },
+				DOCUMENT.getBytes(UTF_8));
+	}
+
+	@Test
+	public void leavesRedirectsToWebView() {
+		server.respond("302 Found", new String[] { "Location: /other" },
+				new byte[0]);
+		assertNull(HtmlInjector.load(url, requestHeaders(), JS_CODE));
+		assertRequestedOnce();
+	}
+
+	@Test
+	public void doesNotRequestOtherThanHtml() {
+		Map<String, String> headers = requestHeaders();
+		headers.put("Accept", "image/webp,*/*");
+		assertNull(HtmlInjector.load(url, headers, JS_CODE));
+		headers = requestHeaders();
+		headers.put("Range", "bytes=10-");
+		assertNull(HtmlInjector.load(url, headers, JS_CODE));
+		assertTrue(server.getRequests().isEmpty());
+	}
+
+}
@@ -0,0 +1,276 @@
+/*
+ *    Copyright 2012 Werner Bayer
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package at.pardus.android.webview.gm.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import at.pardus.android.webview.gm.model.Script;
+import at.pardus.android.webview.gm.model.ScriptId;
+import at.pardus.android.webview.gm.model.ScriptRequire;
+import at.pardus.android.webview.gm.store.ScriptStoreSQLite.ScriptDbHelper;
+
+/**
+ * Checks the query plans of the statements ScriptStoreSQLite.ScriptDbHelper
+ * runs against the schema it creates on the device: rows of the tables
+ * referencing scripts are always found through their primary key (starting
+ * with the script's row ID), scripts selected by ID through the UNIQUE (name,
+ * namespace) index, and the script table is only scanned when all enabled
+ * scripts are loaded.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ScriptStoreSQLiteQueryPlanTest {
+
+	private static final String DB = "webviewgm";
+
+	private static final String[] CHILD_TABLES = { "script_has_exclude",
+			"script_has_include", "script_has_match", "script_has_require",
+			"script_has_resource" };
+
+	private static final Pattern SEARCH = Pattern
+			.compile("SEARCH (?:TABLE \\w+ AS |TABLE )?(\\w+) USING (.*)");
+
+	private Context context;
+
+	private SQLiteDatabase db;
+
+	@Before
+	public void setUp() {
+		context = InstrumentationRegistry.getTargetContext();
+		context.deleteDatabase(DB);
+		ScriptStoreSQLite store = new ScriptStoreSQLite(context);
+		store.open();
+		for (int i = 0; i < 20; i++) {
+			store.add(new Script("script" + i, "ns", new String[] { "*/a" },
+					new String[] { "http://example.com/*" },
+					new String[] { "*://*.example.org/*" }, null, null, null,
+					null, null, null, false, null,
+					new ScriptRequire[] { new ScriptRequire(
+							"http://example.com/lib.js", "var lib;") }, null,
+					"var x = " + i + ";"));
+			for (int j = 0; j < 20; j++) {
+				store.setValue(new ScriptId("script" + i, "ns"), "name" + j,
+						"value" + j);
+			}
+		}
+		store.close();
+		db = SQLiteDatabase.openDatabase(context.getDatabasePath(DB)
+				.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+	}
+
+	@After
+	public void tearDown() {
+		db.close();
+		context.deleteDatabase(DB);
+	}
+
+	/**
+	 * @param sql
+	 *            the statement to explain
+	 * @param argCount
+	 *            the number of arguments of the statement
+	 * @return the details of each step of the query plan
+	 */
+	private List<String> explain(String sql, int argCount) {
+		String[] args = new String[argCount];
+		for (int i = 0; i < argCount; i++) {
+			args[i] = "1";
+		}
+		Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+		List<String> details = new ArrayList<String>();
+		try {
+			int column = cursor.getColumnIndex("detail");
+			while (cursor.moveToNext()) {
+				details.add(cursor.getString(column));
+			}
+		} finally {
+			cursor.close();
+		}
+		return details;
+	}
+
+	/**
+	 * @param tblName
+	 *            a table
+	 * @return the pattern of the details of a search using the table's
+	 *         primary key (the automatic index of a table with row IDs)
+	 */
+	private static String primaryKey(String tblName) {
+		return "(PRIMARY KEY|(COVERING )?INDEX sqlite_autoindex_" + tblName
+				+ "_1) .*";
+	}
+
+	/**
+	 * @return the pattern of the details of a search using the UNIQUE (name,
+	 *         namespace) index of the script table
+	 */
+	private static String nameIndex() {
+		return "(COVERING )?INDEX sqlite_autoindex_script_1"
+				+ " \\(name=\\? AND namespace=\\?\\).*";
+	}
+
+	/**
+	 * Asserts that a statement searches the given tables using the given
+	 * keys and scans no table but the given one.
+	 *
+	 * @param sql
+	 *            the statement to explain
+	 * @param argCount
+	 *            the number of arguments of the statement
+	 * @param scannedTable
+	 *            the table (alias) that may be scanned; null if none
+	 * @param searches
+	 *            the patterns of the keys used to search mapped to the
+	 *            searched tables (aliases)
+	 */
+	private void assertPlan(String sql, int argCount, String scannedTable,
+			Map<String, String> searches) {
+		List<String> details = explain(sql, argCount);
+		assertFalse(sql, details.isEmpty());
+		Set<String> searched = new HashSet<String>();
+		for (String detail : details) {
+			if (detail.startsWith("SCAN")) {
+				assertTrue(sql + ": " + detail, scannedTable != null
+						&& detail.matches("SCAN (TABLE \\w+ AS |TABLE )?"
+								+ scannedTable + "\\b.*"));
+			}
+			if (detail.startsWith("SEARCH")) {
+				Matcher matcher = SEARCH.matcher(detail);
+				assertTrue(sql + ": " + detail, matcher.matches());
+				String key = searches.get(matcher.group(1));
+				assertNotNull(sql + ": " + detail, key);
+				assertTrue(sql + ": " + detail, matcher.group(2).matches(key));
+				searched.add(matcher.group(1));
+			}
+		}
+		assertEquals(sql, searches.keySet(), searched);
+	}
+
+	private static Map<String, String> searches(String... tablesAndKeys) {
+		Map<String, String> searches = new HashMap<String, String>();
+		for (int i = 0; i < tablesAndKeys.length; i += 2) {
+			searches.put(tablesAndKeys[i], tablesAndKeys[i + 1]);
+		}
+		return searches;
+	}
+
+	/**
+	 * @param ids
+	 *            the number of script IDs to select; 0 to select all
+	 * @param selectionArgs
+	 *            the arguments of the selection (output)
+	 * @return the selection of enabled scripts built by ScriptDbHelper
+	 */
+	private static String makeSelection(int ids, List<String> selectionArgs) {
+		ScriptId[] idArr = null;
+		if (ids > 0) {
+			idArr = new ScriptId[ids];
+			for (int i = 0; i < ids; i++) {
+				idArr[i] = new ScriptId("script" + i, "ns");
+			}
+		}
+		StringBuilder selection = new StringBuilder();
+		ScriptDbHelper.makeScriptSelection(idArr, 0, ids, true, selection,
+				selectionArgs);
+		return selection.toString();
+	}
+
+	@Test
+	public void valuesAreSearchedByPrimaryKey() {
+		String valueKey = primaryKey("script_has_value");
+		assertPlan(ScriptDbHelper.SQL_SELECT_VALUE, 2, null,
+				searches("script_has_value", valueKey));
+		assertPlan(ScriptDbHelper.SQL_SELECT_VALUE_NAMES, 1, null,
+				searches("script_has_value", valueKey));
+		assertPlan(ScriptDbHelper.SQL_SELECT_VALUES, 1, null,
+				searches("script_has_value", valueKey));
+		assertPlan(ScriptDbHelper.makeSelectValuesSql(3), 4, null,
+				searches("script_has_value", valueKey));
+		assertPlan(ScriptDbHelper.SQL_DELETE_VALUE, 2, null,
+				searches("script_has_value", valueKey));
+	}
+
+	@Test
+	public void scriptRowIdIsSearchedByName() {
+		assertPlan(ScriptDbHelper.SQL_SELECT_SCRIPT_ROW_ID, 2, null,
+				searches("script", nameIndex()));
+	}
+
+	@Test
+	public void selectedScriptsAndChildRowsAreSearched() {
+		List<String> selectionArgs = new ArrayList<String>();
+		String selection = makeSelection(2, selectionArgs);
+		String[] sql = ScriptDbHelper.makeSelectScriptsSql(selection);
+		assertEquals(CHILD_TABLES.length + 1, sql.length);
+		for (int i = 0; i < CHILD_TABLES.length; i++) {
+			assertPlan(sql[i], selectionArgs.size(), null, searches("s",
+					nameIndex(), "c", primaryKey(CHILD_TABLES[i])));
+		}
+		assertPlan(sql[CHILD_TABLES.length], selectionArgs.size(), null,
+				searches("s", nameIndex()));
+		sql = ScriptDbHelper.makeSelectScriptCriteriaSql(selection);
+		for (int i = 0; i < sql.length - 1; i++) {
+			assertPlan(sql[i], selectionArgs.size(), null, searches("s",
+					nameIndex(), "c", primaryKey(CHILD_TABLES[i])));
+		}
+		assertPlan(sql[sql.length - 1], selectionArgs.size(), null,
+				searches("s", nameIndex()));
+	}
+
+	@Test
+	public void onlyScriptTableIsScannedForAllEnabledScripts() {
+		List<String> selectionArgs = new ArrayList<String>();
+		String selection = makeSelection(0, selectionArgs);
+		String[] sql = ScriptDbHelper.makeSelectScriptsSql(selection);
+		for (int i = 0; i < CHILD_TABLES.length; i++) {
+			assertPlan(sql[i], selectionArgs.size(), "s",
+					searches("c", primaryKey(CHILD_TABLES[i])));
+		}
+		assertPlan(sql[CHILD_TABLES.length], selectionArgs.size(), "s",
+				searches());
+		sql = ScriptDbHelper.makeSelectScriptCriteriaSql(selection);
+		for (int i = 0; i < sql.length - 1; i++) {
+			assertPlan(sql[i], selectionArgs.size(), "s",
+					searches("c", primaryKey(CHILD_TABLES[i])));
+		}
+		assertPlan(sql[sql.length - 1], selectionArgs.size(), "s",
+				searches());
+	}
+
+}
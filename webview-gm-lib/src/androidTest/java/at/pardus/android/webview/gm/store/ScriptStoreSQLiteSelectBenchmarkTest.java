@@ -0,0 +1,257 @@
+/*
+ *    Copyright 2012 Werner Bayer
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package at.pardus.android.webview.gm.store;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import at.pardus.android.webview.gm.model.Script;
+import at.pardus.android.webview.gm.model.ScriptId;
+import at.pardus.android.webview.gm.model.ScriptRequire;
+import at.pardus.android.webview.gm.model.ScriptResource;
+
+/**
+ * Compares the time ScriptDbHelper.selectScripts takes to load 500 scripts
+ * from their ordered child rows merged in a single pass with the six
+ * unordered queries grouped into maps by script ID that it replaced.
+ *
+ * The times are written to the log (tag ScriptStoreSQLiteSelectBenchmark).
+ */
+@RunWith(AndroidJUnit4.class)
+public class ScriptStoreSQLiteSelectBenchmarkTest {
+
+	private static final String TAG = "ScriptStoreSQLiteSelectBenchmark";
+
+	private static final String DB = "webviewgm";
+
+	private static final int SCRIPTS = 500;
+
+	private static final int WARMUP_RUNS = 3;
+
+	private static final int RUNS = 15;
+
+	private static final Comparator<Script> BY_NAME = new Comparator<Script>() {
+
+		@Override
+		public int compare(Script lhs, Script rhs) {
+			return lhs.getName().compareTo(rhs.getName());
+		}
+
+	};
+
+	private Context context;
+
+	private ScriptStoreSQLite store;
+
+	private SQLiteDatabase db;
+
+	@Before
+	public void setUp() {
+		context = InstrumentationRegistry.getTargetContext();
+		context.deleteDatabase(DB);
+		store = new ScriptStoreSQLite(context);
+		store.open();
+		char[] filler = new char[1024];
+		Arrays.fill(filler, 'x');
+		String code = new String(filler);
+		for (int i = 0; i < SCRIPTS; i++) {
+			String host = "site" + i + ".example.com";
+			store.add(new Script("script" + i, "benchmark", new String[] {
+					"*/logout*", "*://" + host + "/admin/*" }, new String[] {
+					"http://" + host + "/*", "https://" + host + "/*",
+					"*://*." + host + "/*" }, new String[] {
+					"*://" + host + "/app/*", "*://*.example.org/" + i + "/*" },
+					"Script " + i, "https://example.com/" + i + ".user.js",
+					null, null, null, Script.RUNATEND, false, "1.0",
+					new ScriptRequire[] {
+							new ScriptRequire("https://example.com/a.js", "var a;"
+									+ code),
+							new ScriptRequire("https://example.com/b.js", "var b;"
+									+ code) },
+					new ScriptResource[] { new ScriptResource("icon",
+							"https://example.com/icon.png", new byte[512]) },
+					"var script" + i + ";" + code + code + code + code));
+		}
+		db = SQLiteDatabase.openDatabase(context.getDatabasePath(DB)
+				.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+	}
+
+	@After
+	public void tearDown() {
+		db.close();
+		store.close();
+		context.deleteDatabase(DB);
+	}
+
+	/**
+	 * Child rows grouped by script ID, as read by the replaced implementation.
+	 */
+	private Map<ScriptId, List<Object>> selectChildren(String tblName,
+			String columns, int type) {
+		Map<ScriptId, List<Object>> children = new HashMap<ScriptId, List<Object>>();
+		Cursor cursor = db.rawQuery("SELECT s.name, s.namespace, " + columns
+				+ " FROM script s JOIN " + tblName
+				+ " c ON c.script_id = s.id", null);
+		while (cursor.moveToNext()) {
+			ScriptId id = new ScriptId(cursor.getString(0), cursor.getString(1));
+			List<Object> rows = children.get(id);
+			if (rows == null) {
+				rows = new ArrayList<Object>();
+				children.put(id, rows);
+			}
+			if (type == 0) {
+				rows.add(cursor.getString(2));
+			} else if (type == 1) {
+				rows.add(new ScriptRequire(cursor.getString(2), cursor
+						.getString(3)));
+			} else {
+				rows.add(new ScriptResource(cursor.getString(2), cursor
+						.getString(3), cursor.getBlob(4)));
+			}
+		}
+		cursor.close();
+		return children;
+	}
+
+	private static <T> T[] toArray(List<Object> rows, T[] empty) {
+		return (rows == null) ? null : rows.toArray(empty);
+	}
+
+	/**
+	 * Loads all scripts the way selectScripts did before the child rows were
+	 * merged: five unordered queries on the child tables grouped into maps by
+	 * script ID, then one query on the script table.
+	 */
+	private Script[] selectWithSixQueries() {
+		Map<ScriptId, List<Object>> excludes = selectChildren(
+				"script_has_exclude", "c.pattern", 0);
+		Map<ScriptId, List<Object>> includes = selectChildren(
+				"script_has_include", "c.pattern", 0);
+		Map<ScriptId, List<Object>> matches = selectChildren(
+				"script_has_match", "c.pattern", 0);
+		Map<ScriptId, List<Object>> requires = selectChildren(
+				"script_has_require", "c.downloadurl, c.content", 1);
+		Map<ScriptId, List<Object>> resources = selectChildren(
+				"script_has_resource",
+				"c.resource_name, c.downloadurl, c.data", 2);
+		Cursor cursor = db.rawQuery("SELECT name, namespace, description,"
+				+ " downloadurl, updateurl, installurl, icon, runat, unwrap,"
+				+ " version, content FROM script", null);
+		Script[] scripts = new Script[cursor.getCount()];
+		int i = 0;
+		while (cursor.moveToNext()) {
+			ScriptId id = new ScriptId(cursor.getString(0), cursor.getString(1));
+			scripts[i++] = new Script(id.getName(), id.getNamespace(),
+					toArray(excludes.get(id), new String[0]), toArray(
+							includes.get(id), new String[0]), toArray(
+							matches.get(id), new String[0]),
+					cursor.getString(2), cursor.getString(3),
+					cursor.getString(4), cursor.getString(5),
+					cursor.getString(6), cursor.getString(7),
+					cursor.getInt(8) == 1, cursor.getString(9), toArray(
+							requires.get(id), new ScriptRequire[0]), toArray(
+							resources.get(id), new ScriptResource[0]),
+					cursor.getString(10));
+		}
+		cursor.close();
+		return scripts;
+	}
+
+	private static String[] sorted(String[] patterns) {
+		String[] copy = patterns.clone();
+		Arrays.sort(copy);
+		return copy;
+	}
+
+	private static long median(long[] times) {
+		long[] copy = times.clone();
+		Arrays.sort(copy);
+		return copy[copy.length / 2];
+	}
+
+	@Test
+	public void bothLoadEqualScripts() {
+		Script[] merged = store.getAll();
+		Script[] sixQueries = selectWithSixQueries();
+		assertEquals(SCRIPTS, merged.length);
+		assertEquals(SCRIPTS, sixQueries.length);
+		Arrays.sort(merged, BY_NAME);
+		Arrays.sort(sixQueries, BY_NAME);
+		for (int i = 0; i < SCRIPTS; i++) {
+			Script expected = sixQueries[i];
+			Script actual = merged[i];
+			assertEquals(expected.getName(), actual.getName());
+			assertEquals(expected.getContent(), actual.getContent());
+			// only the merged rows are ordered
+			assertArrayEquals(sorted(expected.getExclude()),
+					sorted(actual.getExclude()));
+			assertArrayEquals(sorted(expected.getInclude()),
+					sorted(actual.getInclude()));
+			assertArrayEquals(sorted(expected.getMatch()),
+					sorted(actual.getMatch()));
+			assertEquals(expected.getRequires().length,
+					actual.getRequires().length);
+			assertEquals(expected.getResources().length,
+					actual.getResources().length);
+		}
+	}
+
+	@Test
+	public void benchmarkSelectScripts() {
+		for (int i = 0; i < WARMUP_RUNS; i++) {
+			store.getAll();
+			selectWithSixQueries();
+		}
+		long[] mergedTimes = new long[RUNS];
+		long[] sixQueriesTimes = new long[RUNS];
+		for (int i = 0; i < RUNS; i++) {
+			// alternated, so that both see the same conditions
+			long start = System.nanoTime();
+			assertEquals(SCRIPTS, selectWithSixQueries().length);
+			sixQueriesTimes[i] = System.nanoTime() - start;
+			start = System.nanoTime();
+			assertEquals(SCRIPTS, store.getAll().length);
+			mergedTimes[i] = System.nanoTime() - start;
+		}
+		Log.i(TAG, String.format(Locale.ENGLISH,
+				"selectScripts of %d scripts (median of %d runs):"
+						+ " six queries %.1f ms, merged cursors %.1f ms",
+				SCRIPTS, RUNS, median(sixQueriesTimes) / 1e6,
+				median(mergedTimes) / 1e6));
+	}
+
+}
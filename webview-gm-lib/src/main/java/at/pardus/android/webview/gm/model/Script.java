@@ -132,7 +132,8 @@ public class Script extends ScriptMetadata {
 						icon = DownloadHelper.resolveURL(propertyValue, url);
 					} else if (propertyName.equals("run-at")) {
 						if (propertyValue.equals(RUNATSTART)
-								|| propertyValue.equals(RUNATEND)) {
+								|| propertyValue.equals(RUNATEND)
+								|| propertyValue.equals(RUNATIDLE)) {
 							runAt = propertyValue;
 						}
 					} else if (propertyName.equals("version")) {
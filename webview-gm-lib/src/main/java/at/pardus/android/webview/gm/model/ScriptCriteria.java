@@ -17,6 +17,8 @@
 package at.pardus.android.webview.gm.model;
 
 import at.pardus.android.webview.gm.util.CriterionMatcher;
+import at.pardus.android.webview.gm.util.MatchPattern;
+import at.pardus.android.webview.gm.util.ParsedUrl;
 
 /**
  * Immutable object containing a user script's matching criteria regarding URLs.
@@ -31,12 +33,21 @@ public class ScriptCriteria extends ScriptId {
 
 	private String[] match;
 
+	private CriterionMatcher[] excludeMatchers;
+
+	private CriterionMatcher[] includeMatchers;
+
+	private CriterionMatcher[] matchMatchers;
+
 	public ScriptCriteria(String name, String namespace, String[] exclude,
 			String[] include, String[] match) {
 		super(name, namespace);
 		this.exclude = exclude;
 		this.include = include;
 		this.match = match;
+		this.excludeMatchers = CriterionMatcher.compile(exclude);
+		this.includeMatchers = CriterionMatcher.compile(include);
+		this.matchMatchers = MatchPattern.compileMatch(match);
 	}
 
 	/**
@@ -49,27 +60,41 @@ public class ScriptCriteria extends ScriptId {
 	 *         and match do not contain any patterns), false else
 	 */
 	public boolean testUrl(String url) {
-		if (exclude != null) {
-			for (String pattern : exclude) {
-				if (CriterionMatcher.test(pattern, url)) {
+		return testUrl(new ParsedUrl(url));
+	}
+
+	/**
+	 * Checks if an already parsed URL matches the criteria of this object.
+	 * 
+	 * @param url
+	 *            the URL to test
+	 * @return true if the URL does not match any of the exclude patterns and
+	 *         does match one of the patterns in include or match (or include
+	 *         and match do not contain any patterns), false else
+	 * @see #testUrl(String)
+	 */
+	public boolean testUrl(ParsedUrl url) {
+		if (excludeMatchers != null) {
+			for (CriterionMatcher matcher : excludeMatchers) {
+				if (matcher.matches(url)) {
 					return false;
 				}
 			}
 		}
-		if ((include == null || include.length == 0)
-				&& (match == null || match.length == 0)) {
+		if ((includeMatchers == null || includeMatchers.length == 0)
+				&& (matchMatchers == null || matchMatchers.length == 0)) {
 			return true;
 		}
-		if (include != null) {
-			for (String pattern : include) {
-				if (CriterionMatcher.test(pattern, url)) {
+		if (includeMatchers != null) {
+			for (CriterionMatcher matcher : includeMatchers) {
+				if (matcher.matches(url)) {
 					return true;
 				}
 			}
 		}
-		if (match != null) {
-			for (String pattern : match) {
-				if (CriterionMatcher.test(pattern, url)) {
+		if (matchMatchers != null) {
+			for (CriterionMatcher matcher : matchMatchers) {
+				if (matcher.matches(url)) {
 					return true;
 				}
 			}
@@ -89,4 +114,16 @@ public class ScriptCriteria extends ScriptId {
 		return match;
 	}
 
+	public CriterionMatcher[] getExcludeMatchers() {
+		return excludeMatchers;
+	}
+
+	public CriterionMatcher[] getIncludeMatchers() {
+		return includeMatchers;
+	}
+
+	public CriterionMatcher[] getMatchMatchers() {
+		return matchMatchers;
+	}
+
 }
@@ -0,0 +1,238 @@
+/*
+ *    Copyright 2012 Werner Bayer
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package at.pardus.android.webview.gm.run;
+
+import android.os.Build;
+import android.util.Log;
+import android.webkit.WebView;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import at.pardus.android.webview.gm.model.ScriptId;
+import at.pardus.android.webview.gm.store.ScriptStore;
+
+/**
+ * Runs the value requests of the asynchronous GM.* API off the JavaScript
+ * bridge thread and passes the results back to the page.
+ *
+ * Requests of all views are run one after the other on a single background
+ * thread, so that each script sees its own changes in order. Results that are
+ * ready before the UI thread gets to deliver them are passed to the page
+ * together in one call.
+ *
+ * Callback names start with the random prefix of the script injection that
+ * defined them. Results of requests made by a document the view has since
+ * left find no such function in the current one and are dropped there.
+ */
+class AsyncValueExecutor {
+
+	private static final String TAG = AsyncValueExecutor.class.getName();
+
+	static final String GET = "get";
+	static final String SET = "set";
+	static final String DELETE = "delete";
+	static final String LIST = "list";
+
+	private static final ExecutorService EXECUTOR = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, TAG);
+					thread.setDaemon(true);
+					return thread;
+				}
+
+			});
+
+	private final WebView view;
+
+	private final ScriptStore scriptStore;
+
+	// results not yet delivered as JSON array elements mapped to callbacks
+	private Map<String, StringBuilder> results = new LinkedHashMap<String, StringBuilder>();
+
+	private final Runnable deliverResults = new Runnable() {
+
+		@Override
+		public void run() {
+			deliverResults();
+		}
+
+	};
+
+	/**
+	 * Constructor.
+	 *
+	 * @param view
+	 *            the view to pass results to
+	 * @param scriptStore
+	 *            the database to query for values
+	 */
+	public AsyncValueExecutor(WebView view, ScriptStore scriptStore) {
+		this.view = view;
+		this.scriptStore = scriptStore;
+	}
+
+	/**
+	 * Queues a value request.
+	 *
+	 * @param id
+	 *            the calling script
+	 * @param callback
+	 *            the name of the global function to pass the result to,
+	 *            called with an array of [requestId, result] pairs
+	 * @param requestId
+	 *            the number identifying the request to the callback
+	 * @param operation
+	 *            one of GET, SET, DELETE and LIST
+	 * @param name
+	 *            the name of the value to get, set or delete
+	 * @param value
+	 *            the value to set
+	 */
+	public void submit(final ScriptId id, final String callback,
+			final int requestId, final String operation, final String name,
+			final String value) {
+		if (!callback.matches("[0-9a-zA-Z_]+")) {
+			Log.e(TAG, "Invalid callback name " + callback);
+			return;
+		}
+		EXECUTOR.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				String result;
+				try {
+					result = execute(id, operation, name, value);
+				} catch (RuntimeException e) {
+					Log.e(TAG, "Error executing value request " + operation, e);
+					result = "null";
+				}
+				addResult(callback, requestId, result);
+			}
+
+		});
+	}
+
+	/**
+	 * Executes a value request.
+	 *
+	 * @param id
+	 *            the calling script
+	 * @param operation
+	 *            one of GET, SET, DELETE and LIST
+	 * @param name
+	 *            the name of the value to get, set or delete
+	 * @param value
+	 *            the value to set
+	 * @return the result as JavaScript literal
+	 */
+	private String execute(ScriptId id, String operation, String name,
+			String value) {
+		StringBuilder sb = new StringBuilder();
+		if (GET.equals(operation)) {
+			String found = scriptStore.getValue(id, name);
+			if (found == null) {
+				return "null";
+			}
+			WebViewGmApi.appendJsonString(sb, found);
+		} else if (SET.equals(operation)) {
+			scriptStore.setValue(id, name, value);
+			return "null";
+		} else if (DELETE.equals(operation)) {
+			scriptStore.deleteValue(id, name);
+			return "null";
+		} else if (LIST.equals(operation)) {
+			String[] names = scriptStore.getValueNames(id);
+			if (names == null) {
+				return "null";
+			}
+			WebViewGmApi.appendJsonArray(sb, names);
+		} else {
+			Log.e(TAG, "Unknown value request " + operation);
+			return "null";
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Adds the result of a request to be delivered, scheduling the delivery
+	 * on the UI thread unless already scheduled.
+	 *
+	 * @param callback
+	 *            the name of the global function to pass the result to
+	 * @param requestId
+	 *            the number identifying the request to the callback
+	 * @param result
+	 *            the result as JavaScript literal
+	 */
+	private void addResult(String callback, int requestId, String result) {
+		boolean schedule;
+		synchronized (this) {
+			schedule = results.isEmpty();
+			StringBuilder callbackResults = results.get(callback);
+			if (callbackResults == null) {
+				callbackResults = new StringBuilder();
+				results.put(callback, callbackResults);
+			} else {
+				callbackResults.append(',');
+			}
+			callbackResults.append('[').append(requestId).append(',')
+					.append(result).append(']');
+		}
+		if (schedule) {
+			view.post(deliverResults);
+		}
+	}
+
+	/**
+	 * Passes all results added so far to the page in a single call. Run on the
+	 * UI thread.
+	 *
+	 * Before KitKat the code is run as javascript: URL, which may be
+	 * percent-decoded. The only percent signs in the code are those in string
+	 * results, which are replaced by unicode escape sequences so that the code
+	 * reads the same decoded or not.
+	 */
+	private void deliverResults() {
+		Map<String, StringBuilder> delivered;
+		synchronized (this) {
+			delivered = results;
+			results = new LinkedHashMap<String, StringBuilder>();
+		}
+		StringBuilder js = new StringBuilder("(function() {\n");
+		for (Map.Entry<String, StringBuilder> entry : delivered.entrySet()) {
+			String callback = "window." + entry.getKey();
+			js.append("if (typeof ").append(callback)
+					.append(" === \"function\") { ").append(callback)
+					.append("([").append(entry.getValue()).append("]); }\n");
+		}
+		js.append("})()");
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+			view.evaluateJavascript(js.toString(), null);
+		} else {
+			view.loadUrl("javascript:"
+					+ js.toString().replace("%", "\\u0025"));
+		}
+	}
+
+}
@@ -0,0 +1,173 @@
+/*
+ *    Copyright 2012 Werner Bayer
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package at.pardus.android.webview.gm.run;
+
+/**
+ * JavaScript code of the GM API shared by all user scripts running in a
+ * document.
+ *
+ * The runtime defines a single global function under a random name, which
+ * cannot be overwritten or deleted by the page. Given a script's name,
+ * namespace, the secret and the script's callback prefix it returns the GM API
+ * functions bound to that script (see InjectionBundle). The runtime only
+ * defines the function once per document, however often it is injected.
+ *
+ * In place of the secret the function also accepts a one-time token, which it
+ * exchanges for the secret through the JavaScript bridge. The secret is kept
+ * for other scripts passing the same token until the current task ends.
+ */
+class GmRuntime {
+
+	private static final String JSUNSAFEWINDOW = "unsafeWindow = (function() { var el = document.createElement('p'); el.setAttribute('onclick', 'return window;'); return el.onclick(); }()); window.wrappedJSObject = unsafeWindow;\n";
+
+	// names of the global callbacks replacing GM_xmlhttpRequest's callbacks
+	private static final String JSXHRCALLBACKS = "var xhrCallbacks = { "
+			+ "onabort: \"GM_onAbortCallback\", onerror: \"GM_onErrorCallback\", "
+			+ "onload: \"GM_onLoadCallback\", onprogress: \"GM_onProgressCallback\", "
+			+ "onreadystatechange: \"GM_onReadyStateChange\", ontimeout: \"GM_onTimeoutCallback\" };\n"
+			+ "var xhrUploadCallbacks = { "
+			+ "onabort: \"GM_uploadOnAbortCallback\", onerror: \"GM_uploadOnErrorCallback\", "
+			+ "onload: \"GM_uploadOnLoadCallback\", onprogress: \"GM_uploadOnProgressCallback\" };\n"
+			+ "var replaceCallbacks = function(obj, callbacks, callbackPrefix) { "
+			+ "for (var key in callbacks) { if (obj[key]) { "
+			+ "unsafeWindow[callbackPrefix + callbacks[key]] = obj[key]; "
+			+ "obj[key] = callbackPrefix + callbacks[key]; } } };\n";
+
+	private static final String JSMISSINGFUNCTIONS = "var missingFunction = function() { api.GM_log(\"Called function not yet implemented\"); };\n"
+			+ "api.GM_info = missingFunction;\n"
+			+ "api.GM_openInTab = missingFunction;\n"
+			+ "api.GM_registerMenuCommand = missingFunction;\n"
+			+ "api.GM_setClipboard = missingFunction;\n";
+
+	/**
+	 * Start of the tokens standing in for the secret.
+	 */
+	static final String TOKEN_PREFIX = "GM_token";
+
+	// parameters identifying the calling script to the bridge
+	private static final String SIGNATURE = "scriptName, scriptNamespace, secret";
+
+	// body of the runtime function building the API bound to a script
+	private static final String JSAPI = "if (secret.indexOf(\"" + TOKEN_PREFIX + "\") === 0) { "
+			+ "if (!Object.prototype.hasOwnProperty.call(tokenSecrets, secret)) { "
+			+ "tokenSecrets[secret] = bridge.redeemToken(secret); "
+			+ "(function(token) { setTimeout(function() { delete tokenSecrets[token]; }, 0); })(secret); } "
+			+ "secret = tokenSecrets[secret]; }\n"
+			+ "var api = {};\n"
+			+ "api.GM_listValues = function() { return JSON.parse(bridge.listValues("
+			+ SIGNATURE + ")) || []; };\n"
+			+ "api.GM_getValue = function(name, defaultValue) { return bridge.getValue("
+			+ SIGNATURE + ", name, defaultValue); };\n"
+			+ "api.GM_setValue = function(name, value) { bridge.setValue("
+			+ SIGNATURE + ", name, value); };\n"
+			+ "api.GM_deleteValue = function(name) { bridge.deleteValue("
+			+ SIGNATURE + ", name); };\n"
+			+ "api.GM_getValues = function(names) { "
+			+ "var keys = Array.isArray(names) ? names : Object.keys(names); "
+			+ "var values = JSON.parse(bridge.getValues(" + SIGNATURE
+			+ ", JSON.stringify(keys))) || {}; "
+			+ "if (!Array.isArray(names)) { for (var i = 0; i < keys.length; i++) { "
+			+ "if (!Object.prototype.hasOwnProperty.call(values, keys[i])) { "
+			+ "values[keys[i]] = names[keys[i]]; } } } "
+			+ "return values; };\n"
+			+ "api.GM_setValues = function(values) { bridge.setValues("
+			+ SIGNATURE + ", JSON.stringify(values)); };\n"
+			+ "api.GM_deleteValues = function(names) { bridge.deleteValues("
+			+ SIGNATURE + ", JSON.stringify(names)); };\n"
+			+ "api.GM = {};\n"
+			+ "if (typeof Promise !== \"undefined\") { (function() { "
+			+ "var requests = {}, nextRequestId = 0, callback = callbackPrefix + \"GM_onValueResults\"; "
+			+ "unsafeWindow[callback] = function(results) { "
+			+ "for (var i = 0; i < results.length; i++) { "
+			+ "var resolve = requests[results[i][0]]; delete requests[results[i][0]]; "
+			+ "if (resolve) { resolve(results[i][1]); } } }; "
+			+ "var request = function(operation, name, value) { "
+			+ "return new Promise(function(resolve) { "
+			+ "var requestId = nextRequestId++; requests[requestId] = resolve; "
+			+ "bridge.requestValue(" + SIGNATURE
+			+ ", callback, requestId, operation, name, value); }); }; "
+			+ "api.GM.getValue = function(name, defaultValue) { "
+			+ "return request(\"get\", name, null).then(function(value) { "
+			+ "return (value === null) ? defaultValue : value; }); }; "
+			+ "api.GM.setValue = function(name, value) { "
+			+ "return request(\"set\", name, value).then(function() {}); }; "
+			+ "api.GM.deleteValue = function(name) { "
+			+ "return request(\"delete\", name, null).then(function() {}); }; "
+			+ "api.GM.listValues = function() { "
+			+ "return request(\"list\", null, null).then(function(names) { "
+			+ "return names || []; }); }; " + "})(); }\n"
+			+ "api.GM_addStyle = function(css) { "
+			+ "var style = document.createElement(\"style\"); "
+			+ "style.type = \"text/css\"; style.innerHTML = css; "
+			+ "document.getElementsByTagName('head')[0].appendChild(style); };\n"
+			+ "api.GM_log = function(message) { bridge.log("
+			+ SIGNATURE + ", message); };\n"
+			+ "api.GM_getResourceURL = function(resourceName) { return bridge.getResourceURL("
+			+ SIGNATURE + ", resourceName); };\n"
+			+ "api.GM_getResourceText = function(resourceName) { return bridge.getResourceText("
+			+ SIGNATURE + ", resourceName); };\n"
+			+ "api.GM_xmlhttpRequest = function(details) { "
+			+ "replaceCallbacks(details, xhrCallbacks, callbackPrefix); "
+			+ "if (details.upload) { replaceCallbacks(details.upload, xhrUploadCallbacks, callbackPrefix); } "
+			+ "return JSON.parse(bridge.xmlHttpRequest(" + SIGNATURE
+			+ ", JSON.stringify(details))); };\n"
+			+ JSMISSINGFUNCTIONS;
+
+	// length of the compiled runtime apart from its names
+	private static final int JSRUNTIMELENGTH = JSUNSAFEWINDOW.length()
+			+ JSXHRCALLBACKS.length() + JSAPI.length() + 256;
+
+	/**
+	 * Names of the functions returned by the runtime function.
+	 */
+	static final String[] API_FUNCTIONS = { "GM_listValues", "GM_getValue",
+			"GM_setValue", "GM_deleteValue", "GM_getValues", "GM_setValues",
+			"GM_deleteValues", "GM", "GM_addStyle", "GM_log",
+			"GM_getResourceURL", "GM_getResourceText", "GM_xmlhttpRequest",
+			"GM_info", "GM_openInTab", "GM_registerMenuCommand",
+			"GM_setClipboard" };
+
+	private GmRuntime() {
+	}
+
+	/**
+	 * Compiles the runtime.
+	 *
+	 * @param runtimeName
+	 *            the name of the global runtime function
+	 * @param jsBridgeName
+	 *            the variable name to access the webview GM functions from
+	 *            javascript code
+	 * @return the code defining the runtime function unless already defined
+	 */
+	public static String compile(String runtimeName, String jsBridgeName) {
+		StringBuilder jsRuntime = new StringBuilder(JSRUNTIMELENGTH
+				+ 2 * runtimeName.length() + jsBridgeName.length());
+		jsRuntime.append("(function() {\n")
+				.append("if (Object.prototype.hasOwnProperty.call(window, \"")
+				.append(runtimeName).append("\")) { return; }\n")
+				.append(JSUNSAFEWINDOW).append("var bridge = ")
+				.append(jsBridgeName).append(";\n").append(JSXHRCALLBACKS)
+				.append("var tokenSecrets = {};\n")
+				.append("Object.defineProperty(window, \"").append(runtimeName)
+				.append("\", { value: function(").append(SIGNATURE)
+				.append(", callbackPrefix) {\n").append(JSAPI)
+				.append("return api;\n} });\n})();\n");
+		return jsRuntime.toString();
+	}
+
+}
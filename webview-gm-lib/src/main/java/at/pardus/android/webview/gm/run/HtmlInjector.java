@@ -0,0 +1,660 @@
+/*
+ *    Copyright 2012 Werner Bayer
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package at.pardus.android.webview.gm.run;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.Log;
+import android.webkit.CookieManager;
+import android.webkit.WebResourceResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Loads a main frame HTML document in place of the WebView and splices a
+ * script element into its head while the document is streamed to the WebView.
+ *
+ * Only the bytes up to the first start tag inside of or following the head
+ * are scanned; the rest of the document is passed through unchanged. The
+ * script element is encoded in the document's charset, so that it can be
+ * spliced into documents of any ASCII compatible encoding without decoding
+ * them. The charset is taken from a byte order mark, the Content-Type header
+ * or a meta element within the first 1024 bytes, in that order, like the
+ * WebView determines it, and defaults to the WebView's default UTF-8.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+class HtmlInjector {
+
+	private static final String TAG = HtmlInjector.class.getName();
+
+	// number of bytes scanned for the head before giving up
+	static final int MAX_SCAN_BYTES = 64 * 1024;
+
+	// number of bytes searched for a meta element declaring the charset
+	static final int PRESCAN_BYTES = 1024;
+
+	private static final int TIMEOUT_MILLIS = 30000;
+
+	private static final String JSREMOVESCRIPT = "(function() { var script = document.currentScript; if (script && script.parentNode) { script.parentNode.removeChild(script); } })();\n";
+
+	private static final Pattern COMMENT = Pattern.compile("<!--.*?-->",
+			Pattern.DOTALL);
+
+	private static final Pattern META_CHARSET = Pattern.compile(
+			"<meta[^>]*?charset\\s*=\\s*[\"']?\\s*([^\\s\"';>/]+)",
+			Pattern.CASE_INSENSITIVE);
+
+	// labels the WebView decodes as windows-1252
+	private static final Set<String> WINDOWS_1252_LABELS = new HashSet<String>(
+			Arrays.asList("ascii", "iso-8859-1", "iso8859-1", "iso_8859-1",
+					"l1", "latin1", "us-ascii"));
+
+	private HtmlInjector() {
+	}
+
+	/**
+	 * Loads a document, injecting JavaScript code if it is an HTML document.
+	 *
+	 * The document is requested once. Code is only injected into a 200 HTML
+	 * document that is not an attachment; any other response (errors,
+	 * downloads, other types) is passed to the WebView as it is, with its
+	 * status, reason and headers. Only redirects are left to the WebView, so
+	 * that it updates its address.
+	 *
+	 * @param url
+	 *            the address of the document
+	 * @param requestHeaders
+	 *            the headers of the WebView's request
+	 * @param jsCode
+	 *            the code to run at the start of the document
+	 * @return the response to pass to the WebView; null if the WebView has to
+	 *         load the document itself
+	 */
+	public static WebResourceResponse load(String url,
+			Map<String, String> requestHeaders, String jsCode) {
+		if (!acceptsHtml(requestHeaders)) {
+			return null;
+		}
+		CookieManager cookieManager = CookieManager.getInstance();
+		HttpURLConnection httpConn = null;
+		try {
+			httpConn = openConnection(url, requestHeaders, cookieManager);
+			int status = httpConn.getResponseCode();
+			if (status < 200 || (status >= 300 && status < 400) || status > 599) {
+				// WebResourceResponse cannot pass on redirects
+				httpConn.disconnect();
+				return null;
+			}
+			String charset = getCharset(httpConn.getContentType());
+			boolean inject = status == HttpURLConnection.HTTP_OK
+					&& isHtml(httpConn)
+					&& (charset == null || lookupCharset(charset) != null);
+			Map<String, String> responseHeaders = new HashMap<String, String>();
+			for (Map.Entry<String, List<String>> header : httpConn
+					.getHeaderFields().entrySet()) {
+				String name = header.getKey();
+				if (name == null) {
+					// status line
+					continue;
+				}
+				if ("Set-Cookie".equalsIgnoreCase(name)) {
+					for (String value : header.getValue()) {
+						cookieManager.setCookie(url, value);
+					}
+				} else if (!inject || !"Content-Length".equalsIgnoreCase(name)) {
+					responseHeaders.put(name, join(header.getValue()));
+				}
+			}
+			String mimeType = getMimeType(httpConn.getContentType());
+			InputStream data = (status >= 400) ? httpConn.getErrorStream()
+					: httpConn.getInputStream();
+			if (data == null) {
+				data = new ByteArrayInputStream(new byte[0]);
+			} else if (inject) {
+				data = new InjectingInputStream(data, jsCode, charset);
+			}
+			String reason = httpConn.getResponseMessage();
+			if (reason == null || reason.trim().length() == 0) {
+				// not sent over HTTP/2, required by WebResourceResponse
+				reason = (status == HttpURLConnection.HTTP_OK) ? "OK" : Integer
+						.toString(status);
+			}
+			return new WebResourceResponse(mimeType, charset, status, reason,
+					responseHeaders, data);
+		} catch (IOException e) {
+			Log.w(TAG, "Error loading " + url + " for script injection", e);
+		} catch (IllegalArgumentException e) {
+			Log.w(TAG, "Unsupported response from " + url, e);
+		}
+		if (httpConn != null) {
+			httpConn.disconnect();
+		}
+		return null;
+	}
+
+	/**
+	 * @param requestHeaders
+	 *            the headers of the WebView's request (may be null)
+	 * @return true if the request accepts HTML and is not a range request
+	 */
+	private static boolean acceptsHtml(Map<String, String> requestHeaders) {
+		if (requestHeaders == null) {
+			return false;
+		}
+		boolean accepted = false;
+		for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+			if ("Range".equalsIgnoreCase(header.getKey())) {
+				return false;
+			}
+			if ("Accept".equalsIgnoreCase(header.getKey())
+					&& header.getValue() != null
+					&& header.getValue().toLowerCase(Locale.ENGLISH)
+							.contains("text/html")) {
+				accepted = true;
+			}
+		}
+		return accepted;
+	}
+
+	/**
+	 * Opens a connection with the WebView's request headers and cookies,
+	 * without following redirects.
+	 *
+	 * @param url
+	 *            the address of the document
+	 * @param requestHeaders
+	 *            the headers of the WebView's request
+	 * @param cookieManager
+	 *            the WebView's cookies
+	 * @return the connection, the GET request sent
+	 * @throws IOException
+	 *             if the request could not be sent
+	 */
+	private static HttpURLConnection openConnection(String url,
+			Map<String, String> requestHeaders, CookieManager cookieManager)
+			throws IOException {
+		HttpURLConnection httpConn = (HttpURLConnection) new URL(url)
+				.openConnection();
+		// redirects are left to the WebView to update its address
+		httpConn.setInstanceFollowRedirects(false);
+		httpConn.setConnectTimeout(TIMEOUT_MILLIS);
+		httpConn.setReadTimeout(TIMEOUT_MILLIS);
+		for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+			// let HttpURLConnection negotiate and decode compression
+			if (!"Accept-Encoding".equalsIgnoreCase(header.getKey())) {
+				httpConn.setRequestProperty(header.getKey(), header.getValue());
+			}
+		}
+		String cookie = cookieManager.getCookie(url);
+		if (cookie != null) {
+			httpConn.setRequestProperty("Cookie", cookie);
+		}
+		httpConn.connect();
+		return httpConn;
+	}
+
+	/**
+	 * @param httpConn
+	 *            a connection with a response
+	 * @return true if the response is an uncompressed HTML document to be
+	 *         displayed
+	 */
+	private static boolean isHtml(HttpURLConnection httpConn) {
+		String disposition = httpConn.getHeaderField("Content-Disposition");
+		return "text/html".equals(getMimeType(httpConn.getContentType()))
+				&& httpConn.getContentEncoding() == null
+				&& (disposition == null || !disposition.trim()
+						.toLowerCase(Locale.ENGLISH).startsWith("attachment"));
+	}
+
+	/**
+	 * @param contentType
+	 *            the value of a Content-Type header (may be null)
+	 * @return the lower case MIME type; null if unknown
+	 */
+	private static String getMimeType(String contentType) {
+		if (contentType == null) {
+			return null;
+		}
+		return contentType.split(";")[0].trim().toLowerCase(Locale.ENGLISH);
+	}
+
+	/**
+	 * @param contentType
+	 *            the value of a Content-Type header (may be null)
+	 * @return the charset parameter; null if not given
+	 */
+	private static String getCharset(String contentType) {
+		if (contentType == null) {
+			return null;
+		}
+		String[] parts = contentType.split(";");
+		for (int i = 1; i < parts.length; i++) {
+			String param = parts[i].trim();
+			if (param.toLowerCase(Locale.ENGLISH).startsWith("charset=")) {
+				return param.substring(8).replace("\"", "").trim();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param values
+	 *            the values of a header
+	 * @return the values separated by commas
+	 */
+	private static String join(List<String> values) {
+		StringBuilder sb = new StringBuilder();
+		for (String value : values) {
+			if (sb.length() > 0) {
+				sb.append(", ");
+			}
+			sb.append(value);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Wraps JavaScript code into a script element encoded in a document's
+	 * charset (see ScriptSourceEscaper). The element removes itself from the
+	 * document before running the code, so that it cannot be read by the
+	 * page's scripts.
+	 *
+	 * @param jsCode
+	 *            the code to wrap
+	 * @param charset
+	 *            the ASCII compatible charset of the document
+	 * @return the bytes of the script element
+	 */
+	static byte[] toScriptElement(String jsCode, Charset charset) {
+		StringBuilder sb = new StringBuilder(jsCode.length() + 256);
+		sb.append("<script>").append(JSREMOVESCRIPT)
+				.append(ScriptSourceEscaper.escape(jsCode, charset.newEncoder()))
+				.append("</script>");
+		return sb.toString().getBytes(charset);
+	}
+
+	/**
+	 * Determines the charset of a document.
+	 *
+	 * @param prefix
+	 *            the first bytes of the document
+	 * @param length
+	 *            the number of bytes in prefix
+	 * @param label
+	 *            the charset parameter of the Content-Type header; null if
+	 *            not given
+	 * @return the charset; null if it is not supported or not ASCII
+	 *         compatible
+	 */
+	static Charset getDocumentCharset(byte[] prefix, int length, String label) {
+		if (length >= 3 && prefix[0] == (byte) 0xef
+				&& prefix[1] == (byte) 0xbb && prefix[2] == (byte) 0xbf) {
+			return Charset.forName("UTF-8");
+		}
+		if (length >= 2
+				&& ((prefix[0] == (byte) 0xfe && prefix[1] == (byte) 0xff)
+				|| (prefix[0] == (byte) 0xff && prefix[1] == (byte) 0xfe))) {
+			// UTF-16 byte order mark
+			return null;
+		}
+		if (label != null) {
+			return lookupCharset(label);
+		}
+		String text = COMMENT.matcher(
+				new String(prefix, 0, length, Charset.forName("ISO-8859-1")))
+				.replaceAll("");
+		Matcher matcher = META_CHARSET.matcher(text);
+		if (matcher.find()) {
+			Charset charset = lookupCharset(matcher.group(1));
+			if (charset != null) {
+				return charset;
+			}
+		}
+		return Charset.forName("UTF-8");
+	}
+
+	/**
+	 * @param label
+	 *            the name of a charset
+	 * @return the charset; null if it is not supported or not ASCII
+	 *         compatible
+	 */
+	private static Charset lookupCharset(String label) {
+		label = label.trim().toLowerCase(Locale.ENGLISH);
+		if (WINDOWS_1252_LABELS.contains(label)) {
+			label = "windows-1252";
+		}
+		Charset charset;
+		try {
+			charset = Charset.forName(label);
+		} catch (IllegalArgumentException e) {
+			// illegal or unsupported
+			return null;
+		}
+		if (!charset.canEncode()) {
+			return null;
+		}
+		byte[] ascii = new byte[0x7f - 0x20 + 1];
+		for (int i = 0; i < ascii.length - 1; i++) {
+			ascii[i] = (byte) (0x20 + i);
+		}
+		ascii[ascii.length - 1] = '\n';
+		String str = new String(ascii, Charset.forName("US-ASCII"));
+		return Arrays.equals(ascii, str.getBytes(charset)) ? charset : null;
+	}
+
+	/**
+	 * Stream inserting bytes after the head start tag of an HTML document, or
+	 * before the first other start tag if the head tag is omitted.
+	 */
+	static class InjectingInputStream extends FilterInputStream {
+
+		private static final int TEXT = 0;
+		private static final int TAG_NAME = 1;
+		private static final int HEAD_TAG = 2;
+		private static final int MARKUP_DECLARATION = 3;
+		private static final int COMMENT = 4;
+
+		private byte[] injection;
+
+		// code to encode in the document's charset once it is known
+		private final String jsCode;
+
+		private final String charset;
+
+		private boolean scanning = true;
+
+		private int scanned;
+
+		private int state = TEXT;
+
+		// bytes of a start tag not yet decided on
+		private final ByteArrayOutputStream held = new ByteArrayOutputStream();
+
+		private final StringBuilder tagName = new StringBuilder();
+
+		private byte quote;
+
+		private int dashes;
+
+		private byte[] out = new byte[0];
+
+		private int outPos;
+
+		/**
+		 * @param in
+		 *            the document
+		 * @param injection
+		 *            the bytes to insert
+		 */
+		InjectingInputStream(InputStream in, byte[] injection) {
+			super(in);
+			this.injection = injection;
+			this.jsCode = null;
+			this.charset = null;
+		}
+
+		/**
+		 * @param in
+		 *            the document
+		 * @param jsCode
+		 *            the code to insert as a script element
+		 * @param charset
+		 *            the charset parameter of the Content-Type header; null if
+		 *            not given
+		 */
+		InjectingInputStream(InputStream in, String jsCode, String charset) {
+			super(in);
+			this.jsCode = jsCode;
+			this.charset = charset;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int n = read(b, 0, 1);
+			return (n == -1) ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (injection == null && scanning) {
+				prescan();
+			}
+			while (outPos == out.length) {
+				if (!scanning) {
+					return in.read(b, off, len);
+				}
+				byte[] chunk = new byte[Math.max(len, 1024)];
+				int n = in.read(chunk, 0, chunk.length);
+				if (n == -1) {
+					// end of document before the head
+					scanning = false;
+					out = held.toByteArray();
+					outPos = 0;
+					held.reset();
+					if (out.length == 0) {
+						return -1;
+					}
+				} else {
+					out = scan(chunk, n);
+					outPos = 0;
+				}
+			}
+			int n = Math.min(len, out.length - outPos);
+			System.arraycopy(out, outPos, b, off, n);
+			outPos += n;
+			return n;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (out.length - outPos) + (scanning ? 0 : in.available());
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		/**
+		 * Reads the first bytes of the document to determine its charset and
+		 * encodes the script element in it.
+		 *
+		 * @throws IOException
+		 *             if the document could not be read
+		 */
+		private void prescan() throws IOException {
+			byte[] prefix = new byte[PRESCAN_BYTES];
+			int length = 0;
+			int n;
+			while (length < prefix.length
+					&& (n = in.read(prefix, length, prefix.length - length)) != -1) {
+				length += n;
+			}
+			Charset documentCharset = getDocumentCharset(prefix, length,
+					charset);
+			if (documentCharset == null) {
+				Log.w(TAG, "Unsupported charset - not injecting scripts");
+				scanning = false;
+				out = new byte[length];
+				System.arraycopy(prefix, 0, out, 0, length);
+			} else {
+				injection = toScriptElement(jsCode, documentCharset);
+				out = scan(prefix, length);
+			}
+			outPos = 0;
+		}
+
+		/**
+		 * Scans a chunk of the document for the place to insert the bytes.
+		 *
+		 * @param chunk
+		 *            the bytes read
+		 * @param length
+		 *            the number of bytes read
+		 * @return the bytes to pass on
+		 */
+		private byte[] scan(byte[] chunk, int length) {
+			ByteArrayOutputStream result = new ByteArrayOutputStream(length
+					+ held.size() + injection.length);
+			int i = 0;
+			if (scanned == 0 && length >= 2
+					&& ((chunk[0] == (byte) 0xfe && chunk[1] == (byte) 0xff)
+					|| (chunk[0] == (byte) 0xff && chunk[1] == (byte) 0xfe))) {
+				// UTF-16 byte order mark
+				scanning = false;
+			}
+			for (; i < length && scanning; i++) {
+				byte c = chunk[i];
+				if (++scanned > MAX_SCAN_BYTES) {
+					Log.w(TAG, "No head found - not injecting scripts");
+					scanning = false;
+					break;
+				}
+				switch (state) {
+				case TEXT:
+					if (c == '<') {
+						state = TAG_NAME;
+						tagName.setLength(0);
+						held.write(c);
+					} else {
+						result.write(c);
+					}
+					break;
+				case TAG_NAME:
+					held.write(c);
+					if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+							|| (c >= '0' && c <= '9' && tagName.length() > 0)) {
+						tagName.append((char) c);
+					} else if (c == '!' && tagName.length() == 0) {
+						state = MARKUP_DECLARATION;
+						dashes = 0;
+						flushHeld(result);
+					} else if (tagName.length() == 0) {
+						// end tag, processing instruction or text
+						state = TEXT;
+						flushHeld(result);
+					} else {
+						String name = tagName.toString().toLowerCase(
+								Locale.ENGLISH);
+						if (name.equals("head")) {
+							flushHeld(result);
+							if (c == '>') {
+								inject(result);
+							} else {
+								state = HEAD_TAG;
+								quote = 0;
+							}
+						} else if (name.equals("html")) {
+							state = TEXT;
+							flushHeld(result);
+						} else {
+							// start tag implicitly opening the head or body
+							inject(result);
+							flushHeld(result);
+						}
+					}
+					break;
+				case HEAD_TAG:
+					result.write(c);
+					if (quote != 0) {
+						if (c == quote) {
+							quote = 0;
+						}
+					} else if (c == '"' || c == '\'') {
+						quote = c;
+					} else if (c == '>') {
+						inject(result);
+					}
+					break;
+				case MARKUP_DECLARATION:
+					result.write(c);
+					if (c == '-' && ++dashes == 2) {
+						state = COMMENT;
+						dashes = 0;
+					} else if (c == '>') {
+						state = TEXT;
+					} else if (c != '-') {
+						dashes = 3;
+					}
+					break;
+				case COMMENT:
+					result.write(c);
+					if (c == '-') {
+						dashes++;
+					} else if (c == '>' && dashes >= 2) {
+						state = TEXT;
+					} else {
+						dashes = 0;
+					}
+					break;
+				}
+			}
+			if (!scanning) {
+				flushHeld(result);
+			}
+			result.write(chunk, i, length - i);
+			return result.toByteArray();
+		}
+
+		/**
+		 * @param result
+		 *            the stream to append the held bytes to
+		 */
+		private void flushHeld(ByteArrayOutputStream result) {
+			if (held.size() > 0) {
+				byte[] bytes = held.toByteArray();
+				result.write(bytes, 0, bytes.length);
+				held.reset();
+			}
+		}
+
+		/**
+		 * Appends the bytes to insert and stops scanning.
+		 *
+		 * @param result
+		 *            the stream to append the bytes to
+		 */
+		private void inject(ByteArrayOutputStream result) {
+			result.write(injection, 0, injection.length);
+			scanning = false;
+		}
+
+	}
+
+}
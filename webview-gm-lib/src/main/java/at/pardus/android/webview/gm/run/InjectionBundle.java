@@ -0,0 +1,213 @@
+/*
+ *    Copyright 2012 Werner Bayer
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package at.pardus.android.webview.gm.run;
+
+import java.util.UUID;
+
+import at.pardus.android.webview.gm.model.Script;
+import at.pardus.android.webview.gm.model.ScriptRequire;
+
+/**
+ * Immutable JavaScript code injected to run a user script, consisting of the
+ * script's binding to the shared GM runtime (see GmRuntime), the script's
+ * requires and the script itself.
+ *
+ * Compiled once per script and runtime name. Only the secret (or a token
+ * standing in for it) and the prefix of the global callback names, which has
+ * to differ on each page, are spliced in on each injection. A bundle does not
+ * keep a reference to its script (nor the script's resources), only the
+ * compiled strings and a fingerprint of the code it was compiled from.
+ */
+class InjectionBundle {
+
+	private static final String JSCONTAINERSTART = "(function() {\n";
+
+	private static final String JSCONTAINEREND = "\n})()";
+
+	// placeholders of the callback prefix and the secret in the compiled
+	// binding, which contains each once with the secret first
+	private static final String CALLBACK_PREFIX = "\u0000";
+
+	private static final String SECRET = "\u0001";
+
+	// approximate memory used by a bundle apart from its strings
+	private static final int OVERHEAD = 128;
+
+	private final long fingerprint;
+
+	private final String runtimeName;
+
+	private final String callbackPrefixStart;
+
+	private final String[] jsApiParts;
+
+	private final String jsAllRequires;
+
+	private final String jsContent;
+
+	private final boolean unwrap;
+
+	private final int length;
+
+	/**
+	 * Compiles the code to inject for a user script.
+	 * 
+	 * @param script
+	 *            the user script
+	 * @param runtimeName
+	 *            the name of the global function of the shared GM runtime (see
+	 *            GmRuntime)
+	 */
+	public InjectionBundle(Script script, String runtimeName) {
+		this.fingerprint = fingerprint(script);
+		this.runtimeName = runtimeName;
+		// placeholder characters escaped to keep them unique
+		String defaultSignature = "\""
+				+ script.getName().replace("\"", "\\\"")
+						.replace(CALLBACK_PREFIX, "\\u0000")
+						.replace(SECRET, "\\u0001")
+				+ "\", \""
+				+ script.getNamespace().replace("\"", "\\\"")
+						.replace(CALLBACK_PREFIX, "\\u0000")
+						.replace(SECRET, "\\u0001") + "\", \"" + SECRET
+				+ "\"";
+		callbackPrefixStart = ("GM_" + script.getName() + script.getNamespace())
+				.replaceAll("[^0-9a-zA-Z_]", "");
+		// bind the shared runtime's functions to script-scoped variables
+		StringBuilder jsApi = new StringBuilder("var GM_api = window.")
+				.append(runtimeName).append('(').append(defaultSignature)
+				.append(", \"").append(CALLBACK_PREFIX).append("\")");
+		for (String function : GmRuntime.API_FUNCTIONS) {
+			jsApi.append(", ").append(function).append(" = GM_api.")
+					.append(function);
+		}
+		jsApi.append(";\n");
+		jsApiParts = jsApi.toString().split("[" + SECRET + CALLBACK_PREFIX
+				+ "]", -1);
+
+		// Get @require'd scripts to inject for this script.
+		StringBuilder requiresBuilder = new StringBuilder();
+		ScriptRequire[] requires = script.getRequires();
+		if (requires != null) {
+			for (ScriptRequire currentRequire : requires) {
+				requiresBuilder.append(currentRequire.getContent()).append('\n');
+			}
+		}
+		jsAllRequires = requiresBuilder.toString();
+		jsContent = script.getContent();
+		unwrap = script.isUnwrap();
+
+		int len = jsApi.length() - (jsApiParts.length - 1)
+				+ jsAllRequires.length() + jsContent.length();
+		if (!unwrap) {
+			len += JSCONTAINERSTART.length() + JSCONTAINEREND.length();
+		}
+		length = len;
+	}
+
+	/**
+	 * @param script
+	 *            the user script to run
+	 * @param runtimeName
+	 *            the current name of the runtime function
+	 * @return true if this bundle has been compiled from the same code of the
+	 *         user script with the same runtime name
+	 */
+	public boolean isCompiledFrom(Script script, String runtimeName) {
+		return fingerprint == fingerprint(script)
+				&& equal(this.runtimeName, runtimeName);
+	}
+
+	/**
+	 * Hashes the code of a user script. Cheap for a script instance whose
+	 * strings have been hashed before (String caches its hash code).
+	 * 
+	 * @param script
+	 *            the user script
+	 * @return the fingerprint of the script's content, requires and unwrap
+	 *         property
+	 */
+	private static long fingerprint(Script script) {
+		String content = script.getContent();
+		long hash = content.hashCode() * 31L + content.length();
+		ScriptRequire[] requires = script.getRequires();
+		if (requires != null) {
+			for (ScriptRequire require : requires) {
+				String requireContent = require.getContent();
+				hash = hash * 31L + requireContent.hashCode();
+				hash = hash * 31L + requireContent.length();
+			}
+		}
+		return hash * 2 + (script.isUnwrap() ? 1 : 0);
+	}
+
+	/**
+	 * @return the approximate memory used by this bundle in bytes
+	 */
+	public int getWeight() {
+		long chars = jsAllRequires.length() + jsContent.length();
+		for (String part : jsApiParts) {
+			chars += part.length();
+		}
+		return (int) Math.min(OVERHEAD + 2L * chars, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @param a
+	 *            a string (may be null)
+	 * @param b
+	 *            another string (may be null)
+	 * @return true if both strings are equal or null
+	 */
+	private static boolean equal(String a, String b) {
+		return (a == null) ? b == null : a.equals(b);
+	}
+
+	/**
+	 * Builds the code to inject into a page.
+	 * 
+	 * @param secret
+	 *            the secret to add to calls of the GM API, or a token the
+	 *            runtime exchanges for it
+	 * @param jsBeforeScript
+	 *            JavaScript code to add between the GM API and the start of the
+	 *            user script code
+	 * @param jsAfterScript
+	 *            JavaScript code to add after the end of the user script code
+	 * @return the code running the user script
+	 */
+	public String inject(String secret, String jsBeforeScript,
+			String jsAfterScript) {
+		String callbackPrefix = callbackPrefixStart
+				+ UUID.randomUUID().toString().replace("-", "");
+		StringBuilder jsCode = new StringBuilder(length + secret.length()
+				+ callbackPrefix.length() + jsBeforeScript.length()
+				+ jsAfterScript.length());
+		if (!unwrap) {
+			jsCode.append(JSCONTAINERSTART);
+		}
+		jsCode.append(jsApiParts[0]).append(secret).append(jsApiParts[1])
+				.append(callbackPrefix).append(jsApiParts[2]);
+		jsCode.append(jsAllRequires).append(jsBeforeScript)
+				.append(jsContent).append(jsAfterScript);
+		if (!unwrap) {
+			jsCode.append(JSCONTAINEREND);
+		}
+		return jsCode.toString();
+	}
+
+}
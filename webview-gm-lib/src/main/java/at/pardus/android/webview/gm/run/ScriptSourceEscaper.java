@@ -0,0 +1,345 @@
+/*
+ *    Copyright 2012 Werner Bayer
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package at.pardus.android.webview.gm.run;
+
+import java.nio.charset.CharsetEncoder;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Rewrites JavaScript code to be placed inside a script element of an HTML
+ * document without changing its meaning.
+ *
+ * The sequences &lt;/script and &lt;!-- would end the element early or stop
+ * the HTML parser from ending it. They are rewritten depending on where they
+ * occur in the code, which is tracked by a simple tokenizer: in string,
+ * template and regular expression literals the &lt; is escaped as \x3C, in
+ * comments a space is inserted after it, and in code &lt;!-- (an HTML-like
+ * comment) is replaced by // and a space inserted between &lt; and
+ * /script.
+ *
+ * Characters the document's charset cannot encode are escaped where an
+ * escape sequence means the same (literals and identifiers); white space is
+ * replaced by a space or a line feed and characters in comments by ?.
+ *
+ * Regular expression literals are told apart from divisions by the preceding
+ * token, which is a heuristic. Code is only ever changed where one of the
+ * sequences or an unencodable character occurs; the source property of a
+ * regular expression changed this way differs, but not what it matches.
+ */
+final class ScriptSourceEscaper {
+
+	private static final int CODE = 0;
+	private static final int LINE_COMMENT = 1;
+	private static final int BLOCK_COMMENT = 2;
+	private static final int STRING = 3;
+	private static final int TEMPLATE = 4;
+	private static final int REGEX = 5;
+
+	// keywords after which a slash starts a regular expression
+	private static final Set<String> KEYWORDS_BEFORE_EXPRESSION = new HashSet<String>(
+			Arrays.asList("await", "case", "delete", "do", "else", "in",
+					"instanceof", "new", "of", "return", "throw", "typeof",
+					"void", "yield"));
+
+	private final String js;
+
+	private final CharsetEncoder encoder;
+
+	private final StringBuilder sb;
+
+	private int state = CODE;
+
+	private char quote;
+
+	private boolean escaped;
+
+	private boolean regexClass;
+
+	private boolean regexAllowed = true;
+
+	// per open brace in code: t if it opened a template substitution
+	private final StringBuilder braces = new StringBuilder();
+
+	private final StringBuilder word = new StringBuilder();
+
+	private ScriptSourceEscaper(String js, CharsetEncoder encoder) {
+		this.js = js;
+		this.encoder = encoder;
+		this.sb = new StringBuilder(js.length() + 16);
+	}
+
+	/**
+	 * Rewrites code to be placed inside a script element.
+	 *
+	 * @param js
+	 *            the code
+	 * @param encoder
+	 *            the encoder of the document's charset, which has to encode
+	 *            ASCII as ASCII
+	 * @return the code without the sequences &lt;/script and &lt;!-- and
+	 *         consisting of characters the encoder can encode
+	 */
+	public static String escape(String js, CharsetEncoder encoder) {
+		ScriptSourceEscaper escaper = new ScriptSourceEscaper(js, encoder);
+		int i = 0;
+		while (i < js.length()) {
+			i += escaper.next(i);
+		}
+		return escaper.sb.toString();
+	}
+
+	/**
+	 * Appends the rewritten token or character at a position.
+	 *
+	 * @param i
+	 *            the position in the code
+	 * @return the number of chars consumed
+	 */
+	private int next(int i) {
+		char c = js.charAt(i);
+		switch (state) {
+		case CODE:
+			return nextInCode(i, c);
+		case LINE_COMMENT:
+			if (isLineTerminator(c)) {
+				state = CODE;
+			}
+			return nextInComment(i, c);
+		case BLOCK_COMMENT:
+			if (c == '*' && js.startsWith("*/", i)) {
+				sb.append("*/");
+				state = CODE;
+				return 2;
+			}
+			return nextInComment(i, c);
+		default:
+			return nextInLiteral(i, c);
+		}
+	}
+
+	private int nextInCode(int i, char c) {
+		if (isIdentifierPart(c)) {
+			word.append(c);
+			return appendCodeChar(i);
+		}
+		endWord();
+		switch (c) {
+		case '<':
+			if (js.startsWith("<!--", i)) {
+				// HTML-like comment
+				sb.append("//");
+				state = LINE_COMMENT;
+				return 4;
+			}
+			sb.append(c);
+			if (startsWithEndScript(i)) {
+				sb.append(' ');
+			}
+			regexAllowed = true;
+			return 1;
+		case '"':
+		case '\'':
+			state = STRING;
+			quote = c;
+			break;
+		case '`':
+			state = TEMPLATE;
+			break;
+		case '/':
+			if (js.startsWith("//", i)) {
+				sb.append("//");
+				state = LINE_COMMENT;
+				return 2;
+			}
+			if (js.startsWith("/*", i)) {
+				sb.append("/*");
+				state = BLOCK_COMMENT;
+				return 2;
+			}
+			if (regexAllowed) {
+				state = REGEX;
+				regexClass = false;
+			} else {
+				regexAllowed = true;
+			}
+			break;
+		case '{':
+			braces.append('c');
+			regexAllowed = true;
+			break;
+		case '}':
+			if (braces.length() > 0) {
+				char brace = braces.charAt(braces.length() - 1);
+				braces.setLength(braces.length() - 1);
+				if (brace == 't') {
+					state = TEMPLATE;
+					break;
+				}
+			}
+			regexAllowed = true;
+			break;
+		case ')':
+		case ']':
+			regexAllowed = false;
+			break;
+		default:
+			if (c < 0x80) {
+				if (c > ' ') {
+					regexAllowed = true;
+				}
+			} else {
+				// white space
+				return appendCodeChar(i);
+			}
+		}
+		sb.append(c);
+		return 1;
+	}
+
+	private int nextInComment(int i, char c) {
+		if (c == '<' && (js.startsWith("<!--", i) || startsWithEndScript(i))) {
+			sb.append("< ");
+			return 1;
+		}
+		int len = codePointLength(i);
+		if (canEncode(i, len)) {
+			sb.append(js, i, i + len);
+		} else {
+			sb.append(isLineTerminator(c) ? '\n' : '?');
+		}
+		return len;
+	}
+
+	private int nextInLiteral(int i, char c) {
+		boolean afterBackslash = escaped;
+		escaped = false;
+		if (!afterBackslash) {
+			if (c == '\\') {
+				escaped = true;
+			} else if (state == STRING && (c == quote || c == '\n' || c == '\r')) {
+				state = CODE;
+				regexAllowed = false;
+			} else if (state == TEMPLATE && c == '`') {
+				state = CODE;
+				regexAllowed = false;
+			} else if (state == TEMPLATE && js.startsWith("${", i)) {
+				sb.append("${");
+				braces.append('t');
+				state = CODE;
+				regexAllowed = true;
+				return 2;
+			} else if (state == REGEX && c == '[') {
+				regexClass = true;
+			} else if (state == REGEX && c == ']') {
+				regexClass = false;
+			} else if (state == REGEX && c == '/' && !regexClass) {
+				state = CODE;
+				regexAllowed = false;
+			} else if (state == REGEX && (c == '\n' || c == '\r')) {
+				// not a regular expression after all
+				state = CODE;
+			}
+		}
+		if (c == '<' && (js.startsWith("<!--", i) || startsWithEndScript(i))) {
+			appendEscape(afterBackslash, "x3C");
+			return 1;
+		}
+		int len = codePointLength(i);
+		if (canEncode(i, len)) {
+			sb.append(js, i, i + len);
+		} else {
+			for (int j = i; j < i + len; j++) {
+				appendEscape(afterBackslash && j == i,
+						String.format("u%04x", (int) js.charAt(j)));
+			}
+		}
+		return len;
+	}
+
+	/**
+	 * Appends a character of an identifier or white space in code.
+	 */
+	private int appendCodeChar(int i) {
+		int len = codePointLength(i);
+		if (canEncode(i, len)) {
+			sb.append(js, i, i + len);
+			return len;
+		}
+		char c = js.charAt(i);
+		if (isLineTerminator(c)) {
+			sb.append('\n');
+		} else if (Character.isSpaceChar(c) || c == '\ufeff') {
+			sb.append(' ');
+		} else if (len == 1) {
+			sb.append(String.format("\\u%04x", (int) c));
+		} else {
+			sb.append(String.format("\\u{%x}", js.codePointAt(i)));
+		}
+		return len;
+	}
+
+	/**
+	 * Appends an escape sequence, or only its part after the backslash if the
+	 * backslash has already been appended.
+	 */
+	private void appendEscape(boolean afterBackslash, String escape) {
+		if (!afterBackslash) {
+			sb.append('\\');
+		}
+		sb.append(escape);
+	}
+
+	/**
+	 * Decides whether a slash following the word just ended starts a regular
+	 * expression.
+	 */
+	private void endWord() {
+		if (word.length() > 0) {
+			char first = word.charAt(0);
+			regexAllowed = !(first >= '0' && first <= '9')
+					&& KEYWORDS_BEFORE_EXPRESSION.contains(word.toString());
+			word.setLength(0);
+		}
+	}
+
+	private boolean startsWithEndScript(int i) {
+		return js.regionMatches(true, i, "</script", 0, 8);
+	}
+
+	private int codePointLength(int i) {
+		return (Character.isHighSurrogate(js.charAt(i)) && i + 1 < js.length() && Character
+				.isLowSurrogate(js.charAt(i + 1))) ? 2 : 1;
+	}
+
+	private boolean canEncode(int i, int len) {
+		return (len == 1 && js.charAt(i) < 0x80)
+				|| encoder.canEncode(js.subSequence(i, i + len));
+	}
+
+	private static boolean isIdentifierPart(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+				|| (c >= '0' && c <= '9') || c == '$' || c == '_' || c == '\\'
+				|| (c >= 0x80 && !Character.isSpaceChar(c) && c != '\ufeff');
+	}
+
+	private static boolean isLineTerminator(char c) {
+		return c == '\n' || c == '\r' || c == '\u2028' || c == '\u2029';
+	}
+
+}
@@ -16,17 +16,25 @@
 
 package at.pardus.android.webview.gm.run;
 
+import android.annotation.TargetApi;
 import android.graphics.Bitmap;
 import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
+import android.webkit.ValueCallback;
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
 import android.webkit.WebView;
 import android.webkit.WebViewClient;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
 import at.pardus.android.webview.gm.model.Script;
-import at.pardus.android.webview.gm.model.ScriptRequire;
+import at.pardus.android.webview.gm.model.ScriptId;
 import at.pardus.android.webview.gm.store.ScriptStore;
+import at.pardus.android.webview.gm.util.ConcurrentLruCache;
 
 /**
  * A user script enabled WebViewClient to be used by WebViewGm.
@@ -35,18 +43,26 @@ public class WebViewClientGm extends WebViewClient {
 
 	private static final String TAG = WebViewClientGm.class.getName();
 
-	private static final String JSCONTAINERSTART = "(function() {\n";
+	// approximate memory used to keep the injected code of user scripts
+	private static final long INJECTION_BUNDLE_CACHE_BYTES = 2 * 1024 * 1024;
 
-	private static final String JSCONTAINEREND = "\n})()";
+	// number of unredeemed secret tokens kept
+	private static final int SECRET_TOKEN_CACHE_SIZE = 16;
 
-	private static final String JSUNSAFEWINDOW = "unsafeWindow = (function() { var el = document.createElement('p'); el.setAttribute('onclick', 'return window;'); return el.onclick(); }()); window.wrappedJSObject = unsafeWindow;\n";
+	// completion value of a batch of scripts telling that it has run
+	private static final String JSBATCHEND = "true;\n";
 
-	private static final String JSMISSINGFUNCTION = "function() { GM_log(\"Called function not yet implemented\"); };\n";
+	// schedules an array of functions to run one by one when the page is idle
+	private static final String JSIDLESTART = "(function(tasks) {\n"
+			+ "var schedule = window.requestIdleCallback ? function(task) { window.requestIdleCallback(task, { timeout: 2000 }); } : function(task) { setTimeout(task, 0); };\n"
+			+ "var next = function() { tasks.shift()(); if (tasks.length > 0) { schedule(next); } };\n"
+			+ "schedule(next);\n" + "})([";
 
-	private static final String JSMISSINGFUNCTIONS = "var GM_info = "
-			+ JSMISSINGFUNCTION + "var GM_openInTab = " + JSMISSINGFUNCTION
-			+ "var GM_registerMenuCommand = " + JSMISSINGFUNCTION
-			+ "var GM_setClipboard = " + JSMISSINGFUNCTION;
+	private static final String JSIDLEEND = "]);\n";
+
+	private static final String JSIDLETASKSTART = "function() {\n";
+
+	private static final String JSIDLETASKEND = "}";
 
 	private ScriptStore scriptStore;
 
@@ -54,6 +70,31 @@ public class WebViewClientGm extends WebViewClient {
 
 	private String secret;
 
+	// random name of the shared GM runtime's global function
+	private final String runtimeName = "GM_runtime"
+			+ UUID.randomUUID().toString().replace("-", "");
+
+	private volatile String jsRuntime;
+
+	private ScriptRunListener scriptRunListener;
+
+	private volatile boolean htmlInjection;
+
+	// tokens written into HTML documents in place of the secret
+	private final ConcurrentLruCache<String, Boolean> secretTokens = new ConcurrentLruCache<String, Boolean>(
+			SECRET_TOKEN_CACHE_SIZE);
+
+	private final ConcurrentLruCache<ScriptId, InjectionBundle> injectionBundles = new ConcurrentLruCache<ScriptId, InjectionBundle>(
+			INJECTION_BUNDLE_CACHE_BYTES,
+			new ConcurrentLruCache.Weigher<InjectionBundle>() {
+
+				@Override
+				public int weigh(InjectionBundle bundle) {
+					return bundle.getWeight();
+				}
+
+			});
+
 	/**
 	 * Constructs a new WebViewClientGm with a ScriptStore.
 	 * 
@@ -81,13 +122,41 @@ public class WebViewClientGm extends WebViewClient {
 	 * JavaScript bridge methods require a secret that is set inside of each
 	 * user script's anonymous function.
 	 * 
+	 * The GM API is injected once per document as a shared runtime (see
+	 * GmRuntime) before the first script. Each script only binds the runtime's
+	 * functions to its own name, namespace and secret.
+	 * 
+	 * All scripts of a phase are injected together with the runtime in a single
+	 * call, each one inside its own try/catch block so that an exception thrown
+	 * by one script does not stop the others. A syntax error prevents the
+	 * whole batch from running; from KitKat on the scripts are then injected
+	 * again one by one, each skipped if the document holds the flag the batch
+	 * sets first.
+	 * 
+	 * The try block is a block scope for unwrapped scripts too: their
+	 * top-level var and function declarations still become properties of
+	 * the global object, but let, const and class declarations are only
+	 * visible to the script itself, not to the page or other scripts.
+	 * Running the source with an indirect eval instead would keep syntax
+	 * errors to the script but fail on pages whose Content Security Policy
+	 * does not allow eval, and would not make those declarations global
+	 * either.
+	 * 
+	 * Scripts with runAt property set to document-idle are run after those set
+	 * to document-end. They are scheduled in the page to run one after the
+	 * other when the page is idle (with requestIdleCallback, or setTimeout if
+	 * unsupported), so that they do not hold up rendering and input. Unwrapped
+	 * scripts cannot be deferred without losing their global scope, so they
+	 * run right away with the document-end scripts.
+	 * 
 	 * @param view
 	 *            the view to load scripts in
 	 * @param url
 	 *            the current address
 	 * @param pageFinished
-	 *            true if scripts with runAt property set to document-end or
-	 *            null should be run, false if set to document-start
+	 *            true if scripts with runAt property set to document-end,
+	 *            document-idle or null should be run, false if set to
+	 *            document-start
 	 * @param jsBeforeScript
 	 *            JavaScript code to add between the GM API and the start of the
 	 *            user script code (may be null)
@@ -101,6 +170,7 @@ public class WebViewClientGm extends WebViewClient {
 			Log.w(TAG, "Property scriptStore is null - not running any scripts");
 			return;
 		}
+		long start = SystemClock.uptimeMillis();
 		Script[] matchingScripts = scriptStore.get(url);
 		if (matchingScripts == null) {
 			return;
@@ -111,143 +181,362 @@ public class WebViewClientGm extends WebViewClient {
 		if (jsAfterScript == null) {
 			jsAfterScript = "";
 		}
+		if (pageFinished) {
+			runPhase(view, url, matchingScripts, Script.RUNATEND,
+					jsBeforeScript, jsAfterScript, start);
+			runPhase(view, url, matchingScripts, Script.RUNATIDLE,
+					jsBeforeScript, jsAfterScript, SystemClock.uptimeMillis());
+		} else {
+			runPhase(view, url, matchingScripts, Script.RUNATSTART,
+					jsBeforeScript, jsAfterScript, start);
+		}
+	}
+
+	/**
+	 * Runs the user scripts of one phase in a single call.
+	 * 
+	 * @param view
+	 *            the view to load scripts in
+	 * @param url
+	 *            the current address
+	 * @param matchingScripts
+	 *            the scripts enabled for the address
+	 * @param runAt
+	 *            the phase, Script.RUNATSTART, RUNATEND or RUNATIDLE
+	 * @param jsBeforeScript
+	 *            JavaScript code to add before the user script code
+	 * @param jsAfterScript
+	 *            JavaScript code to add after the user script code
+	 * @param start
+	 *            the uptime in milliseconds when preparing the phase started
+	 */
+	private void runPhase(final WebView view, final String url,
+			Script[] matchingScripts, final String runAt,
+			String jsBeforeScript, String jsAfterScript, long start) {
+		List<Script> phaseScripts = new ArrayList<Script>();
+		final List<String> jsScripts = new ArrayList<String>();
+		compileScripts(matchingScripts, runAt, secret, jsBeforeScript,
+				jsAfterScript, phaseScripts, jsScripts);
+		if (phaseScripts.isEmpty()) {
+			return;
+		}
+		logRunning(url, phaseScripts);
+		final Script[] scripts = phaseScripts.toArray(new Script[phaseScripts
+				.size()]);
+		final String runtime = getRuntime();
+		final String batchFlag = "\"" + runtimeName + "_batch"
+				+ UUID.randomUUID().toString().replace("-", "") + "\"";
+		StringBuilder jsBatch = compileBatch(runtime, jsScripts, runAt,
+				batchFlag);
+		final long prepareMillis = SystemClock.uptimeMillis() - start;
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+			final long injected = SystemClock.uptimeMillis();
+			view.evaluateJavascript(jsBatch.append(JSBATCHEND).toString(),
+					new ValueCallback<String>() {
+
+						@Override
+						public void onReceiveValue(String value) {
+							long runMillis = SystemClock.uptimeMillis()
+									- injected;
+							if (!"true".equals(value) && url.equals(view.getUrl())) {
+								// skipped by the document if the batch has run
+								Log.w(TAG, "Scripts on " + url
+										+ " may not have run in one batch - running them one by one");
+								evaluate(view, runtime);
+								String guard = "if (!Object.prototype.hasOwnProperty.call(window, "
+										+ batchFlag + ")) {\n";
+								for (String jsScript : jsScripts) {
+									evaluate(view, guard + jsScript + "}\n");
+								}
+							}
+							notifyScriptRunListener(url, runAt, scripts,
+									prepareMillis, runMillis);
+						}
+
+					});
+		} else {
+			view.loadUrl("javascript:\n" + jsBatch);
+			notifyScriptRunListener(url, runAt, scripts, prepareMillis, -1);
+		}
+	}
+
+	/**
+	 * Compiles the code of the scripts of a phase.
+	 * 
+	 * @param matchingScripts
+	 *            the scripts enabled for the address
+	 * @param runAt
+	 *            the phase, Script.RUNATSTART, RUNATEND or RUNATIDLE
+	 * @param secret
+	 *            the secret to add to calls of the GM API, or a token the
+	 *            runtime exchanges for it
+	 * @param jsBeforeScript
+	 *            JavaScript code to add before the user script code
+	 * @param jsAfterScript
+	 *            JavaScript code to add after the user script code
+	 * @param phaseScripts
+	 *            the list to add the scripts of the phase to
+	 * @param jsScripts
+	 *            the list to add the isolated code of each script to
+	 */
+	private void compileScripts(Script[] matchingScripts,
+			String runAt, String secret, String jsBeforeScript,
+			String jsAfterScript, List<Script> phaseScripts,
+			List<String> jsScripts) {
 		for (Script script : matchingScripts) {
-			if ((!pageFinished && Script.RUNATSTART.equals(script.getRunAt()))
-					|| (pageFinished && (script.getRunAt() == null || Script.RUNATEND
-							.equals(script.getRunAt())))) {
-				Log.i(TAG, "Running script \"" + script + "\" on " + url);
-				String defaultSignature = "\""
-						+ script.getName().replace("\"", "\\\"") + "\", \""
-						+ script.getNamespace().replace("\"", "\\\"")
-						+ "\", \"" + secret + "\"";
-				String callbackPrefix = ("GM_"
-						+ script.getName()
-						+ script.getNamespace()
-						+ UUID.randomUUID().toString())
-						.replaceAll("[^0-9a-zA-Z_]", "");
-				String jsApi = JSUNSAFEWINDOW;
-				jsApi += "var GM_listValues = function() { return "
-						+ jsBridgeName + ".listValues(" + defaultSignature
-						+ ").split(\",\"); };\n";
-				jsApi += "var GM_getValue = function(name, defaultValue) { return "
-						+ jsBridgeName
-						+ ".getValue("
-						+ defaultSignature
-						+ ", name, defaultValue); };\n";
-				jsApi += "var GM_setValue = function(name, value) { "
-						+ jsBridgeName + ".setValue(" + defaultSignature
-						+ ", name, value); };\n";
-				jsApi += "var GM_deleteValue = function(name) { "
-						+ jsBridgeName + ".deleteValue(" + defaultSignature
-						+ ", name); };\n";
-				jsApi += "var GM_addStyle = function(css) { "
-						+ "var style = document.createElement(\"style\"); "
-						+ "style.type = \"text/css\"; style.innerHTML = css; "
-						+ "document.getElementsByTagName('head')[0].appendChild(style); };\n";
-				jsApi += "var GM_log = function(message) { " + jsBridgeName
-						+ ".log(" + defaultSignature + ", message); };\n";
-				jsApi += "var GM_getResourceURL = function(resourceName) { return "
-						+ jsBridgeName
-						+ ".getResourceURL("
-						+ defaultSignature
-						+ ", resourceName); };\n";
-				jsApi += "var GM_getResourceText = function(resourceName) { return "
-						+ jsBridgeName
-						+ ".getResourceText("
-						+ defaultSignature
-						+ ", resourceName); };\n";
-				jsApi += "var GM_xmlhttpRequest = function(details) { \n"
-						+ "if (details.onabort) { unsafeWindow."
-						+ callbackPrefix
-						+ "GM_onAbortCallback = details.onabort;\n"
-						+ "details.onabort = '"
-						+ callbackPrefix
-						+ "GM_onAbortCallback'; }\n"
-						+ "if (details.onerror) { unsafeWindow."
-						+ callbackPrefix
-						+ "GM_onErrorCallback = details.onerror;\n"
-						+ "details.onerror = '"
-						+ callbackPrefix
-						+ "GM_onErrorCallback'; }\n"
-						+ "if (details.onload) { unsafeWindow."
-						+ callbackPrefix
-						+ "GM_onLoadCallback = details.onload;\n"
-						+ "details.onload = '"
-						+ callbackPrefix
-						+ "GM_onLoadCallback'; }\n"
-						+ "if (details.onprogress) { unsafeWindow."
-						+ callbackPrefix
-						+ "GM_onProgressCallback = details.onprogress;\n"
-						+ "details.onprogress = '"
-						+ callbackPrefix
-						+ "GM_onProgressCallback'; }\n"
-						+ "if (details.onreadystatechange) { unsafeWindow."
-						+ callbackPrefix
-						+ "GM_onReadyStateChange = details.onreadystatechange;\n"
-						+ "details.onreadystatechange = '"
-						+ callbackPrefix
-						+ "GM_onReadyStateChange'; }\n"
-						+ "if (details.ontimeout) { unsafeWindow."
-						+ callbackPrefix
-						+ "GM_onTimeoutCallback = details.ontimeout;\n"
-						+ "details.ontimeout = '"
-						+ callbackPrefix
-						+ "GM_onTimeoutCallback'; }\n"
-						+ "if (details.upload) {\n"
-						+ "if (details.upload.onabort) { unsafeWindow."
-						+ callbackPrefix
-						+ "GM_uploadOnAbortCallback = details.upload.onabort;\n"
-						+ "details.upload.onabort = '"
-						+ callbackPrefix
-						+ "GM_uploadOnAbortCallback'; }\n"
-						+ "if (details.upload.onerror) { unsafeWindow."
-						+ callbackPrefix
-						+ "GM_uploadOnErrorCallback = details.upload.onerror;\n"
-						+ "details.upload.onerror = '"
-						+ callbackPrefix
-						+ "GM_uploadOnErrorCallback'; }\n"
-						+ "if (details.upload.onload) { unsafeWindow."
-						+ callbackPrefix
-						+ "GM_uploadOnLoadCallback = details.upload.onload;\n"
-						+ "details.upload.onload = '"
-						+ callbackPrefix
-						+ "GM_uploadOnLoadCallback'; }\n"
-						+ "if (details.upload.onprogress) { unsafeWindow."
-						+ callbackPrefix
-						+ "GM_uploadOnProgressCallback = details.upload.onprogress;\n"
-						+ "details.upload.onprogress = '"
-						+ callbackPrefix
-						+ "GM_uploadOnProgressCallback'; }\n"
-						+ "}\n"
-						+ "return JSON.parse("
-						+ jsBridgeName
-						+ ".xmlHttpRequest("
-						+ defaultSignature
-						+ ", JSON.stringify(details))); };\n";
-				// TODO implement missing functions
-				jsApi += JSMISSINGFUNCTIONS;
-
-				// Get @require'd scripts to inject for this script.
-				String jsAllRequires = "";
-				ScriptRequire[] requires = script.getRequires();
-				if (requires != null) {
-					for (ScriptRequire currentRequire : requires) {
-						jsAllRequires += (currentRequire.getContent() + "\n");
-					}
+			if (runAt.equals(getPhase(script))) {
+				phaseScripts.add(script);
+				jsScripts.add(isolate(script, getInjectionBundle(script)
+						.inject(secret, jsBeforeScript, jsAfterScript)));
+			}
+		}
+	}
+
+	/**
+	 * @param script
+	 *            a user script
+	 * @return the phase the script is run in
+	 */
+	private static String getPhase(Script script) {
+		String runAt = script.getRunAt();
+		if (Script.RUNATSTART.equals(runAt)) {
+			return Script.RUNATSTART;
+		}
+		if (Script.RUNATIDLE.equals(runAt) && !script.isUnwrap()) {
+			return Script.RUNATIDLE;
+		}
+		return Script.RUNATEND;
+	}
+
+	/**
+	 * Concatenates the runtime and the code of the scripts of a phase.
+	 * 
+	 * @param runtime
+	 *            the code of the shared GM runtime
+	 * @param jsScripts
+	 *            the isolated code of each script
+	 * @param runAt
+	 *            the phase, Script.RUNATSTART, RUNATEND or RUNATIDLE
+	 * @param batchFlag
+	 *            the quoted name of the global property the batch defines
+	 *            first to mark that it has run in the document; null to not
+	 *            define one
+	 * @return the batch of code
+	 */
+	private StringBuilder compileBatch(String runtime, List<String> jsScripts,
+			String runAt, String batchFlag) {
+		int length = runtime.length() + JSBATCHEND.length() + 256
+				+ JSIDLESTART.length() + JSIDLEEND.length();
+		for (String jsScript : jsScripts) {
+			length += jsScript.length() + JSIDLETASKSTART.length()
+					+ JSIDLETASKEND.length() + 1;
+		}
+		StringBuilder jsBatch = new StringBuilder(length);
+		// skipped if already run from the HTML document
+		boolean documentStart = Script.RUNATSTART.equals(runAt)
+				&& htmlInjection;
+		boolean idle = Script.RUNATIDLE.equals(runAt);
+		if (batchFlag != null) {
+			jsBatch.append("Object.defineProperty(window, ").append(batchFlag)
+					.append(", { value: true });\n");
+		}
+		if (documentStart) {
+			String flag = "\"" + runtimeName + "_documentStart\"";
+			jsBatch.append("if (!Object.prototype.hasOwnProperty.call(window, ")
+					.append(flag).append(")) {\n")
+					.append("Object.defineProperty(window, ").append(flag)
+					.append(", { value: true });\n");
+		}
+		jsBatch.append(runtime);
+		if (idle) {
+			jsBatch.append(JSIDLESTART);
+			for (int i = 0; i < jsScripts.size(); i++) {
+				if (i > 0) {
+					jsBatch.append(',');
 				}
+				jsBatch.append(JSIDLETASKSTART).append(jsScripts.get(i))
+						.append(JSIDLETASKEND);
+			}
+			jsBatch.append(JSIDLEEND);
+		} else {
+			for (String jsScript : jsScripts) {
+				jsBatch.append(jsScript);
+			}
+		}
+		if (documentStart) {
+			jsBatch.append("}\n");
+		}
+		return jsBatch;
+	}
 
-                String jsCode = jsApi + jsAllRequires + jsBeforeScript + script
-                        .getContent() + jsAfterScript;
-                if (!script.isUnwrap()) {
-                    jsCode = JSCONTAINERSTART + jsCode + JSCONTAINEREND;
-                }
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
-                    view.evaluateJavascript(jsCode, null);
-                } else {
-                    view.loadUrl("javascript:\n" + jsCode);
-                }
+	/**
+	 * Loads main frame documents in place of the WebView if HTML injection is
+	 * enabled, to run document-start scripts from a script element at the
+	 * start of the document's head.
+	 * 
+	 * The secret is not written into the document. Its place is taken by a
+	 * one-time token, which the runtime exchanges for the secret through the
+	 * JavaScript bridge (see WebViewGmApi.redeemToken).
+	 * 
+	 * @see #setHtmlInjection(boolean)
+	 */
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+	@Override
+	public WebResourceResponse shouldInterceptRequest(WebView view,
+			WebResourceRequest request) {
+		if (htmlInjection && scriptStore != null && request.isForMainFrame()
+				&& "GET".equals(request.getMethod())) {
+			String url = request.getUrl().toString();
+			if (url.startsWith("http://") || url.startsWith("https://")) {
+				Script[] matchingScripts = scriptStore.get(url);
+				if (matchingScripts != null) {
+					List<Script> phaseScripts = new ArrayList<Script>();
+					List<String> jsScripts = new ArrayList<String>();
+					String token = GmRuntime.TOKEN_PREFIX
+							+ UUID.randomUUID().toString().replace("-", "");
+					compileScripts(matchingScripts, Script.RUNATSTART, token,
+							"", "", phaseScripts, jsScripts);
+					if (!phaseScripts.isEmpty()) {
+						secretTokens.put(token, Boolean.TRUE);
+						WebResourceResponse response = HtmlInjector.load(url,
+								request.getRequestHeaders(),
+								compileBatch(getRuntime(), jsScripts,
+										Script.RUNATSTART, null).toString());
+						if (response != null) {
+							logRunning(url, phaseScripts);
+							return response;
+						}
+						secretTokens.remove(token);
+					}
+				}
 			}
 		}
+		return super.shouldInterceptRequest(view, request);
+	}
+
+	/**
+	 * Exchanges a token written into an HTML document for the secret. Each
+	 * token can only be exchanged once.
+	 * 
+	 * @param token
+	 *            the token
+	 * @return the secret; null if the token is unknown or has already been
+	 *         exchanged
+	 */
+	synchronized String redeemSecretToken(String token) {
+		if (token == null || secretTokens.get(token) == null) {
+			return null;
+		}
+		secretTokens.remove(token);
+		return secret;
+	}
+
+	/**
+	 * Wraps the code of a user script into a try/catch block logging any
+	 * exception to the console.
+	 * 
+	 * For unwrapped scripts this limits top-level let, const and class
+	 * declarations to the block (see runMatchingScripts).
+	 * 
+	 * @param script
+	 *            the user script
+	 * @param jsCode
+	 *            the code running the user script
+	 * @return the wrapped code
+	 */
+	static String isolate(Script script, String jsCode) {
+		StringBuilder jsScript = new StringBuilder(jsCode.length() + 128);
+		jsScript.append("try {\n").append(jsCode)
+				.append("\n} catch (e) { console.error(");
+		WebViewGmApi.appendJsonString(jsScript, "Error in user script \""
+				+ script + "\": ");
+		return jsScript.append(" + e); }\n").toString();
+	}
+
+	/**
+	 * Logs the scripts about to run on a page.
+	 * 
+	 * @param url
+	 *            the address of the page
+	 * @param scripts
+	 *            the scripts injected
+	 */
+	private static void logRunning(String url, List<Script> scripts) {
+		for (Script script : scripts) {
+			Log.i(TAG, "Running script \"" + script + "\" on " + url);
+		}
+	}
+
+	/**
+	 * Passes the timing of a phase to the listener if one is set.
+	 * 
+	 * @param url
+	 *            the address of the page
+	 * @param runAt
+	 *            the phase
+	 * @param scripts
+	 *            the scripts run
+	 * @param prepareMillis
+	 *            the time spent building the code to inject
+	 * @param runMillis
+	 *            the time spent running the code; -1 if unknown
+	 */
+	private void notifyScriptRunListener(String url, String runAt,
+			Script[] scripts, long prepareMillis, long runMillis) {
+		ScriptRunListener listener = scriptRunListener;
+		if (listener != null) {
+			listener.onScriptsRun(url, runAt, scripts, prepareMillis, runMillis);
+		}
+	}
+
+	/**
+	 * Runs JavaScript code in a view.
+	 * 
+	 * @param view
+	 *            the view to run the code in
+	 * @param jsCode
+	 *            the code to run
+	 */
+	private static void evaluate(WebView view, String jsCode) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+			view.evaluateJavascript(jsCode, null);
+		} else {
+			view.loadUrl("javascript:\n" + jsCode);
+		}
+	}
+
+	/**
+	 * Gets the code of the shared GM runtime, compiling it unless already
+	 * compiled for the current bridge name.
+	 * 
+	 * @return the compiled runtime
+	 */
+	private String getRuntime() {
+		String runtime = jsRuntime;
+		if (runtime == null) {
+			runtime = GmRuntime.compile(runtimeName, jsBridgeName);
+			jsRuntime = runtime;
+		}
+		return runtime;
+	}
+
+	/**
+	 * Gets the code to inject for a user script, compiling it unless already
+	 * compiled from the same user script code.
+	 * 
+	 * @param script
+	 *            the user script to run
+	 * @return the compiled code
+	 */
+	private InjectionBundle getInjectionBundle(Script script) {
+		ScriptId key = new ScriptId(script.getName(), script.getNamespace());
+		InjectionBundle bundle = injectionBundles.get(key);
+		if (bundle == null
+				|| !bundle.isCompiledFrom(script, runtimeName)) {
+			bundle = new InjectionBundle(script, runtimeName);
+			injectionBundles.put(key, bundle);
+		}
+		return bundle;
 	}
 
 	@Override
@@ -288,6 +577,7 @@ public class WebViewClientGm extends WebViewClient {
 	 */
 	public void setJsBridgeName(String jsBridgeName) {
 		this.jsBridgeName = jsBridgeName;
+		jsRuntime = null;
 	}
 
 	/**
@@ -305,4 +595,73 @@ public class WebViewClientGm extends WebViewClient {
 		this.secret = secret;
 	}
 
+	/**
+	 * @return true if document-start scripts are injected into HTML documents
+	 */
+	public boolean isHtmlInjection() {
+		return htmlInjection;
+	}
+
+	/**
+	 * Enables injecting document-start scripts into the HTML of main frame
+	 * documents as they are loaded, so that they run before any script of the
+	 * page. Only used from Lollipop on, for GET requests of http and https
+	 * addresses. The documents are loaded with HttpURLConnection, sharing the
+	 * WebView's cookies, and streamed to the WebView with a script element
+	 * spliced into the head. Scripts are still injected when the page starts
+	 * loading, and run from there if they have not already run from the HTML
+	 * (e.g. on redirects, for other documents or if the page's content
+	 * security policy forbids inline scripts).
+	 * 
+	 * @param htmlInjection
+	 *            true to enable HTML injection
+	 */
+	public void setHtmlInjection(boolean htmlInjection) {
+		this.htmlInjection = htmlInjection;
+	}
+
+	/**
+	 * @return the scriptRunListener
+	 */
+	public ScriptRunListener getScriptRunListener() {
+		return scriptRunListener;
+	}
+
+	/**
+	 * @param scriptRunListener
+	 *            the listener to notify when the scripts of a phase have run
+	 *            (may be null)
+	 */
+	public void setScriptRunListener(ScriptRunListener scriptRunListener) {
+		this.scriptRunListener = scriptRunListener;
+	}
+
+	/**
+	 * Listener notified on the UI thread each time the user scripts of a phase
+	 * have been run on a page.
+	 */
+	public interface ScriptRunListener {
+
+		/**
+		 * Called after the scripts of a phase have been run.
+		 * 
+		 * @param url
+		 *            the address of the page
+		 * @param runAt
+		 *            the phase, Script.RUNATSTART, RUNATEND or RUNATIDLE
+		 * @param scripts
+		 *            the scripts run
+		 * @param prepareMillis
+		 *            the time spent looking up the scripts and building the
+		 *            code to inject
+		 * @param runMillis
+		 *            the time from injecting the code until the page returned
+		 *            from running it (document-idle scripts have only been
+		 *            scheduled by then); -1 if unknown (before KitKat)
+		 */
+		void onScriptsRun(String url, String runAt, Script[] scripts,
+				long prepareMillis, long runMillis);
+
+	}
+
 }
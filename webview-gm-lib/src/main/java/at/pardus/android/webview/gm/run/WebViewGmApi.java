@@ -19,6 +19,14 @@ package at.pardus.android.webview.gm.run;
 import android.util.Log;
 import android.webkit.JavascriptInterface;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
 import at.pardus.android.webview.gm.model.Script;
 import at.pardus.android.webview.gm.model.ScriptId;
 import at.pardus.android.webview.gm.model.ScriptResource;
@@ -38,6 +46,8 @@ public class WebViewGmApi {
 
 	private String secret;
 
+	private AsyncValueExecutor asyncValueExecutor;
+
 	/**
 	 * Constructor.
 	 * 
@@ -50,6 +60,25 @@ public class WebViewGmApi {
 		this.view = view;
 		this.scriptStore = scriptStore;
 		this.secret = secret;
+		this.asyncValueExecutor = new AsyncValueExecutor(view, scriptStore);
+	}
+
+	/**
+	 * Exchanges a one-time token written into an HTML document for the secret
+	 * (see WebViewClientGm.setHtmlInjection).
+	 * 
+	 * @param token
+	 *            the token
+	 * @return the secret; null if the token is invalid or has already been
+	 *         exchanged
+	 */
+    @JavascriptInterface
+	public String redeemToken(String token) {
+		String secret = view.getWebViewClient().redeemSecretToken(token);
+		if (secret == null) {
+			Log.e(TAG, "Call to \"redeemToken\" did not supply a valid token");
+		}
+		return secret;
 	}
 
 	/**
@@ -61,8 +90,7 @@ public class WebViewGmApi {
 	 *            the namespace of the calling script
 	 * @param secret
 	 *            the transmitted secret to validate
-	 * @return a string consisting of the names of all found values separated by
-	 *         commas
+	 * @return a JSON array of the names of all found values
 	 * @see <a href="http://wiki.greasespot.net/GM_listValues">GM_listValues</a>
 	 */
     @JavascriptInterface
@@ -72,17 +100,17 @@ public class WebViewGmApi {
 			Log.e(TAG, "Call to \"listValues\" did not supply correct secret");
 			return null;
 		}
-		String[] values = scriptStore.getValueNames(new ScriptId(scriptName,
+		String[] names = scriptStore.getValueNames(new ScriptId(scriptName,
 				scriptNamespace));
-		if (values == null || values.length == 0) {
-			return "";
+		if (names == null) {
+			return null;
 		}
-		StringBuilder sb = new StringBuilder();
-		for (String v : values) {
-			sb.append(",");
-			sb.append(v);
+		int length = 2;
+		for (String name : names) {
+			length += name.length() + 3;
 		}
-		sb.deleteCharAt(0);
+		StringBuilder sb = new StringBuilder(length);
+		appendJsonArray(sb, names);
 		return sb.toString();
 	}
 
@@ -164,6 +192,155 @@ public class WebViewGmApi {
 				.deleteValue(new ScriptId(scriptName, scriptNamespace), name);
 	}
 
+	/**
+	 * Gets several values at once (GM_getValues).
+	 * 
+	 * @param scriptName
+	 *            the name of the calling script
+	 * @param scriptNamespace
+	 *            the namespace of the calling script
+	 * @param secret
+	 *            the transmitted secret to validate
+	 * @param jsonNames
+	 *            the names of the values to get as JSON array
+	 * @return a JSON object mapping the names to the values found
+	 */
+    @JavascriptInterface
+	public String getValues(String scriptName, String scriptNamespace,
+			String secret, String jsonNames) {
+		if (!this.secret.equals(secret)) {
+			Log.e(TAG, "Call to \"getValues\" did not supply correct secret");
+			return null;
+		}
+		String[] names = parseNames(jsonNames);
+		if (names == null) {
+			return null;
+		}
+		String[] values = scriptStore.getValues(new ScriptId(scriptName,
+				scriptNamespace), names);
+		if (values == null) {
+			return null;
+		}
+		int length = 2;
+		for (int i = 0; i < names.length; i++) {
+			if (values[i] != null) {
+				length += names[i].length() + values[i].length() + 6;
+			}
+		}
+		StringBuilder sb = new StringBuilder(length);
+		sb.append('{');
+		for (int i = 0; i < names.length; i++) {
+			if (values[i] == null) {
+				continue;
+			}
+			if (sb.length() > 1) {
+				sb.append(',');
+			}
+			appendJsonString(sb, names[i]);
+			sb.append(':');
+			appendJsonString(sb, values[i]);
+		}
+		return sb.append('}').toString();
+	}
+
+	/**
+	 * Sets several values at once (GM_setValues).
+	 * 
+	 * @param scriptName
+	 *            the name of the calling script
+	 * @param scriptNamespace
+	 *            the namespace of the calling script
+	 * @param secret
+	 *            the transmitted secret to validate
+	 * @param jsonValues
+	 *            the values to set mapped to their names as JSON object
+	 */
+    @JavascriptInterface
+	public void setValues(String scriptName, String scriptNamespace,
+			String secret, String jsonValues) {
+		if (!this.secret.equals(secret)) {
+			Log.e(TAG, "Call to \"setValues\" did not supply correct secret");
+			return;
+		}
+		Map<String, String> values = new HashMap<String, String>();
+		try {
+			JSONObject jsonObject = new JSONObject(jsonValues);
+			Iterator<?> names = jsonObject.keys();
+			while (names.hasNext()) {
+				String name = (String) names.next();
+				values.put(name, jsonObject.getString(name));
+			}
+		} catch (JSONException e) {
+			Log.e(TAG, "JSON parsing exception:" + e.getMessage());
+			return;
+		}
+		scriptStore.setValues(new ScriptId(scriptName, scriptNamespace),
+				values);
+	}
+
+	/**
+	 * Deletes several values at once (GM_deleteValues).
+	 * 
+	 * @param scriptName
+	 *            the name of the calling script
+	 * @param scriptNamespace
+	 *            the namespace of the calling script
+	 * @param secret
+	 *            the transmitted secret to validate
+	 * @param jsonNames
+	 *            the names of the values to delete as JSON array
+	 */
+    @JavascriptInterface
+	public void deleteValues(String scriptName, String scriptNamespace,
+			String secret, String jsonNames) {
+		if (!this.secret.equals(secret)) {
+			Log.e(TAG, "Call to \"deleteValues\" did not supply correct secret");
+			return;
+		}
+		String[] names = parseNames(jsonNames);
+		if (names == null) {
+			return;
+		}
+		scriptStore.deleteValues(new ScriptId(scriptName, scriptNamespace),
+				names);
+	}
+
+	/**
+	 * Queues a request of the asynchronous value API (GM.getValue,
+	 * GM.setValue, GM.deleteValue and GM.listValues) and returns immediately.
+	 * The result is passed to the given callback later.
+	 * 
+	 * @param scriptName
+	 *            the name of the calling script
+	 * @param scriptNamespace
+	 *            the namespace of the calling script
+	 * @param secret
+	 *            the transmitted secret to validate
+	 * @param callback
+	 *            the name of the global function to call with an array of
+	 *            [requestId, result] pairs
+	 * @param requestId
+	 *            the number identifying the request to the callback
+	 * @param operation
+	 *            one of "get", "set", "delete" and "list"
+	 * @param name
+	 *            the name of the value to get, set or delete
+	 * @param value
+	 *            the value to set
+	 * @see <a href="https://wiki.greasespot.net/GM.getValue">GM.getValue</a>
+	 */
+    @JavascriptInterface
+	public void requestValue(String scriptName, String scriptNamespace,
+			String secret, String callback, int requestId, String operation,
+			String name, String value) {
+		if (!this.secret.equals(secret)) {
+			Log.e(TAG, "Call to \"requestValue\" did not supply correct secret");
+			return;
+		}
+		asyncValueExecutor.submit(new ScriptId(scriptName, scriptNamespace),
+				callback, requestId, operation, name, value);
+	}
+
 	/**
 	 * Equivalent of GM_log. Output in Android log.
 	 * 
@@ -298,4 +475,94 @@ public class WebViewGmApi {
 
 		return "";
 	}
+
+	/**
+	 * Appends strings as JSON array, that can also be evaluated as
+	 * JavaScript.
+	 * 
+	 * @param sb
+	 *            the builder to append to
+	 * @param strs
+	 *            the strings to append
+	 */
+	static void appendJsonArray(StringBuilder sb, String[] strs) {
+		sb.append('[');
+		for (int i = 0; i < strs.length; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			appendJsonString(sb, strs[i]);
+		}
+		sb.append(']');
+	}
+
+	/**
+	 * Appends a string as quoted and escaped JSON string, that can also be
+	 * evaluated as JavaScript.
+	 * 
+	 * @param sb
+	 *            the builder to append to
+	 * @param str
+	 *            the string to append
+	 */
+	static void appendJsonString(StringBuilder sb, String str) {
+		sb.append('"');
+		int len = str.length();
+		int start = 0;
+		for (int i = 0; i < len; i++) {
+			char c = str.charAt(i);
+			if (c >= 0x20 && c != '"' && c != '\\' && c != '\u2028'
+					&& c != '\u2029') {
+				continue;
+			}
+			sb.append(str, start, i);
+			start = i + 1;
+			switch (c) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				sb.append("\\u");
+				String hex = Integer.toHexString(c);
+				for (int j = hex.length(); j < 4; j++) {
+					sb.append('0');
+				}
+				sb.append(hex);
+			}
+		}
+		sb.append(str, start, len).append('"');
+	}
+
+	/**
+	 * Parses the names of values passed as JSON array.
+	 * 
+	 * @param jsonNames
+	 *            the JSON array of names
+	 * @return the names; null if not a valid JSON array
+	 */
+	private static String[] parseNames(String jsonNames) {
+		try {
+			JSONArray jsonArray = new JSONArray(jsonNames);
+			String[] names = new String[jsonArray.length()];
+			for (int i = 0; i < names.length; i++) {
+				names[i] = jsonArray.getString(i);
+			}
+			return names;
+		} catch (JSONException e) {
+			Log.e(TAG, "JSON parsing exception:" + e.getMessage());
+			return null;
+		}
+	}
 }
@@ -0,0 +1,337 @@
+/*
+ *    Copyright 2012 Werner Bayer
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package at.pardus.android.webview.gm.store;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import at.pardus.android.webview.gm.model.ScriptCriteria;
+import at.pardus.android.webview.gm.model.ScriptId;
+import at.pardus.android.webview.gm.util.AhoCorasick;
+import at.pardus.android.webview.gm.util.CriterionMatcher;
+import at.pardus.android.webview.gm.util.ParsedUrl;
+
+/**
+ * Immutable index of user script matching criteria.
+ *
+ * Each include/match pattern of a script is filed under the schemes and hosts
+ * it is anchored to (either an exact host or a domain including its
+ * subdomains) or, failing that, under a literal string every matching URL has
+ * to contain. A URL only needs to be tested against the scripts with a pattern
+ * filed under the URL's host or its parent domains or under a literal found in
+ * the URL, which are all searched for in a single scan. Scripts with a pattern
+ * that can be filed under neither (or without any include/match patterns) are
+ * tested against every URL.
+ */
+class CriteriaIndex {
+
+	private static final String WILDCARD_SUBDOMAINS = "://*.";
+
+	private final ScriptCriteria[] scriptCriteriaArr;
+
+	private final ScriptId[] scriptIds;
+
+	private final Map<String, int[]> hostScripts = new HashMap<String, int[]>();
+
+	private final Map<String, int[]> domainScripts = new HashMap<String, int[]>();
+
+	private final AhoCorasick literals;
+
+	private final int[][] literalScripts;
+
+	private final int[] anyUrlScripts;
+
+	private final boolean fragmentsIgnored;
+
+	/**
+	 * Builds an index of the given script criteria.
+	 *
+	 * @param scriptCriteriaArr
+	 *            the criteria of all scripts to be matched
+	 */
+	public CriteriaIndex(ScriptCriteria[] scriptCriteriaArr) {
+		this.scriptCriteriaArr = scriptCriteriaArr;
+		this.scriptIds = new ScriptId[scriptCriteriaArr.length];
+		Map<String, List<Integer>> hosts = new HashMap<String, List<Integer>>();
+		Map<String, List<Integer>> domains = new HashMap<String, List<Integer>>();
+		Map<String, List<Integer>> literalMap = new LinkedHashMap<String, List<Integer>>();
+		List<Integer> anyUrl = new ArrayList<Integer>();
+		boolean ignored = true;
+		for (int i = 0; i < scriptCriteriaArr.length; i++) {
+			ScriptCriteria criteria = scriptCriteriaArr[i];
+			scriptIds[i] = new ScriptId(criteria.getName(),
+					criteria.getNamespace());
+			CriterionMatcher[] include = criteria.getIncludeMatchers();
+			CriterionMatcher[] match = criteria.getMatchMatchers();
+			ignored = ignored
+					&& ignoreFragment(criteria.getExcludeMatchers())
+					&& ignoreFragment(include) && ignoreFragment(match);
+			if ((include == null || include.length == 0)
+					&& (match == null || match.length == 0)) {
+				anyUrl.add(i);
+				continue;
+			}
+			if (!file(include, i, hosts, domains, literalMap)
+					|| !file(match, i, hosts, domains, literalMap)) {
+				anyUrl.add(i);
+			}
+		}
+		for (Map.Entry<String, List<Integer>> entry : hosts.entrySet()) {
+			hostScripts.put(entry.getKey(), toArray(entry.getValue()));
+		}
+		for (Map.Entry<String, List<Integer>> entry : domains.entrySet()) {
+			domainScripts.put(entry.getKey(), toArray(entry.getValue()));
+		}
+		literals = new AhoCorasick(literalMap.keySet().toArray(
+				new String[literalMap.size()]));
+		literalScripts = new int[literalMap.size()][];
+		int j = 0;
+		for (List<Integer> scripts : literalMap.values()) {
+			literalScripts[j++] = toArray(scripts);
+		}
+		anyUrlScripts = toArray(anyUrl);
+		fragmentsIgnored = ignored;
+	}
+
+	/**
+	 * @return the indexed criteria
+	 */
+	public ScriptCriteria[] getScriptCriteriaArr() {
+		return scriptCriteriaArr;
+	}
+
+	/**
+	 * @return true if none of the indexed criteria depends on the fragment of
+	 *         a URL, i.e. cache keys do not include fragments
+	 */
+	public boolean ignoresFragments() {
+		return fragmentsIgnored;
+	}
+
+	/**
+	 * Builds the key under which the scripts matching a URL can be cached.
+	 *
+	 * URLs differing only in case or (if no indexed criterion depends on it)
+	 * in their fragment are matched by the same scripts and get the same key.
+	 *
+	 * @param url
+	 *            the URL to match
+	 * @return the normalized URL
+	 */
+	public String getCacheKey(ParsedUrl url) {
+		String lowerCaseUrl = url.getLowerCase();
+		if (fragmentsIgnored) {
+			return lowerCaseUrl.substring(0, url.getFragmentStart());
+		}
+		return lowerCaseUrl;
+	}
+
+	/**
+	 * Finds all scripts that need to be run for the given URL.
+	 *
+	 * Gives the same results as testing the URL against each script's
+	 * criteria.
+	 *
+	 * @param url
+	 *            the URL to match
+	 * @return an array of matching user script IDs in the order of the
+	 *         indexed criteria; an empty array if none matched
+	 */
+	public ScriptId[] getMatchingScriptIds(ParsedUrl url) {
+		Candidates candidates = new Candidates();
+		candidates.addAll(anyUrlScripts);
+		String hostKey = url.getHostKey();
+		if (hostKey != null) {
+			candidates.addAll(hostScripts.get(hostKey));
+			if (!domainScripts.isEmpty()) {
+				int hostStart = hostKey.indexOf("://") + 3;
+				String scheme = hostKey.substring(0, hostStart);
+				for (int i = hostStart; i != 0; i = hostKey.indexOf('.', i) + 1) {
+					candidates.addAll(domainScripts
+							.get((i == hostStart) ? hostKey : scheme
+									+ hostKey.substring(i)));
+				}
+			}
+		}
+		if (literalScripts.length > 0) {
+			boolean[] found = new boolean[literalScripts.length];
+			literals.findAll(url.getLowerCase(), found);
+			for (int i = 0; i < found.length; i++) {
+				if (found[i]) {
+					candidates.addAll(literalScripts[i]);
+				}
+			}
+		}
+		candidates.sort();
+		List<ScriptId> matches = new ArrayList<ScriptId>();
+		int previous = -1;
+		for (int j = 0; j < candidates.size; j++) {
+			int i = candidates.indices[j];
+			if (i != previous && scriptCriteriaArr[i].testUrl(url)) {
+				matches.add(scriptIds[i]);
+			}
+			previous = i;
+		}
+		return matches.toArray(new ScriptId[matches.size()]);
+	}
+
+	/**
+	 * Files a script's include/match patterns under the schemes and hosts they
+	 * are anchored to or under a literal they require.
+	 *
+	 * @param matchers
+	 *            the compiled patterns to file (may be null)
+	 * @param index
+	 *            the index of the script
+	 * @param hosts
+	 *            the scripts mapped to exact schemes and hosts (output)
+	 * @param domains
+	 *            the scripts mapped to schemes and domains (output)
+	 * @param literalMap
+	 *            the scripts mapped to required literals (output)
+	 * @return false if any of the patterns can be filed under neither, true
+	 *         else
+	 */
+	private static boolean file(CriterionMatcher[] matchers, int index,
+			Map<String, List<Integer>> hosts,
+			Map<String, List<Integer>> domains,
+			Map<String, List<Integer>> literalMap) {
+		if (matchers == null) {
+			return true;
+		}
+		for (CriterionMatcher matcher : matchers) {
+			String[] hostKeys = matcher.getHostKeys();
+			if (hostKeys != null) {
+				for (String host : hostKeys) {
+					int wildcard = host.indexOf(WILDCARD_SUBDOMAINS);
+					if (wildcard == -1) {
+						add(hosts, host, index);
+					} else {
+						add(domains,
+								host.substring(0, wildcard + 3)
+										+ host.substring(wildcard
+												+ WILDCARD_SUBDOMAINS.length()),
+								index);
+					}
+				}
+				continue;
+			}
+			String literal = matcher.getRequiredLiteral();
+			if (literal == null) {
+				return false;
+			}
+			add(literalMap, literal, index);
+		}
+		return true;
+	}
+
+	/**
+	 * @param matchers
+	 *            compiled patterns (may be null)
+	 * @return true if none of the patterns depends on the fragment of a URL
+	 */
+	private static boolean ignoreFragment(CriterionMatcher[] matchers) {
+		if (matchers == null) {
+			return true;
+		}
+		for (CriterionMatcher matcher : matchers) {
+			if (!matcher.ignoresFragment()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Adds a script index to the list mapped to a key unless it is already
+	 * the last one.
+	 *
+	 * @param map
+	 *            the map to add to
+	 * @param key
+	 *            the key
+	 * @param index
+	 *            the script index to add
+	 */
+	private static void add(Map<String, List<Integer>> map, String key,
+			int index) {
+		List<Integer> indices = map.get(key);
+		if (indices == null) {
+			indices = new ArrayList<Integer>();
+			map.put(key, indices);
+		} else if (indices.get(indices.size() - 1) == index) {
+			return;
+		}
+		indices.add(index);
+	}
+
+	/**
+	 * @param list
+	 *            a list of integers
+	 * @return the list as int array
+	 */
+	private static int[] toArray(List<Integer> list) {
+		int[] arr = new int[list.size()];
+		for (int i = 0; i < arr.length; i++) {
+			arr[i] = list.get(i);
+		}
+		return arr;
+	}
+
+	/**
+	 * Indices of the scripts to test a URL against, collected from the
+	 * buckets it falls into. Only as large as the buckets, independent of the
+	 * number of indexed scripts; may contain duplicates.
+	 */
+	private static class Candidates {
+
+		private int[] indices = new int[16];
+
+		private int size;
+
+		/**
+		 * @param bucket
+		 *            the script indices to add (may be null)
+		 */
+		public void addAll(int[] bucket) {
+			if (bucket == null) {
+				return;
+			}
+			if (size + bucket.length > indices.length) {
+				int[] grown = new int[Math.max(size + bucket.length,
+						indices.length * 2)];
+				System.arraycopy(indices, 0, grown, 0, size);
+				indices = grown;
+			}
+			System.arraycopy(bucket, 0, indices, size, bucket.length);
+			size += bucket.length;
+		}
+
+		/**
+		 * Sorts the indices into script order.
+		 */
+		public void sort() {
+			Arrays.sort(indices, 0, size);
+		}
+
+	}
+
+}
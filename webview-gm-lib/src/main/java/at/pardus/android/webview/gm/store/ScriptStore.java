@@ -16,6 +16,8 @@
 
 package at.pardus.android.webview.gm.store;
 
+import java.util.Map;
+
 import at.pardus.android.webview.gm.model.Script;
 import at.pardus.android.webview.gm.model.ScriptId;
 
@@ -129,4 +131,36 @@ public interface ScriptStore {
 	 */
     void deleteValue(ScriptId id, String name);
 
+	/**
+	 * Gets several values of a user script at once.
+	 * 
+	 * @param id
+	 *            the owner script
+	 * @param names
+	 *            the keys
+	 * @return an array of the values in the order of the keys, containing
+	 *         null for any value not found; null on any error
+	 */
+    String[] getValues(ScriptId id, String[] names);
+
+	/**
+	 * Sets several name-value pairs for a user script at once.
+	 * 
+	 * @param id
+	 *            the owner script
+	 * @param values
+	 *            the values mapped to their keys
+	 */
+    void setValues(ScriptId id, Map<String, String> values);
+
+	/**
+	 * Deletes several name-value pairs stored by a user script at once.
+	 * 
+	 * @param id
+	 *            the owner script
+	 * @param names
+	 *            the keys
+	 */
+    void deleteValues(ScriptId id, String[] names);
+
 }
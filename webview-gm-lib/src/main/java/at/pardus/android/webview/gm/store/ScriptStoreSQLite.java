@@ -16,55 +16,140 @@
 
 package at.pardus.android.webview.gm.store;
 
+import android.annotation.TargetApi;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import at.pardus.android.webview.gm.model.Script;
 import at.pardus.android.webview.gm.model.ScriptCriteria;
 import at.pardus.android.webview.gm.model.ScriptId;
 import at.pardus.android.webview.gm.model.ScriptRequire;
 import at.pardus.android.webview.gm.model.ScriptResource;
+import at.pardus.android.webview.gm.util.ConcurrentLruCache;
+import at.pardus.android.webview.gm.util.ParsedUrl;
 
 /**
  * Implements a ScriptStore using an SQLite database to persist user scripts and
  * values.
  * 
- * Uses an LRU cache of user scripts matching URLs and a cache of all available
- * and enabled user script matching criteria to improve performance.
+ * Uses an LRU cache of user scripts matching URLs and an index of all available
+ * and enabled user script matching criteria to improve performance. Values set
+ * by user scripts are cached and their changes buffered and written in batches
+ * (see Options).
  */
 public class ScriptStoreSQLite implements ScriptStore {
 
 	private static final String TAG = ScriptStoreSQLite.class.getName();
 
+	private static final Script[] NO_SCRIPTS = new Script[0];
+
+	/**
+	 * The default number of URLs whose matching user scripts are cached.
+	 */
+	public static final int DEFAULT_CACHE_SIZE = 62;
+
+	/**
+	 * The default number of bytes of user scripts (including their requires
+	 * and resources) kept in memory.
+	 */
+	public static final long DEFAULT_SCRIPT_CACHE_BYTES = 4 * 1024 * 1024;
+
+	/**
+	 * The default number of milliseconds values set by user scripts are
+	 * buffered before being written to the database.
+	 */
+	public static final long DEFAULT_VALUE_WRITE_DELAY = 1000;
+
+	/**
+	 * The default number of buffered values at which they are written to the
+	 * database without further delay.
+	 */
+	public static final int DEFAULT_MAX_BUFFERED_VALUES = 256;
+
+	/**
+	 * The default number of bytes of values of user scripts kept in memory.
+	 */
+	public static final long DEFAULT_VALUE_CACHE_BYTES = 1024 * 1024;
+
 	private Context context;
 
+	private Options options;
+
 	private ScriptDbHelper dbHelper;
 
 	private ScriptCache cache;
 
+	private ValueBuffer valueBuffer;
+
+	private ValueCache valueCache;
+
+	// serializes loading and changing the values of user scripts
+	private final Object valueLock = new Object();
+
 	@Override
 	public Script[] get(String url) {
-		Script[] scripts = cache.get(url);
-		if (scripts == null) {
-			if (dbHelper == null) {
-				Log.w(TAG, "Cannot get user scripts (database not available)");
-				return null;
+		CriteriaIndex criteriaIndex = cache.getCriteriaIndex();
+		ParsedUrl parsedUrl = new ParsedUrl(url);
+		String key = criteriaIndex.getCacheKey(parsedUrl);
+		ScriptId[] ids = cache.get(key);
+		if (ids == null) {
+			ids = criteriaIndex.getMatchingScriptIds(parsedUrl);
+			cache.put(criteriaIndex, key, ids);
+		}
+		if (ids.length == 0) {
+			return NO_SCRIPTS;
+		}
+		Script[] scripts = new Script[ids.length];
+		List<ScriptId> missingIds = new ArrayList<ScriptId>();
+		for (int i = 0; i < ids.length; i++) {
+			scripts[i] = cache.getScript(ids[i]);
+			if (scripts[i] == null) {
+				missingIds.add(ids[i]);
+			}
+		}
+		if (missingIds.isEmpty()) {
+			return scripts;
+		}
+		if (dbHelper == null) {
+			Log.w(TAG, "Cannot get user scripts (database not available)");
+			return null;
+		}
+		Script[] loadedScripts = dbHelper.selectScripts(
+				missingIds.toArray(new ScriptId[missingIds.size()]), true);
+		Map<ScriptId, Script> loaded = new HashMap<ScriptId, Script>();
+		for (Script script : loadedScripts) {
+			ScriptId id = new ScriptId(script.getName(), script.getNamespace());
+			loaded.put(id, script);
+			cache.putScript(criteriaIndex, id, script);
+		}
+		List<Script> result = new ArrayList<Script>(ids.length);
+		for (int i = 0; i < ids.length; i++) {
+			Script script = (scripts[i] != null) ? scripts[i] : loaded
+					.get(ids[i]);
+			// null if disabled or deleted in the meantime
+			if (script != null) {
+				result.add(script);
 			}
-			ScriptId[] matchingIds = cache.getMatchingScriptIds(url);
-			scripts = dbHelper.selectScripts(matchingIds, true);
-			cache.put(url, scripts);
 		}
-		return scripts;
+		return result.toArray(new Script[result.size()]);
 	}
 
 	@Override
@@ -73,10 +158,16 @@ public class ScriptStoreSQLite implements ScriptStore {
 			Log.e(TAG, "Cannot get user script (database not available)");
 			return null;
 		}
+		Script script = cache.getScript(id);
+		if (script != null) {
+			return script;
+		}
+		CriteriaIndex criteriaIndex = cache.getCriteriaIndex();
 		Script[] scripts = dbHelper.selectScripts(new ScriptId[] { id }, null);
 		if (scripts.length == 0) {
 			return null;
 		}
+		cache.putScript(criteriaIndex, id, scripts[0]);
 		return scripts[0];
 	}
 
@@ -95,9 +186,14 @@ public class ScriptStoreSQLite implements ScriptStore {
 			Log.e(TAG, "Cannot add user script (database not available)");
 			return;
 		}
-		dbHelper.deleteScript(script);
-		dbHelper.insertScript(script);
-		initCache();
+		synchronized (valueLock) {
+			discardValues(script);
+			dbHelper.deleteScript(script);
+			dbHelper.insertScript(script);
+		}
+		if (updateCache(script, true)) {
+			cache.putScript(cache.getCriteriaIndex(), script, script);
+		}
 	}
 
 	@Override
@@ -107,7 +203,7 @@ public class ScriptStoreSQLite implements ScriptStore {
 			return;
 		}
 		dbHelper.updateScriptEnabled(id, true);
-		initCache();
+		updateCache(id, false);
 	}
 
 	@Override
@@ -117,7 +213,7 @@ public class ScriptStoreSQLite implements ScriptStore {
 			return;
 		}
 		dbHelper.updateScriptEnabled(id, false);
-		initCache();
+		updateCache(id, false);
 	}
 
 	@Override
@@ -126,8 +222,11 @@ public class ScriptStoreSQLite implements ScriptStore {
 			Log.e(TAG, "Cannot delete user script (database not available)");
 			return;
 		}
-		dbHelper.deleteScript(id);
-		initCache();
+		synchronized (valueLock) {
+			discardValues(id);
+			dbHelper.deleteScript(id);
+		}
+		updateCache(id, true);
 	}
 
 	@Override
@@ -136,7 +235,30 @@ public class ScriptStoreSQLite implements ScriptStore {
 			Log.e(TAG, "Cannot get value names (database not available)");
 			return null;
 		}
-		return dbHelper.selectValueNames(id);
+		Map<String, String> values = (valueCache == null) ? null
+				: getCachedValues(toKey(id));
+		if (values != null) {
+			Set<String> names = values.keySet();
+			return names.toArray(new String[names.size()]);
+		}
+		if (valueBuffer == null) {
+			return dbHelper.selectValueNames(id);
+		}
+		// read the buffer first, values written meanwhile are in the database
+		Map<String, String> buffered = valueBuffer.getAll(toKey(id));
+		String[] names = dbHelper.selectValueNames(id);
+		if (buffered.isEmpty()) {
+			return names;
+		}
+		Set<String> allNames = new LinkedHashSet<String>(Arrays.asList(names));
+		for (Map.Entry<String, String> entry : buffered.entrySet()) {
+			if (entry.getValue() == ValueBuffer.DELETED) {
+				allNames.remove(entry.getKey());
+			} else {
+				allNames.add(entry.getKey());
+			}
+		}
+		return allNames.toArray(new String[allNames.size()]);
 	}
 
 	@Override
@@ -145,6 +267,17 @@ public class ScriptStoreSQLite implements ScriptStore {
 			Log.e(TAG, "Cannot get value (database not available)");
 			return null;
 		}
+		Map<String, String> values = (valueCache == null) ? null
+				: getCachedValues(toKey(id));
+		if (values != null) {
+			return values.get(name);
+		}
+		if (valueBuffer != null) {
+			String value = valueBuffer.get(toKey(id), name);
+			if (value != null) {
+				return (value == ValueBuffer.DELETED) ? null : value;
+			}
+		}
 		return dbHelper.selectValue(id, name);
 	}
 
@@ -154,7 +287,21 @@ public class ScriptStoreSQLite implements ScriptStore {
 			Log.e(TAG, "Cannot set value (database not available)");
 			return;
 		}
-		dbHelper.updateOrInsertValue(id, name, value);
+		if (value == null && (valueBuffer != null || valueCache != null)) {
+			Log.e(TAG, "Cannot set value (null)");
+			return;
+		}
+		ScriptId key = toKey(id);
+		synchronized (valueLock) {
+			if (valueBuffer == null) {
+				dbHelper.updateOrInsertValue(id, name, value);
+			} else {
+				valueBuffer.put(key, name, value);
+			}
+			if (valueCache != null) {
+				valueCache.set(key, name, value);
+			}
+		}
 	}
 
 	@Override
@@ -163,7 +310,85 @@ public class ScriptStoreSQLite implements ScriptStore {
 			Log.e(TAG, "Cannot delete value (database not available)");
 			return;
 		}
-		dbHelper.deleteValue(id, name);
+		ScriptId key = toKey(id);
+		synchronized (valueLock) {
+			if (valueBuffer == null) {
+				dbHelper.deleteValue(id, name);
+			} else {
+				valueBuffer.put(key, name, ValueBuffer.DELETED);
+			}
+			if (valueCache != null) {
+				valueCache.set(key, name, null);
+			}
+		}
+	}
+
+	@Override
+	public String[] getValues(ScriptId id, String[] names) {
+		if (dbHelper == null) {
+			Log.e(TAG, "Cannot get values (database not available)");
+			return null;
+		}
+		ScriptId key = toKey(id);
+		Map<String, String> values = (valueCache == null) ? null
+				: getCachedValues(key);
+		String[] found = new String[names.length];
+		if (values != null) {
+			for (int i = 0; i < names.length; i++) {
+				found[i] = values.get(names[i]);
+			}
+			return found;
+		}
+		// read the buffer first, values written meanwhile are in the database
+		boolean[] buffered = new boolean[names.length];
+		List<String> unbuffered = new ArrayList<String>();
+		for (int i = 0; i < names.length; i++) {
+			String value = (valueBuffer == null) ? null : valueBuffer.get(key,
+					names[i]);
+			if (value == null) {
+				unbuffered.add(names[i]);
+			} else {
+				buffered[i] = true;
+				found[i] = (value == ValueBuffer.DELETED) ? null : value;
+			}
+		}
+		if (unbuffered.isEmpty()) {
+			return found;
+		}
+		Map<String, String> selected = dbHelper.selectValues(id,
+				unbuffered.toArray(new String[unbuffered.size()]));
+		for (int i = 0; i < names.length; i++) {
+			if (!buffered[i]) {
+				found[i] = selected.get(names[i]);
+			}
+		}
+		return found;
+	}
+
+	@Override
+	public void setValues(ScriptId id, Map<String, String> values) {
+		if (dbHelper == null) {
+			Log.e(TAG, "Cannot set values (database not available)");
+			return;
+		}
+		if (values.containsValue(null)) {
+			Log.e(TAG, "Cannot set values (null)");
+			return;
+		}
+		writeValues(toKey(id), values);
+	}
+
+	@Override
+	public void deleteValues(ScriptId id, String[] names) {
+		if (dbHelper == null) {
+			Log.e(TAG, "Cannot delete values (database not available)");
+			return;
+		}
+		Map<String, String> values = new HashMap<String, String>();
+		for (String name : names) {
+			values.put(name, ValueBuffer.DELETED);
+		}
+		writeValues(toKey(id), values);
 	}
 
 	/**
@@ -175,7 +400,42 @@ public class ScriptStoreSQLite implements ScriptStore {
 	 *            the application's context
 	 */
 	public ScriptStoreSQLite(Context context) {
+		this(context, new Options());
+	}
+
+	/**
+	 * Creates a new SQLite-backed ScriptStore object.
+	 * 
+	 * Call open to enable further access.
+	 * 
+	 * @param context
+	 *            the application's context
+	 * @param cacheSize
+	 *            the number of URLs whose matching user scripts are cached
+	 * @param scriptCacheBytes
+	 *            the approximate number of bytes of user scripts (including
+	 *            their requires and resources) kept in memory
+	 */
+	public ScriptStoreSQLite(Context context, int cacheSize,
+			long scriptCacheBytes) {
+		this(context, new Options());
+		options.setCacheSize(cacheSize);
+		options.setScriptCacheBytes(scriptCacheBytes);
+	}
+
+	/**
+	 * Creates a new SQLite-backed ScriptStore object.
+	 * 
+	 * Call open to enable further access.
+	 * 
+	 * @param context
+	 *            the application's context
+	 * @param options
+	 *            the cache sizes and database settings to use when opened
+	 */
+	public ScriptStoreSQLite(Context context, Options options) {
 		this.context = context;
+		this.options = options;
 	}
 
 	/**
@@ -187,7 +447,15 @@ public class ScriptStoreSQLite implements ScriptStore {
 		if (dbHelper != null) {
 			return;
 		}
-		dbHelper = new ScriptDbHelper(context);
+		dbHelper = new ScriptDbHelper(context, options);
+		if (options.getValueCacheBytes() > 0) {
+			valueCache = new ValueCache(options.getValueCacheBytes());
+		}
+		if (options.getValueWriteDelay() > 0) {
+			valueBuffer = new ValueBuffer(dbHelper,
+					options.getValueWriteDelay(),
+					options.getMaxBufferedValues());
+		}
 		initCache();
 	}
 
@@ -196,33 +464,419 @@ public class ScriptStoreSQLite implements ScriptStore {
 	 * 
 	 * Synchronized since the database may be in the process of being opened in
 	 * a different thread.
+	 * 
+	 * @throws RuntimeException
+	 *             if buffered values could not be written; the database is
+	 *             closed regardless and the values are lost
 	 */
 	public synchronized void close() {
-		dbHelper.close();
-		dbHelper = null;
+		try {
+			if (valueBuffer != null) {
+				valueBuffer.close();
+			}
+		} finally {
+			valueBuffer = null;
+			valueCache = null;
+			dbHelper.close();
+			dbHelper = null;
+		}
+	}
+
+	/**
+	 * Writes all values set or deleted by user scripts that are still
+	 * buffered to the database.
+	 * 
+	 * Values are buffered unless the value write delay is 0 (see Options).
+	 * 
+	 * @throws RuntimeException
+	 *             if the values could not be written; they remain buffered
+	 */
+	public void flush() {
+		ValueBuffer buffer = valueBuffer;
+		if (buffer != null) {
+			buffer.flush();
+		}
+	}
+
+	/**
+	 * @return the number of URLs looked up in the cache of matching user
+	 *         scripts that were found there since the store was opened
+	 */
+	public long getCacheHitCount() {
+		return (cache == null) ? 0 : cache.urlScripts.getHitCount();
+	}
+
+	/**
+	 * @return the number of URLs looked up in the cache of matching user
+	 *         scripts that were not found there since the store was opened
+	 */
+	public long getCacheMissCount() {
+		return (cache == null) ? 0 : cache.urlScripts.getMissCount();
 	}
 
 	/**
-	 * Creates an empty ScriptCache object and initializes its cache of all
+	 * @return the number of URLs evicted from the cache of matching user
+	 *         scripts to keep within its size since the store was opened
+	 */
+	public long getCacheEvictionCount() {
+		return (cache == null) ? 0 : cache.urlScripts.getEvictionCount();
+	}
+
+	/**
+	 * Creates an empty ScriptCache object and initializes its index of all
 	 * available and enabled user script matching criteria.
 	 */
 	private void initCache() {
-		cache = new ScriptCache();
-		cache.setScriptCriteriaArr(dbHelper.selectScriptCriteria(null, true));
+		cache = new ScriptCache(options.getCacheSize(),
+				options.getScriptCacheBytes());
+		List<Long> rowIds = new ArrayList<Long>();
+		ScriptCriteria[] scriptCriteriaArr = dbHelper.selectScriptCriteria(
+				null, true, rowIds);
+		cache.setScriptCriteriaArr(scriptCriteriaArr, rowIds);
+	}
+
+	/**
+	 * Drops the buffered and cached values of a user script about to be added
+	 * or deleted, since all of its stored values are deleted with it. To be
+	 * called holding valueLock until the user script has been deleted.
+	 * 
+	 * @param id
+	 *            the ID of the user script
+	 */
+	private void discardValues(ScriptId id) {
+		ScriptId key = toKey(id);
+		synchronized (valueLock) {
+			if (valueBuffer != null) {
+				valueBuffer.discard(key);
+			}
+			if (valueCache != null) {
+				valueCache.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Sets and deletes several values of a user script in the value buffer or,
+	 * if values are not buffered, in a single transaction.
+	 * 
+	 * @param key
+	 *            the plain ID of the user script
+	 * @param values
+	 *            the values mapped to their keys; ValueBuffer.DELETED to
+	 *            delete a value
+	 */
+	private void writeValues(ScriptId key, Map<String, String> values) {
+		synchronized (valueLock) {
+			if (valueBuffer == null) {
+				dbHelper.writeValues(Collections.singletonMap(key, values));
+			}
+			for (Map.Entry<String, String> entry : values.entrySet()) {
+				String value = entry.getValue();
+				if (valueBuffer != null) {
+					valueBuffer.put(key, entry.getKey(), value);
+				}
+				if (valueCache != null) {
+					valueCache.set(key, entry.getKey(),
+							(value == ValueBuffer.DELETED) ? null : value);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets all values of a user script from the value cache, loading them on
+	 * first access.
+	 * 
+	 * @param key
+	 *            the plain ID of the user script
+	 * @return an unmodifiable view of the user script's values mapped to their
+	 *         keys; null if the values are too large to be cached
+	 */
+	private Map<String, String> getCachedValues(ScriptId key) {
+		Map<String, String> values = valueCache.get(key);
+		if (values != null || !valueCache.isCacheable(key)) {
+			return values;
+		}
+		synchronized (valueLock) {
+			values = valueCache.get(key);
+			if (values != null) {
+				return values;
+			}
+			return valueCache.put(key, loadValues(key));
+		}
 	}
 
 	/**
-	 * Private class to manage the database access.
+	 * Reads all values of a user script from the database and the value
+	 * buffer.
+	 * 
+	 * @param key
+	 *            the plain ID of the user script
+	 * @return the user script's values mapped to their keys
 	 */
-	private static class ScriptDbHelper extends SQLiteOpenHelper {
+	private Map<String, String> loadValues(ScriptId key) {
+		// read the buffer first, values written meanwhile are in the database
+		Map<String, String> buffered = (valueBuffer == null) ? null
+				: valueBuffer.getAll(key);
+		Map<String, String> loaded = dbHelper.selectValues(key);
+		if (buffered != null) {
+			for (Map.Entry<String, String> entry : buffered.entrySet()) {
+				if (entry.getValue() == ValueBuffer.DELETED) {
+					loaded.remove(entry.getKey());
+				} else {
+					loaded.put(entry.getKey(), entry.getValue());
+				}
+			}
+		}
+		return loaded;
+	}
+
+	/**
+	 * Updates the ScriptCache object after a user script has been added,
+	 * enabled, disabled or deleted by re-reading only that script's criteria.
+	 * 
+	 * @param id
+	 *            the ID of the changed user script
+	 * @param replaced
+	 *            true if the user script has been added or deleted, i.e. any
+	 *            cached instance of it is outdated
+	 * @return true if the user script is available and enabled
+	 */
+	private boolean updateCache(ScriptId id, boolean replaced) {
+		List<Long> rowIds = new ArrayList<Long>(1);
+		ScriptCriteria[] criteria = dbHelper.selectScriptCriteria(
+				new ScriptId[] { id }, true, rowIds);
+		if (criteria.length == 0) {
+			cache.update(id, null, -1, replaced);
+			return false;
+		}
+		cache.update(id, criteria[0], rowIds.get(0), replaced);
+		return true;
+	}
+
+	/**
+	 * @param id
+	 *            a user script ID or any subclass instance
+	 * @return a ScriptId instance equal to the ID of the user script, to be
+	 *         used as key in maps (ScriptId.equals compares classes)
+	 */
+	private static ScriptId toKey(ScriptId id) {
+		if (id.getClass() == ScriptId.class) {
+			return id;
+		}
+		return new ScriptId(id.getName(), id.getNamespace());
+	}
+
+	/**
+	 * Cache sizes and database settings of a ScriptStoreSQLite object. Only
+	 * read when the store is opened.
+	 */
+	public static class Options {
+
+		/**
+		 * Synchronous level not waiting for writes to reach the disk. Changes
+		 * may be lost or the database corrupted on power loss.
+		 */
+		public static final int SYNCHRONOUS_OFF = 0;
+
+		/**
+		 * Synchronous level waiting for the disk at critical moments only.
+		 * With write-ahead logging, committed changes may be rolled back on
+		 * power loss but the database is not corrupted.
+		 */
+		public static final int SYNCHRONOUS_NORMAL = 1;
+
+		/**
+		 * Synchronous level waiting for the disk on every commit (SQLite's
+		 * default and the default of these options).
+		 */
+		public static final int SYNCHRONOUS_FULL = 2;
+
+		private int cacheSize = DEFAULT_CACHE_SIZE;
+
+		private long scriptCacheBytes = DEFAULT_SCRIPT_CACHE_BYTES;
+
+		private boolean writeAheadLogging = true;
+
+		private int synchronous = SYNCHRONOUS_FULL;
+
+		private int pageCacheSize = 0;
+
+		private long valueWriteDelay = DEFAULT_VALUE_WRITE_DELAY;
+
+		private int maxBufferedValues = DEFAULT_MAX_BUFFERED_VALUES;
+
+		private long valueCacheBytes = DEFAULT_VALUE_CACHE_BYTES;
+
+		/**
+		 * @return the number of URLs whose matching user scripts are cached
+		 */
+		public int getCacheSize() {
+			return cacheSize;
+		}
+
+		/**
+		 * @param cacheSize
+		 *            the number of URLs whose matching user scripts are
+		 *            cached
+		 */
+		public void setCacheSize(int cacheSize) {
+			this.cacheSize = cacheSize;
+		}
+
+		/**
+		 * @return the approximate number of bytes of user scripts (including
+		 *         their requires and resources) kept in memory
+		 */
+		public long getScriptCacheBytes() {
+			return scriptCacheBytes;
+		}
+
+		/**
+		 * @param scriptCacheBytes
+		 *            the approximate number of bytes of user scripts
+		 *            (including their requires and resources) kept in memory
+		 */
+		public void setScriptCacheBytes(long scriptCacheBytes) {
+			this.scriptCacheBytes = scriptCacheBytes;
+		}
+
+		/**
+		 * @return true if the database uses write-ahead logging (Android 3.0
+		 *         and higher), so that reads do not wait for writes
+		 */
+		public boolean isWriteAheadLogging() {
+			return writeAheadLogging;
+		}
+
+		/**
+		 * @param writeAheadLogging
+		 *            true to use write-ahead logging (Android 3.0 and
+		 *            higher), so that reads do not wait for writes
+		 */
+		public void setWriteAheadLogging(boolean writeAheadLogging) {
+			this.writeAheadLogging = writeAheadLogging;
+		}
+
+		/**
+		 * @return the synchronous level of the database, one of the
+		 *         SYNCHRONOUS_ constants
+		 */
+		public int getSynchronous() {
+			return synchronous;
+		}
+
+		/**
+		 * Sets the synchronous level of the database. Together with
+		 * write-ahead logging, SYNCHRONOUS_NORMAL makes commits (e.g. of
+		 * installed scripts and stored values) considerably faster, at the
+		 * cost of losing the most recent ones on power loss.
+		 * 
+		 * @param synchronous
+		 *            the synchronous level of the database, one of the
+		 *            SYNCHRONOUS_ constants; SYNCHRONOUS_FULL by default
+		 */
+		public void setSynchronous(int synchronous) {
+			if (synchronous < SYNCHRONOUS_OFF || synchronous > SYNCHRONOUS_FULL) {
+				throw new IllegalArgumentException("Invalid synchronous level "
+						+ synchronous);
+			}
+			this.synchronous = synchronous;
+		}
+
+		/**
+		 * @return the number of database pages kept in memory; 0 for SQLite's
+		 *         default
+		 */
+		public int getPageCacheSize() {
+			return pageCacheSize;
+		}
+
+		/**
+		 * @param pageCacheSize
+		 *            the number of database pages kept in memory; 0 for
+		 *            SQLite's default
+		 */
+		public void setPageCacheSize(int pageCacheSize) {
+			this.pageCacheSize = pageCacheSize;
+		}
+
+		/**
+		 * @return the number of milliseconds values set or deleted by user
+		 *         scripts are buffered before being written in one
+		 *         transaction; 0 if written immediately
+		 */
+		public long getValueWriteDelay() {
+			return valueWriteDelay;
+		}
+
+		/**
+		 * @param valueWriteDelay
+		 *            the number of milliseconds values set or deleted by user
+		 *            scripts are buffered before being written in one
+		 *            transaction; 0 to write them immediately
+		 */
+		public void setValueWriteDelay(long valueWriteDelay) {
+			this.valueWriteDelay = valueWriteDelay;
+		}
+
+		/**
+		 * @return the number of buffered values at which they are written
+		 *         without waiting for the value write delay
+		 */
+		public int getMaxBufferedValues() {
+			return maxBufferedValues;
+		}
+
+		/**
+		 * @param maxBufferedValues
+		 *            the number of buffered values at which they are written
+		 *            without waiting for the value write delay
+		 */
+		public void setMaxBufferedValues(int maxBufferedValues) {
+			this.maxBufferedValues = maxBufferedValues;
+		}
+
+		/**
+		 * @return the approximate number of bytes of values of user scripts
+		 *         kept in memory; 0 if values are not cached
+		 */
+		public long getValueCacheBytes() {
+			return valueCacheBytes;
+		}
+
+		/**
+		 * @param valueCacheBytes
+		 *            the approximate number of bytes of values of user
+		 *            scripts kept in memory; 0 to not cache values
+		 */
+		public void setValueCacheBytes(long valueCacheBytes) {
+			this.valueCacheBytes = valueCacheBytes;
+		}
+
+	}
+
+	/**
+	 * Class to manage the database access. Package-private for the statements
+	 * it runs to be checked in tests.
+	 */
+	static class ScriptDbHelper extends SQLiteOpenHelper implements
+			ValueBuffer.Writer {
 
 		// V2 added tables for @require and @resource metadata directive.
 		private static final int DB_SCHEMA_VERSION_2 = 2;
-		private static final int DB_VERSION = DB_SCHEMA_VERSION_2;
+		// V3 turned tables with small rows into WITHOUT ROWID tables (where
+		// supported).
+		private static final int DB_SCHEMA_VERSION_3 = 3;
+		// V4 replaced the (name, namespace) keys of all tables referencing
+		// scripts by an integer script ID.
+		private static final int DB_SCHEMA_VERSION_4 = 4;
+		private static final int DB_VERSION = DB_SCHEMA_VERSION_4;
 
 		private static final String DB = "webviewgm";
 
 		private static final String TBL_SCRIPT = "script";
+		private static final String COL_ID = "id";
 		private static final String COL_NAME = "name";
 		private static final String COL_NAMESPACE = "namespace";
 		private static final String COL_DOWNLOADURL = "downloadurl";
@@ -236,152 +890,200 @@ public class ScriptStoreSQLite implements ScriptStore {
 		private static final String COL_CONTENT = "content";
 		private static final String COL_ENABLED = "enabled";
 		private static final String TBL_SCRIPT_CREATE = "CREATE TABLE "
-				+ TBL_SCRIPT + " (" + COL_NAME + " TEXT NOT NULL" + ", "
-				+ COL_NAMESPACE + " TEXT NOT NULL" + ", " + COL_DESCRIPTION
-				+ " TEXT" + ", " + COL_DOWNLOADURL + " TEXT" + ", "
-				+ COL_UPDATEURL + " TEXT" + ", " + COL_INSTALLURL + " TEXT"
-				+ ", " + COL_ICON + " TEXT" + ", " + COL_RUNAT + " TEXT" + ", "
-				+ COL_UNWRAP + " INTEGER" + ", " + COL_VERSION + " TEXT" + ", "
-				+ COL_CONTENT + " TEXT NOT NULL" + ", " + COL_ENABLED
-				+ " INTEGER NOT NULL DEFAULT 1" + ", PRIMARY KEY (" + COL_NAME
+				+ TBL_SCRIPT + " (" + COL_ID + " INTEGER PRIMARY KEY" + ", "
+				+ COL_NAME + " TEXT NOT NULL" + ", " + COL_NAMESPACE
+				+ " TEXT NOT NULL" + ", " + COL_DESCRIPTION + " TEXT" + ", "
+				+ COL_DOWNLOADURL + " TEXT" + ", " + COL_UPDATEURL + " TEXT"
+				+ ", " + COL_INSTALLURL + " TEXT" + ", " + COL_ICON + " TEXT"
+				+ ", " + COL_RUNAT + " TEXT" + ", " + COL_UNWRAP + " INTEGER"
+				+ ", " + COL_VERSION + " TEXT" + ", " + COL_CONTENT
+				+ " TEXT NOT NULL" + ", " + COL_ENABLED
+				+ " INTEGER NOT NULL DEFAULT 1" + ", UNIQUE (" + COL_NAME
 				+ ", " + COL_NAMESPACE + "));";
 
+		private static final String COL_SCRIPT_ID = "script_id";
+		private static final String COL_SCRIPT_ID_DEF = COL_SCRIPT_ID
+				+ " INTEGER NOT NULL REFERENCES " + TBL_SCRIPT + " (" + COL_ID
+				+ ") ON DELETE CASCADE";
+
 		private static final String COL_PATTERN = "pattern";
 
 		private static final String TBL_EXCLUDE = TBL_SCRIPT + "_has_exclude";
 		private static final String TBL_EXCLUDE_CREATE = "CREATE TABLE "
-				+ TBL_EXCLUDE + " (" + COL_NAME + " TEXT NOT NULL" + ", "
-				+ COL_NAMESPACE + " TEXT NOT NULL" + ", " + COL_PATTERN
-				+ " TEXT NOT NULL, PRIMARY KEY (" + COL_NAME + ", "
-				+ COL_NAMESPACE + ", " + COL_PATTERN + "), FOREIGN KEY ("
-				+ COL_NAME + ", " + COL_NAMESPACE + ") REFERENCES "
-				+ TBL_SCRIPT + " (" + COL_NAME + ", " + COL_NAMESPACE
-				+ ") ON UPDATE CASCADE ON DELETE CASCADE);";
+				+ TBL_EXCLUDE + " (" + COL_SCRIPT_ID_DEF + ", " + COL_PATTERN
+				+ " TEXT NOT NULL, PRIMARY KEY (" + COL_SCRIPT_ID + ", "
+				+ COL_PATTERN + "));";
 
 		private static final String TBL_INCLUDE = TBL_SCRIPT + "_has_include";
 		private static final String TBL_INCLUDE_CREATE = "CREATE TABLE "
-				+ TBL_INCLUDE + " (" + COL_NAME + " TEXT NOT NULL" + ", "
-				+ COL_NAMESPACE + " TEXT NOT NULL" + ", " + COL_PATTERN
-				+ " TEXT NOT NULL, PRIMARY KEY (" + COL_NAME + ", "
-				+ COL_NAMESPACE + ", " + COL_PATTERN + "), FOREIGN KEY ("
-				+ COL_NAME + ", " + COL_NAMESPACE + ") REFERENCES "
-				+ TBL_SCRIPT + " (" + COL_NAME + ", " + COL_NAMESPACE
-				+ ") ON UPDATE CASCADE ON DELETE CASCADE);";
+				+ TBL_INCLUDE + " (" + COL_SCRIPT_ID_DEF + ", " + COL_PATTERN
+				+ " TEXT NOT NULL, PRIMARY KEY (" + COL_SCRIPT_ID + ", "
+				+ COL_PATTERN + "));";
 
 		private static final String TBL_MATCH = TBL_SCRIPT + "_has_match";
 		private static final String TBL_MATCH_CREATE = "CREATE TABLE "
-				+ TBL_MATCH + " (" + COL_NAME + " TEXT NOT NULL" + ", "
-				+ COL_NAMESPACE + " TEXT NOT NULL" + ", " + COL_PATTERN
-				+ " TEXT NOT NULL, PRIMARY KEY (" + COL_NAME + ", "
-				+ COL_NAMESPACE + ", " + COL_PATTERN + "), FOREIGN KEY ("
-				+ COL_NAME + ", " + COL_NAMESPACE + ") REFERENCES "
-				+ TBL_SCRIPT + " (" + COL_NAME + ", " + COL_NAMESPACE
-				+ ") ON UPDATE CASCADE ON DELETE CASCADE);";
+				+ TBL_MATCH + " (" + COL_SCRIPT_ID_DEF + ", " + COL_PATTERN
+				+ " TEXT NOT NULL, PRIMARY KEY (" + COL_SCRIPT_ID + ", "
+				+ COL_PATTERN + "));";
 
 		private static final String TBL_REQUIRE = TBL_SCRIPT + "_has_require";
-		private static final String TBL_REQUIRE_CREATE = "CREATE TABLE IF NOT EXISTS "
-				+ TBL_REQUIRE
-				+ " ("
-				+ COL_NAME
-				+ " TEXT NOT NULL"
-				+ ", "
-				+ COL_NAMESPACE
-				+ " TEXT NOT NULL, "
-				+ COL_DOWNLOADURL
-				+ " TEXT NOT NULL, "
-				+ COL_CONTENT
-				+ " TEXT NOT NULL, PRIMARY KEY ("
-				+ COL_NAME
-				+ ", "
-				+ COL_NAMESPACE
-				+ ", "
-				+ COL_DOWNLOADURL
-				+ "), FOREIGN KEY ("
-				+ COL_NAME
-				+ ", "
-				+ COL_NAMESPACE
-				+ ") REFERENCES "
-				+ TBL_SCRIPT
-				+ " ("
-				+ COL_NAME
-				+ ", "
-				+ COL_NAMESPACE
-				+ ") ON UPDATE CASCADE ON DELETE CASCADE);";
+		private static final String TBL_REQUIRE_CREATE = "CREATE TABLE "
+				+ TBL_REQUIRE + " (" + COL_SCRIPT_ID_DEF + ", "
+				+ COL_DOWNLOADURL + " TEXT NOT NULL, " + COL_CONTENT
+				+ " TEXT NOT NULL, PRIMARY KEY (" + COL_SCRIPT_ID + ", "
+				+ COL_DOWNLOADURL + "));";
 
 		private static final String TBL_RESOURCE = TBL_SCRIPT + "_has_resource";
 		private static final String COL_DATA = "data";
 		private static final String COL_RESOURCENAME = "resource_name";
-		private static final String TBL_RESOURCE_CREATE = "CREATE TABLE IF NOT EXISTS "
-				+ TBL_RESOURCE
-				+ " ("
-				+ COL_NAME
-				+ " TEXT NOT NULL, "
-				+ COL_NAMESPACE
-				+ " TEXT NOT NULL, "
-				+ COL_RESOURCENAME
-				+ " TEXT NOT NULL, "
-				+ COL_DOWNLOADURL
-				+ " TEXT NOT NULL, "
-				+ COL_DATA
-				+ " BLOB NOT NULL, PRIMARY KEY ("
-				+ COL_NAME
-				+ ", "
-				+ COL_NAMESPACE
-				+ ", "
-				+ COL_RESOURCENAME
-				+ "), FOREIGN KEY ("
-				+ COL_NAME
-				+ ", "
-				+ COL_NAMESPACE
-				+ ") REFERENCES "
-				+ TBL_SCRIPT
-				+ " ("
-				+ COL_NAME
-				+ ", "
-				+ COL_NAMESPACE
-				+ ") ON UPDATE CASCADE ON DELETE CASCADE);";
+		private static final String TBL_RESOURCE_CREATE = "CREATE TABLE "
+				+ TBL_RESOURCE + " (" + COL_SCRIPT_ID_DEF + ", "
+				+ COL_RESOURCENAME + " TEXT NOT NULL, " + COL_DOWNLOADURL
+				+ " TEXT NOT NULL, " + COL_DATA + " BLOB NOT NULL, PRIMARY KEY ("
+				+ COL_SCRIPT_ID + ", " + COL_RESOURCENAME + "));";
 
 		private static final String TBL_VALUE = TBL_SCRIPT + "_has_value";
 		private static final String COL_VALUENAME = "valuename";
 		private static final String COL_VALUE = "value";
 		private static final String TBL_VALUE_CREATE = "CREATE TABLE "
-				+ TBL_VALUE + " (" + COL_NAME + " TEXT NOT NULL" + ", "
-				+ COL_NAMESPACE + " TEXT NOT NULL" + ", " + COL_VALUENAME
+				+ TBL_VALUE + " (" + COL_SCRIPT_ID_DEF + ", " + COL_VALUENAME
 				+ " TEXT NOT NULL" + ", " + COL_VALUE
-				+ " TEXT NOT NULL, PRIMARY KEY (" + COL_NAME + ", "
-				+ COL_NAMESPACE + ", " + COL_VALUENAME + "), FOREIGN KEY ("
-				+ COL_NAME + ", " + COL_NAMESPACE + ") REFERENCES "
-				+ TBL_SCRIPT + " (" + COL_NAME + ", " + COL_NAMESPACE
-				+ ") ON UPDATE CASCADE ON DELETE CASCADE);";
+				+ " TEXT NOT NULL, PRIMARY KEY (" + COL_SCRIPT_ID + ", "
+				+ COL_VALUENAME + "));";
+
+		// suffix of tables being replaced during upgrades
+		private static final String TBL_OLD = "_old";
 
 		private static final String[] COLS_ID = new String[] { COL_NAME,
 				COL_NAMESPACE };
-		private static final String[] COLS_PATTERN = new String[] { COL_NAME,
-				COL_NAMESPACE, COL_PATTERN };
-		private static final String[] COLS_REQUIRE = new String[] { COL_NAME,
-				COL_NAMESPACE, COL_DOWNLOADURL, COL_CONTENT };
-		private static final String[] COLS_RESOURCE = new String[] { COL_NAME,
-				COL_NAMESPACE, COL_DOWNLOADURL, COL_RESOURCENAME, COL_DATA };
+		private static final String[] COLS_PATTERN = new String[] { COL_PATTERN };
+		private static final String[] COLS_REQUIRE = new String[] {
+				COL_DOWNLOADURL, COL_CONTENT };
+		private static final String[] COLS_RESOURCE = new String[] {
+				COL_RESOURCENAME, COL_DOWNLOADURL, COL_DATA };
 		private static final String[] COLS_SCRIPT = new String[] { COL_NAME,
 				COL_NAMESPACE, COL_DESCRIPTION, COL_DOWNLOADURL, COL_UPDATEURL,
 				COL_INSTALLURL, COL_ICON, COL_RUNAT, COL_UNWRAP, COL_VERSION,
 				COL_CONTENT, COL_ENABLED };
 
+		// tables without row IDs (see withoutRowId) have no insertion order
+		private static final String ORDER_PATTERN = "c." + COL_PATTERN;
+		private static final String ORDER_INSERTION = "c.rowid";
+
+		// SQLite allows at most 999 variables per statement by default
+		private static final int MAX_IDS_PER_QUERY = 400;
+
+		// statements looking up rows by the UNIQUE (name, namespace) index of
+		// the script table or the primary key of the value table
+		static final String SQL_SELECT_SCRIPT_ROW_ID = "SELECT " + COL_ID
+				+ " FROM " + TBL_SCRIPT + " WHERE " + COL_NAME + " = ? AND "
+				+ COL_NAMESPACE + " = ?;";
+		static final String SQL_SELECT_VALUE = "SELECT " + COL_VALUE
+				+ " FROM " + TBL_VALUE + " WHERE " + COL_SCRIPT_ID
+				+ " = ? AND " + COL_VALUENAME + " = ?;";
+		static final String SQL_SELECT_VALUE_NAMES = "SELECT "
+				+ COL_VALUENAME + " FROM " + TBL_VALUE + " WHERE "
+				+ COL_SCRIPT_ID + " = ?;";
+		static final String SQL_SELECT_VALUES = "SELECT " + COL_VALUENAME
+				+ ", " + COL_VALUE + " FROM " + TBL_VALUE + " WHERE "
+				+ COL_SCRIPT_ID + " = ?;";
+		static final String SQL_UPSERT_VALUE = "INSERT OR REPLACE INTO "
+				+ TBL_VALUE + " (" + COL_SCRIPT_ID + ", " + COL_VALUENAME
+				+ ", " + COL_VALUE + ") VALUES (?, ?, ?);";
+		static final String SQL_DELETE_VALUE = "DELETE FROM " + TBL_VALUE
+				+ " WHERE " + COL_SCRIPT_ID + " = ? AND " + COL_VALUENAME
+				+ " = ?;";
+
 		private SQLiteDatabase db;
 
-		public ScriptDbHelper(Context context) {
+		private final Options options;
+
+		// set by onConfigure unless the database is created or upgraded
+		private boolean foreignKeysEnabled;
+
+		// row IDs of scripts used as keys by the tables referencing them
+		private final Map<ScriptId, Long> scriptRowIds = new ConcurrentHashMap<ScriptId, Long>();
+
+		// statements run on every GM_getValue/GM_setValue/GM_deleteValue call
+		private SQLiteStatement selectValueStatement;
+		private SQLiteStatement upsertValueStatement;
+		private SQLiteStatement deleteValueStatement;
+
+		public ScriptDbHelper(Context context, Options options) {
 			super(context, DB, null, DB_VERSION);
+			this.options = options;
 			db = getWritableDatabase();
-			db.execSQL("PRAGMA foreign_keys = ON;");
+			if (options.isWriteAheadLogging()
+					&& Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+					&& !db.enableWriteAheadLogging()) {
+				Log.w(TAG, "Write-ahead logging not enabled for database " + DB);
+			}
+			db.execSQL("PRAGMA synchronous = " + options.getSynchronous() + ";");
+			selectValueStatement = db.compileStatement(SQL_SELECT_VALUE);
+			upsertValueStatement = db.compileStatement(SQL_UPSERT_VALUE);
+			deleteValueStatement = db.compileStatement(SQL_DELETE_VALUE);
+		}
+
+		@Override
+		public synchronized void close() {
+			selectValueStatement.close();
+			upsertValueStatement.close();
+			deleteValueStatement.close();
+			super.close();
+		}
+
+		/**
+		 * Enables foreign key constraints and sets the page cache size before
+		 * the database is created, upgraded or opened (API 16+). Upgrades
+		 * need foreign key constraints off; those are enabled in onOpen
+		 * afterwards.
+		 */
+		@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+		@Override
+		public void onConfigure(SQLiteDatabase db) {
+			if (db.getVersion() == DB_VERSION) {
+				db.setForeignKeyConstraintsEnabled(true);
+				foreignKeysEnabled = true;
+			}
+			applyPageCacheSize(db);
+		}
+
+		/**
+		 * Enables foreign key constraints and sets the page cache size if
+		 * onConfigure did not (below API 16 or after an upgrade).
+		 */
+		@Override
+		public void onOpen(SQLiteDatabase db) {
+			if (!foreignKeysEnabled) {
+				if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+					db.setForeignKeyConstraintsEnabled(true);
+				} else {
+					db.execSQL("PRAGMA foreign_keys = ON;");
+				}
+			}
+			if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+				applyPageCacheSize(db);
+			}
+		}
+
+		/**
+		 * @param db
+		 *            the database to set the configured page cache size of
+		 */
+		private void applyPageCacheSize(SQLiteDatabase db) {
+			if (options.getPageCacheSize() > 0) {
+				db.execSQL("PRAGMA cache_size = " + options.getPageCacheSize()
+						+ ";");
+			}
 		}
 
 		@Override
 		public void onCreate(SQLiteDatabase db) {
 			db.execSQL(TBL_SCRIPT_CREATE);
-			db.execSQL(TBL_EXCLUDE_CREATE);
-			db.execSQL(TBL_INCLUDE_CREATE);
-			db.execSQL(TBL_MATCH_CREATE);
-			db.execSQL(TBL_VALUE_CREATE);
+			db.execSQL(withoutRowId(TBL_EXCLUDE_CREATE));
+			db.execSQL(withoutRowId(TBL_INCLUDE_CREATE));
+			db.execSQL(withoutRowId(TBL_MATCH_CREATE));
+			db.execSQL(withoutRowId(TBL_VALUE_CREATE));
 			db.execSQL(TBL_REQUIRE_CREATE);
 			db.execSQL(TBL_RESOURCE_CREATE);
 		}
@@ -390,12 +1092,141 @@ public class ScriptStoreSQLite implements ScriptStore {
 		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
 			Log.i(TAG, "Upgrading database " + DB + " from version "
 					+ oldVersion + " to " + newVersion);
-			for (int v = oldVersion; v <= newVersion; v++) {
-				if (v == DB_SCHEMA_VERSION_2) {
-					db.execSQL(TBL_REQUIRE_CREATE);
-					db.execSQL(TBL_RESOURCE_CREATE);
-				}
+			if (oldVersion < DB_SCHEMA_VERSION_4) {
+				// recreates all tables, superseding earlier upgrades
+				upgradeToIntegerScriptIds(db,
+						oldVersion >= DB_SCHEMA_VERSION_2);
+			}
+		}
+
+		/**
+		 * Copies the rows of all tables keyed by script name and namespace into
+		 * new tables keyed by integer script IDs replacing them. Scripts keep
+		 * their row IDs and requires their order.
+		 * 
+		 * Run during upgrades only, when foreign key constraints are not yet
+		 * enforced.
+		 * 
+		 * @param db
+		 *            the database being upgraded
+		 * @param withRequiresAndResources
+		 *            true if the require and resource tables exist (version 2
+		 *            and higher)
+		 */
+		private void upgradeToIntegerScriptIds(SQLiteDatabase db,
+				boolean withRequiresAndResources) {
+			String[] tblNames = (withRequiresAndResources) ? new String[] {
+					TBL_SCRIPT, TBL_EXCLUDE, TBL_INCLUDE, TBL_MATCH, TBL_VALUE,
+					TBL_REQUIRE, TBL_RESOURCE } : new String[] { TBL_SCRIPT,
+					TBL_EXCLUDE, TBL_INCLUDE, TBL_MATCH, TBL_VALUE };
+			for (String tblName : tblNames) {
+				db.execSQL("ALTER TABLE " + tblName + " RENAME TO " + tblName
+						+ TBL_OLD + ";");
+			}
+			onCreate(db);
+			String scriptCols = COL_NAME + ", " + COL_NAMESPACE + ", "
+					+ COL_DESCRIPTION + ", " + COL_DOWNLOADURL + ", "
+					+ COL_UPDATEURL + ", " + COL_INSTALLURL + ", " + COL_ICON
+					+ ", " + COL_RUNAT + ", " + COL_UNWRAP + ", " + COL_VERSION
+					+ ", " + COL_CONTENT + ", " + COL_ENABLED;
+			db.execSQL("INSERT INTO " + TBL_SCRIPT + " (" + COL_ID + ", "
+					+ scriptCols + ") SELECT rowid, " + scriptCols + " FROM "
+					+ TBL_SCRIPT + TBL_OLD + ";");
+			copyToIntegerScriptIds(db, TBL_EXCLUDE, COL_PATTERN);
+			copyToIntegerScriptIds(db, TBL_INCLUDE, COL_PATTERN);
+			copyToIntegerScriptIds(db, TBL_MATCH, COL_PATTERN);
+			copyToIntegerScriptIds(db, TBL_VALUE, COL_VALUENAME + ", "
+					+ COL_VALUE);
+			if (withRequiresAndResources) {
+				copyToIntegerScriptIds(db, TBL_REQUIRE, COL_DOWNLOADURL + ", "
+						+ COL_CONTENT);
+				copyToIntegerScriptIds(db, TBL_RESOURCE, COL_RESOURCENAME
+						+ ", " + COL_DOWNLOADURL + ", " + COL_DATA);
+			}
+			for (int i = tblNames.length - 1; i >= 0; i--) {
+				db.execSQL("DROP TABLE " + tblNames[i] + TBL_OLD + ";");
+			}
+		}
+
+		/**
+		 * Copies the rows of a table keyed by script name and namespace into
+		 * the new table keyed by integer script IDs in insertion order.
+		 * 
+		 * @param db
+		 *            the database being upgraded
+		 * @param tblName
+		 *            the name of the new table
+		 * @param cols
+		 *            the comma-separated columns to copy besides the key
+		 */
+		private static void copyToIntegerScriptIds(SQLiteDatabase db,
+				String tblName, String cols) {
+			String tblOld = tblName + TBL_OLD;
+			StringBuilder sql = new StringBuilder("INSERT INTO ")
+					.append(tblName).append(" (").append(COL_SCRIPT_ID)
+					.append(", ").append(cols).append(") SELECT s.")
+					.append(COL_ID);
+			for (String col : cols.split(", ")) {
+				sql.append(", o.").append(col);
+			}
+			sql.append(" FROM ").append(tblOld).append(" o JOIN ")
+					.append(TBL_SCRIPT).append(" s ON s.").append(COL_NAME)
+					.append(" = o.").append(COL_NAME).append(" AND s.")
+					.append(COL_NAMESPACE).append(" = o.")
+					.append(COL_NAMESPACE);
+			if (!isWithoutRowId(db, tblOld)) {
+				sql.append(" ORDER BY o.rowid");
+			}
+			db.execSQL(sql.append(";").toString());
+		}
+
+		/**
+		 * @param db
+		 *            the database
+		 * @param tblName
+		 *            the name of an existing table
+		 * @return true if the table has been created WITHOUT ROWID
+		 */
+		private static boolean isWithoutRowId(SQLiteDatabase db, String tblName) {
+			Cursor cursor = db.rawQuery(
+					"SELECT sql FROM sqlite_master WHERE type = 'table' AND name = ?",
+					new String[] { tblName });
+			try {
+				return cursor.moveToFirst()
+						&& cursor.getString(0).toUpperCase()
+								.endsWith("WITHOUT ROWID");
+			} finally {
+				cursor.close();
+			}
+		}
+
+		/**
+		 * Turns a statement creating a table into one creating a WITHOUT ROWID
+		 * table if supported.
+		 * 
+		 * Used for tables with small rows looked up by their primary key only,
+		 * which are then stored in the primary key's B-tree instead of in an
+		 * additional index.
+		 * 
+		 * @param tblCreate
+		 *            the statement creating the table ending with );
+		 * @return the statement creating a WITHOUT ROWID table; tblCreate if
+		 *         not supported
+		 */
+		private static String withoutRowId(String tblCreate) {
+			if (!supportsWithoutRowId()) {
+				return tblCreate;
 			}
+			return tblCreate.substring(0, tblCreate.length() - 1)
+					+ " WITHOUT ROWID;";
+		}
+
+		/**
+		 * @return true if the SQLite version (3.8.2 and higher) supports
+		 *         WITHOUT ROWID tables
+		 */
+		private static boolean supportsWithoutRowId() {
+			return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
 		}
 
 		/**
@@ -412,81 +1243,85 @@ public class ScriptStoreSQLite implements ScriptStore {
 		 *         found
 		 */
 		public Script[] selectScripts(ScriptId[] ids, Boolean enabled) {
-			String selectionStr = null, selectionIdStr = null;
-			String[] selectionArgsArr = null, selectionIdArgsArr = null;
-			if (ids != null || enabled != null) {
+			if (ids != null && ids.length == 0) {
+				return new Script[0];
+			}
+			List<Script> scripts = new ArrayList<Script>();
+			int from = 0;
+			do {
+				int to = (ids == null) ? 0 : Math.min(ids.length, from
+						+ MAX_IDS_PER_QUERY);
 				StringBuilder selection = new StringBuilder();
 				List<String> selectionArgs = new ArrayList<String>();
-				if (ids != null) {
-					if (ids.length == 0) {
-						return new Script[0];
-					}
-					makeScriptIdSelectionArgs(ids, selection, selectionArgs);
-					selectionIdStr = selection.toString();
-					selectionIdArgsArr = selectionArgs
-							.toArray(new String[selectionArgs.size()]);
-				}
-				if (enabled != null) {
-					if (ids != null) {
-						selection.insert(0, "(").append(")").append(" AND ");
-					}
-					selection.append(COL_ENABLED).append(" = ?");
-					selectionArgs.add((enabled) ? "1" : "0");
-				}
-				selectionStr = selection.toString();
-				selectionArgsArr = selectionArgs
-						.toArray(new String[selectionArgs.size()]);
-			}
-			Map<ScriptId, List<String>> excludes = selectPatterns(TBL_EXCLUDE,
-					selectionIdStr, selectionIdArgsArr);
-			Map<ScriptId, List<String>> includes = selectPatterns(TBL_INCLUDE,
-					selectionIdStr, selectionIdArgsArr);
-			Map<ScriptId, List<String>> matches = selectPatterns(TBL_MATCH,
-					selectionIdStr, selectionIdArgsArr);
-			Map<ScriptId, List<ScriptRequire>> requires = selectRequires(
-					TBL_REQUIRE, selectionIdStr, selectionIdArgsArr);
-			Map<ScriptId, List<ScriptResource>> resources = selectResources(
-					TBL_RESOURCE, selectionIdStr, selectionIdArgsArr);
-			Cursor cursor = db.query(TBL_SCRIPT, COLS_SCRIPT, selectionStr,
-					selectionArgsArr, null, null, null);
-			Script[] scriptsArr = new Script[cursor.getCount()];
-			int i = 0;
+				makeScriptSelection(ids, from, to, enabled, selection,
+						selectionArgs);
+				selectScripts(selection.toString(),
+						selectionArgs.toArray(new String[selectionArgs.size()]),
+						scripts);
+				from = to;
+			} while (ids != null && from < ids.length);
+			return scripts.toArray(new Script[scripts.size()]);
+		}
+
+		/**
+		 * Retrieves scripts including their exclude/include/match criteria from
+		 * the database.
+		 * 
+		 * Reads the scripts and each type of their child rows with one query
+		 * each, all ordered by the scripts' row IDs, and merges them in a
+		 * single pass.
+		 * 
+		 * @param selection
+		 *            the selection string on the script table (aliased s); an
+		 *            empty string to select all
+		 * @param selectionArgs
+		 *            the arguments to use in the selection string
+		 * @param scripts
+		 *            the list to add the found script objects to (output)
+		 */
+		private void selectScripts(String selection, String[] selectionArgs,
+				List<Script> scripts) {
+			String[] sql = makeSelectScriptsSql(selection);
+			ChildRows excludes = new ChildRows(db.rawQuery(sql[0],
+					selectionArgs));
+			ChildRows includes = new ChildRows(db.rawQuery(sql[1],
+					selectionArgs));
+			ChildRows matches = new ChildRows(db.rawQuery(sql[2],
+					selectionArgs));
+			ChildRows requires = new ChildRows(db.rawQuery(sql[3],
+					selectionArgs));
+			ChildRows resources = new ChildRows(db.rawQuery(sql[4],
+					selectionArgs));
+			Cursor cursor = db.rawQuery(sql[5], selectionArgs);
 			while (cursor.moveToNext()) {
-				String name = cursor.getString(0);
-				String namespace = cursor.getString(1);
-				ScriptId id = new ScriptId(name, namespace);
-				List<String> exclude = excludes.get(id);
-				String[] excludeArr = (exclude == null) ? null : exclude
-						.toArray(new String[exclude.size()]);
-				List<String> include = includes.get(id);
-				String[] includeArr = (include == null) ? null : include
-						.toArray(new String[include.size()]);
-				List<String> match = matches.get(id);
-				String[] matchArr = (match == null) ? null : match
-						.toArray(new String[match.size()]);
-				String description = cursor.getString(2);
-				String downloadurl = cursor.getString(3);
-				String updateurl = cursor.getString(4);
-				String installurl = cursor.getString(5);
-				String icon = cursor.getString(6);
-				String runat = cursor.getString(7);
-				int unwrap = cursor.getInt(8);
-				String version = cursor.getString(9);
-				List<ScriptRequire> require = requires.get(id);
-				ScriptRequire[] requireArr = (require == null) ? null : require
-						.toArray(new ScriptRequire[require.size()]);
-				List<ScriptResource> resource = resources.get(id);
-				ScriptResource[] resourceArr = (resource == null) ? null
-						: resource.toArray(new ScriptResource[resource.size()]);
-				String content = cursor.getString(10);
-				scriptsArr[i] = new Script(name, namespace, excludeArr,
-						includeArr, matchArr, description, downloadurl,
-						updateurl, installurl, icon, runat, unwrap == 1,
-						version, requireArr, resourceArr, content);
-				i++;
+				long rowId = cursor.getLong(0);
+				String name = cursor.getString(1);
+				String namespace = cursor.getString(2);
+				String[] excludeArr = excludes.nextPatterns(rowId);
+				String[] includeArr = includes.nextPatterns(rowId);
+				String[] matchArr = matches.nextPatterns(rowId);
+				String description = cursor.getString(3);
+				String downloadurl = cursor.getString(4);
+				String updateurl = cursor.getString(5);
+				String installurl = cursor.getString(6);
+				String icon = cursor.getString(7);
+				String runat = cursor.getString(8);
+				int unwrap = cursor.getInt(9);
+				String version = cursor.getString(10);
+				ScriptRequire[] requireArr = requires.nextRequires(rowId);
+				ScriptResource[] resourceArr = resources.nextResources(rowId);
+				String content = cursor.getString(11);
+				scripts.add(new Script(name, namespace, excludeArr, includeArr,
+						matchArr, description, downloadurl, updateurl,
+						installurl, icon, runat, unwrap == 1, version,
+						requireArr, resourceArr, content));
 			}
 			cursor.close();
-			return scriptsArr;
+			excludes.close();
+			includes.close();
+			matches.close();
+			requires.close();
+			resources.close();
 		}
 
 		/**
@@ -498,199 +1333,227 @@ public class ScriptStoreSQLite implements ScriptStore {
 		 * @param enabled
 		 *            true to only get enabled scripts; false to only get
 		 *            disabled scripts; null to get all
+		 * @param rowIds
+		 *            the list to add the row ID of each found script to, in
+		 *            the same order (output)
 		 * @return an array of matching script criteria objects; an empty array
 		 *         if none found
 		 */
 		public ScriptCriteria[] selectScriptCriteria(ScriptId[] ids,
-				Boolean enabled) {
-			String selectionStr = null, selectionIdStr = null;
-			String[] selectionArgsArr = null, selectionIdArgsArr = null;
-			if (ids != null || enabled != null) {
+				Boolean enabled, List<Long> rowIds) {
+			if (ids != null && ids.length == 0) {
+				return new ScriptCriteria[0];
+			}
+			List<ScriptCriteria> scriptCriteria = new ArrayList<ScriptCriteria>();
+			int from = 0;
+			do {
+				int to = (ids == null) ? 0 : Math.min(ids.length, from
+						+ MAX_IDS_PER_QUERY);
 				StringBuilder selection = new StringBuilder();
 				List<String> selectionArgs = new ArrayList<String>();
-				if (ids != null) {
-					if (ids.length == 0) {
-						return new ScriptCriteria[0];
-					}
-					makeScriptIdSelectionArgs(ids, selection, selectionArgs);
-					selectionIdStr = selection.toString();
-					selectionIdArgsArr = selectionArgs
-							.toArray(new String[selectionArgs.size()]);
-				}
-				if (enabled != null) {
-					if (ids != null) {
-						selection.insert(0, "(").append(")").append(" AND ");
-					}
-					selection.append(COL_ENABLED).append(" = ?");
-					selectionArgs.add((enabled) ? "1" : "0");
-				}
-				selectionStr = selection.toString();
-				selectionArgsArr = selectionArgs
-						.toArray(new String[selectionArgs.size()]);
-			}
-			Map<ScriptId, List<String>> excludes = selectPatterns(TBL_EXCLUDE,
-					selectionIdStr, selectionIdArgsArr);
-			Map<ScriptId, List<String>> includes = selectPatterns(TBL_INCLUDE,
-					selectionIdStr, selectionIdArgsArr);
-			Map<ScriptId, List<String>> matches = selectPatterns(TBL_MATCH,
-					selectionIdStr, selectionIdArgsArr);
-			Cursor cursor = db.query(TBL_SCRIPT, COLS_ID, selectionStr,
-					selectionArgsArr, null, null, null);
-			ScriptCriteria[] scriptCriteriaArr = new ScriptCriteria[cursor
-					.getCount()];
-			int i = 0;
-			while (cursor.moveToNext()) {
-				String name = cursor.getString(0);
-				String namespace = cursor.getString(1);
-				ScriptId id = new ScriptId(name, namespace);
-				List<String> exclude = excludes.get(id);
-				String[] excludeArr = (exclude == null) ? null : exclude
-						.toArray(new String[exclude.size()]);
-				List<String> include = includes.get(id);
-				String[] includeArr = (include == null) ? null : include
-						.toArray(new String[include.size()]);
-				List<String> match = matches.get(id);
-				String[] matchArr = (match == null) ? null : match
-						.toArray(new String[match.size()]);
-				scriptCriteriaArr[i] = new ScriptCriteria(name, namespace,
-						excludeArr, includeArr, matchArr);
-				i++;
-			}
-			cursor.close();
-			return scriptCriteriaArr;
+				makeScriptSelection(ids, from, to, enabled, selection,
+						selectionArgs);
+				selectScriptCriteria(selection.toString(),
+						selectionArgs.toArray(new String[selectionArgs.size()]),
+						scriptCriteria, rowIds);
+				from = to;
+			} while (ids != null && from < ids.length);
+			return scriptCriteria.toArray(new ScriptCriteria[scriptCriteria
+					.size()]);
 		}
 
 		/**
-		 * Retrieves criteria patterns from the database.
+		 * Retrieves script criteria objects from the database.
 		 * 
-		 * @param tblName
-		 *            the name of the table to query
 		 * @param selection
-		 *            the selection string (WHERE part of the query with
-		 *            arguments replaced by ?)
+		 *            the selection string on the script table (aliased s); an
+		 *            empty string to select all
 		 * @param selectionArgs
 		 *            the arguments to use in the selection string
-		 * @return matching patterns found in the table mapped to script IDs; an
-		 *         empty map if none found
+		 * @param scriptCriteria
+		 *            the list to add the found script criteria objects to
+		 *            (output)
+		 * @param rowIds
+		 *            the list to add the row ID of each found script to
+		 *            (output)
+		 * @see #selectScripts(String, String[], List)
 		 */
-		private Map<ScriptId, List<String>> selectPatterns(String tblName,
-				String selection, String[] selectionArgs) {
-			Map<ScriptId, List<String>> patterns = new HashMap<ScriptId, List<String>>();
-			Cursor cursor = db.query(tblName, COLS_PATTERN, selection,
-					selectionArgs, null, null, null);
+		private void selectScriptCriteria(String selection,
+				String[] selectionArgs, List<ScriptCriteria> scriptCriteria,
+				List<Long> rowIds) {
+			String[] sql = makeSelectScriptCriteriaSql(selection);
+			ChildRows excludes = new ChildRows(db.rawQuery(sql[0],
+					selectionArgs));
+			ChildRows includes = new ChildRows(db.rawQuery(sql[1],
+					selectionArgs));
+			ChildRows matches = new ChildRows(db.rawQuery(sql[2],
+					selectionArgs));
+			Cursor cursor = db.rawQuery(sql[3], selectionArgs);
 			while (cursor.moveToNext()) {
-				ScriptId id = new ScriptId(cursor.getString(0),
-						cursor.getString(1));
-				List<String> pattern = patterns.get(id);
-				if (pattern == null) {
-					pattern = new ArrayList<String>();
-					patterns.put(id, pattern);
-				}
-				pattern.add(cursor.getString(2));
+				long rowId = cursor.getLong(0);
+				String name = cursor.getString(1);
+				String namespace = cursor.getString(2);
+				scriptCriteria.add(new ScriptCriteria(name, namespace, excludes
+						.nextPatterns(rowId), includes.nextPatterns(rowId),
+						matches.nextPatterns(rowId)));
+				rowIds.add(rowId);
 			}
 			cursor.close();
-			return patterns;
+			excludes.close();
+			includes.close();
+			matches.close();
 		}
 
 		/**
-		 * Retrieves require content from the database.
-		 *
-		 * @param tblName
-		 *            the name of the table to query
+		 * Builds the queries run by selectScripts.
+		 * 
+		 * The tables referencing the selected scripts are searched by their
+		 * primary keys starting with the script's row ID; the script table
+		 * is searched by its UNIQUE (name, namespace) index if the selection
+		 * contains script IDs, else scanned.
+		 * 
 		 * @param selection
-		 *            the selection string (WHERE part of the query with
-		 *            arguments replaced by ?)
-		 * @param selectionArgs
-		 *            the arguments to use in the selection string
-		 * @return matching requires found in the table mapped to script IDs; an
-		 *         empty map if none found
+		 *            the selection string on the script table (aliased s); an
+		 *            empty string to select all
+		 * @return the queries of the excludes, includes, matches, requires,
+		 *         resources and the scripts themselves, in this order
 		 */
-		private Map<ScriptId, List<ScriptRequire>> selectRequires(
-				String tblName, String selection, String[] selectionArgs) {
-			Map<ScriptId, List<ScriptRequire>> contents = new HashMap<ScriptId, List<ScriptRequire>>();
-			Cursor cursor = db.query(tblName, COLS_REQUIRE, selection,
-					selectionArgs, null, null, null);
-			while (cursor.moveToNext()) {
-				ScriptId id = new ScriptId(cursor.getString(cursor
-						.getColumnIndex(COL_NAME)), cursor.getString(cursor
-						.getColumnIndex(COL_NAMESPACE)));
-				List<ScriptRequire> content = contents.get(id);
-				if (content == null) {
-					content = new ArrayList<ScriptRequire>();
-					contents.put(id, content);
-				}
-				String requireUrl = cursor.getString(cursor
-						.getColumnIndex(COL_DOWNLOADURL));
-				String requireContent = cursor.getString(cursor
-						.getColumnIndex(COL_CONTENT));
-				content.add(new ScriptRequire(requireUrl, requireContent));
+		static String[] makeSelectScriptsSql(String selection) {
+			return new String[] {
+					makeChildrenSql(TBL_EXCLUDE, COLS_PATTERN, ORDER_PATTERN,
+							selection),
+					makeChildrenSql(TBL_INCLUDE, COLS_PATTERN, ORDER_PATTERN,
+							selection),
+					makeChildrenSql(TBL_MATCH, COLS_PATTERN, ORDER_PATTERN,
+							selection),
+					makeChildrenSql(TBL_REQUIRE, COLS_REQUIRE,
+							ORDER_INSERTION, selection),
+					makeChildrenSql(TBL_RESOURCE, COLS_RESOURCE,
+							ORDER_INSERTION, selection),
+					makeScriptsSql(COLS_SCRIPT, selection) };
+		}
+
+		/**
+		 * Builds the queries run by selectScriptCriteria.
+		 * 
+		 * @param selection
+		 *            the selection string on the script table (aliased s); an
+		 *            empty string to select all
+		 * @return the queries of the excludes, includes, matches and the
+		 *         scripts themselves, in this order
+		 * @see #makeSelectScriptsSql(String)
+		 */
+		static String[] makeSelectScriptCriteriaSql(String selection) {
+			return new String[] {
+					makeChildrenSql(TBL_EXCLUDE, COLS_PATTERN, ORDER_PATTERN,
+							selection),
+					makeChildrenSql(TBL_INCLUDE, COLS_PATTERN, ORDER_PATTERN,
+							selection),
+					makeChildrenSql(TBL_MATCH, COLS_PATTERN, ORDER_PATTERN,
+							selection), makeScriptsSql(COLS_ID, selection) };
+		}
+
+		/**
+		 * Builds a query of the script table ordered by row ID.
+		 * 
+		 * @param columns
+		 *            the columns to retrieve after the row ID
+		 * @param selection
+		 *            the selection string on the script table (aliased s); an
+		 *            empty string to select all
+		 * @return the query with the row ID in column 0
+		 */
+		private static String makeScriptsSql(String[] columns,
+				String selection) {
+			StringBuilder sql = new StringBuilder("SELECT s.").append(COL_ID);
+			for (String column : columns) {
+				sql.append(", s.").append(column);
 			}
-			cursor.close();
-			return contents;
+			sql.append(" FROM ").append(TBL_SCRIPT).append(" s");
+			if (selection.length() != 0) {
+				sql.append(" WHERE ").append(selection);
+			}
+			sql.append(" ORDER BY s.").append(COL_ID);
+			return sql.toString();
 		}
 
 		/**
-		 * Retrieves resource content from the database.
-		 *
+		 * Builds a query of a table referencing the script table ordered by
+		 * the referenced scripts' row IDs.
+		 * 
 		 * @param tblName
-		 *            the name of the table to query
+		 *            the name of the table to query (aliased c)
+		 * @param columns
+		 *            the columns to retrieve after the script's row ID
+		 * @param order
+		 *            the order of the rows referencing the same script
 		 * @param selection
-		 *            the selection string (WHERE part of the query with
-		 *            arguments replaced by ?)
-		 * @param selectionArgs
-		 *            the arguments to use in the selection string
-		 * @return matching resources found in the table mapped to script IDs;
-		 *         an empty map if none found
+		 *            the selection string on the script table (aliased s); an
+		 *            empty string to select all
+		 * @return the query with the script's row ID in column 0
 		 */
-		private Map<ScriptId, List<ScriptResource>> selectResources(
-				String tblName, String selection, String[] selectionArgs) {
-			Map<ScriptId, List<ScriptResource>> contents = new HashMap<ScriptId, List<ScriptResource>>();
-			Cursor cursor = db.query(tblName, COLS_RESOURCE, selection,
-					selectionArgs, null, null, null);
-			while (cursor.moveToNext()) {
-				ScriptId id = new ScriptId(cursor.getString(cursor
-						.getColumnIndex(COL_NAME)), cursor.getString(cursor
-						.getColumnIndex(COL_NAMESPACE)));
-				List<ScriptResource> content = contents.get(id);
-				if (content == null) {
-					content = new ArrayList<ScriptResource>();
-					contents.put(id, content);
-				}
-				String resourceName = cursor.getString(cursor
-						.getColumnIndex(COL_RESOURCENAME));
-				String resourceUrl = cursor.getString(cursor
-						.getColumnIndex(COL_DOWNLOADURL));
-				byte[] resourceData = cursor.getBlob(cursor
-						.getColumnIndex(COL_DATA));
-				content.add(new ScriptResource(resourceName, resourceUrl,
-						resourceData));
+		private static String makeChildrenSql(String tblName,
+				String[] columns, String order, String selection) {
+			StringBuilder sql = new StringBuilder("SELECT s.").append(COL_ID);
+			for (String column : columns) {
+				sql.append(", c.").append(column);
 			}
-			cursor.close();
-			return contents;
+			sql.append(" FROM ").append(TBL_SCRIPT).append(" s JOIN ")
+					.append(tblName).append(" c ON c.").append(COL_SCRIPT_ID)
+					.append(" = s.").append(COL_ID);
+			if (selection.length() != 0) {
+				sql.append(" WHERE ").append(selection);
+			}
+			sql.append(" ORDER BY s.").append(COL_ID).append(", ")
+					.append(order);
+			return sql.toString();
 		}
 
 		/**
-		 * Fills the selection string and arguments for queries searching for
-		 * script IDs.
+		 * Fills the selection string and arguments for queries on the script
+		 * table (aliased s) searching for script IDs and enabled state.
 		 * 
 		 * @param ids
-		 *            the script IDs to use as selection arguments (input)
+		 *            the script IDs to use as selection arguments; null to
+		 *            select any (input)
+		 * @param from
+		 *            the index of the first ID to use (input)
+		 * @param to
+		 *            the index after the last ID to use (input)
+		 * @param enabled
+		 *            the enabled state to select; null to select any (input)
 		 * @param selection
 		 *            the selection string to fill (output)
 		 * @param selectionArgs
 		 *            the arguments to use in the selection string (output)
 		 */
-		private void makeScriptIdSelectionArgs(ScriptId[] ids,
-				StringBuilder selection, List<String> selectionArgs) {
-			for (ScriptId id : ids) {
-				selection.append(" OR (").append(COL_NAME).append(" = ? AND ")
-						.append(COL_NAMESPACE).append(" = ?)");
-				selectionArgs.add(id.getName());
-				selectionArgs.add(id.getNamespace());
+		static void makeScriptSelection(ScriptId[] ids, int from, int to,
+				Boolean enabled, StringBuilder selection,
+				List<String> selectionArgs) {
+			if (ids != null) {
+				selection.append("(");
+				for (int i = from; i < to; i++) {
+					if (i > from) {
+						selection.append(" OR ");
+					}
+					selection.append("(s.").append(COL_NAME)
+							.append(" = ? AND s.").append(COL_NAMESPACE)
+							.append(" = ?)");
+					selectionArgs.add(ids[i].getName());
+					selectionArgs.add(ids[i].getNamespace());
+				}
+				selection.append(")");
+			}
+			if (enabled != null) {
+				if (ids != null) {
+					selection.append(" AND ");
+				}
+				selection.append("s.").append(COL_ENABLED).append(" = ?");
+				selectionArgs.add((enabled) ? "1" : "0");
 			}
-			selection.delete(0, 4);
 		}
 
+
 		/**
 		 * Inserts a script into the database.
 		 * 
@@ -698,14 +1561,11 @@ public class ScriptStoreSQLite implements ScriptStore {
 		 *            the script to insert
 		 */
 		public void insertScript(Script script) {
-			ContentValues fieldsId = new ContentValues();
-			fieldsId.put(COL_NAME, script.getName());
-			fieldsId.put(COL_NAMESPACE, script.getNamespace());
 			List<ContentValues> fieldsExcludes = new ArrayList<ContentValues>();
 			String[] excludes = script.getExclude();
 			if (excludes != null) {
 				for (String pattern : excludes) {
-					ContentValues fieldsExclude = new ContentValues(fieldsId);
+					ContentValues fieldsExclude = new ContentValues();
 					fieldsExclude.put(COL_PATTERN, pattern);
 					fieldsExcludes.add(fieldsExclude);
 				}
@@ -714,7 +1574,7 @@ public class ScriptStoreSQLite implements ScriptStore {
 			String[] includes = script.getInclude();
 			if (includes != null) {
 				for (String pattern : includes) {
-					ContentValues fieldsInclude = new ContentValues(fieldsId);
+					ContentValues fieldsInclude = new ContentValues();
 					fieldsInclude.put(COL_PATTERN, pattern);
 					fieldsIncludes.add(fieldsInclude);
 				}
@@ -723,7 +1583,7 @@ public class ScriptStoreSQLite implements ScriptStore {
 			String[] matches = script.getMatch();
 			if (matches != null) {
 				for (String pattern : matches) {
-					ContentValues fieldsMatch = new ContentValues(fieldsId);
+					ContentValues fieldsMatch = new ContentValues();
 					fieldsMatch.put(COL_PATTERN, pattern);
 					fieldsMatches.add(fieldsMatch);
 				}
@@ -732,7 +1592,7 @@ public class ScriptStoreSQLite implements ScriptStore {
 			ScriptRequire[] requires = script.getRequires();
 			if (requires != null) {
 				for (ScriptRequire require : requires) {
-					ContentValues fieldsRequire = new ContentValues(fieldsId);
+					ContentValues fieldsRequire = new ContentValues();
 					fieldsRequire.put(COL_DOWNLOADURL, require.getUrl());
 					fieldsRequire.put(COL_CONTENT, require.getContent());
 					fieldsRequires.add(fieldsRequire);
@@ -742,14 +1602,16 @@ public class ScriptStoreSQLite implements ScriptStore {
 			ScriptResource[] resources = script.getResources();
 			if (resources != null) {
 				for (ScriptResource resource : resources) {
-					ContentValues fieldsResource = new ContentValues(fieldsId);
+					ContentValues fieldsResource = new ContentValues();
 					fieldsResource.put(COL_RESOURCENAME, resource.getName());
 					fieldsResource.put(COL_DOWNLOADURL, resource.getUrl());
 					fieldsResource.put(COL_DATA, resource.getData());
 					fieldsResources.add(fieldsResource);
 				}
 			}
-			ContentValues fieldsScript = new ContentValues(fieldsId);
+			ContentValues fieldsScript = new ContentValues();
+			fieldsScript.put(COL_NAME, script.getName());
+			fieldsScript.put(COL_NAMESPACE, script.getNamespace());
 			fieldsScript.put(COL_DESCRIPTION, script.getDescription());
 			fieldsScript.put(COL_DOWNLOADURL, script.getDownloadurl());
 			fieldsScript.put(COL_UPDATEURL, script.getUpdateurl());
@@ -762,13 +1624,15 @@ public class ScriptStoreSQLite implements ScriptStore {
 			fieldsScript.put(COL_ENABLED, true);
 			db.beginTransaction();
 			try {
-				if (db.insert(TBL_SCRIPT, null, fieldsScript) == -1) {
+				long scriptRowId = db.insert(TBL_SCRIPT, null, fieldsScript);
+				if (scriptRowId == -1) {
 					Log.e(TAG,
 							"Error inserting new script into the database (table "
 									+ TBL_SCRIPT + ")");
 					return;
 				}
 				for (ContentValues fieldsExclude : fieldsExcludes) {
+					fieldsExclude.put(COL_SCRIPT_ID, scriptRowId);
 					if (db.insert(TBL_EXCLUDE, null, fieldsExclude) == -1) {
 						Log.e(TAG,
 								"Error inserting new script into the database (table "
@@ -777,6 +1641,7 @@ public class ScriptStoreSQLite implements ScriptStore {
 					}
 				}
 				for (ContentValues fieldsInclude : fieldsIncludes) {
+					fieldsInclude.put(COL_SCRIPT_ID, scriptRowId);
 					if (db.insert(TBL_INCLUDE, null, fieldsInclude) == -1) {
 						Log.e(TAG,
 								"Error inserting new script into the database (table "
@@ -785,6 +1650,7 @@ public class ScriptStoreSQLite implements ScriptStore {
 					}
 				}
 				for (ContentValues fieldsMatch : fieldsMatches) {
+					fieldsMatch.put(COL_SCRIPT_ID, scriptRowId);
 					if (db.insert(TBL_MATCH, null, fieldsMatch) == -1) {
 						Log.e(TAG,
 								"Error inserting new script into the database (table "
@@ -793,6 +1659,7 @@ public class ScriptStoreSQLite implements ScriptStore {
 					}
 				}
 				for (ContentValues fieldsRequire : fieldsRequires) {
+					fieldsRequire.put(COL_SCRIPT_ID, scriptRowId);
 					if (db.insert(TBL_REQUIRE, null, fieldsRequire) == -1) {
 						Log.e(TAG,
 								"Error inserting new script into the database (table "
@@ -801,6 +1668,7 @@ public class ScriptStoreSQLite implements ScriptStore {
 					}
 				}
 				for (ContentValues fieldsResource : fieldsResources) {
+					fieldsResource.put(COL_SCRIPT_ID, scriptRowId);
 					if (db.insert(TBL_RESOURCE, null, fieldsResource) == -1) {
 						Log.e(TAG,
 								"Error inserting new script into the database (table "
@@ -809,6 +1677,7 @@ public class ScriptStoreSQLite implements ScriptStore {
 					}
 				}
 				db.setTransactionSuccessful();
+				scriptRowIds.put(toKey(script), scriptRowId);
 			} finally {
 				db.endTransaction();
 			}
@@ -821,6 +1690,7 @@ public class ScriptStoreSQLite implements ScriptStore {
 		 *            the ID of the script to delete
 		 */
 		public void deleteScript(ScriptId id) {
+			scriptRowIds.remove(toKey(id));
 			db.beginTransaction();
 			try {
 				db.delete(TBL_SCRIPT, COL_NAME + " = ? AND " + COL_NAMESPACE
@@ -854,6 +1724,33 @@ public class ScriptStoreSQLite implements ScriptStore {
 			}
 		}
 
+		/**
+		 * Looks up the row ID of a script, caching it for subsequent calls.
+		 * 
+		 * @param id
+		 *            the script
+		 * @return the row ID of the script; -1 if not found
+		 */
+		private long selectScriptRowId(ScriptId id) {
+			ScriptId key = toKey(id);
+			Long rowId = scriptRowIds.get(key);
+			if (rowId != null) {
+				return rowId;
+			}
+			Cursor cursor = db.rawQuery(SQL_SELECT_SCRIPT_ROW_ID,
+					new String[] { id.getName(), id.getNamespace() });
+			try {
+				if (!cursor.moveToFirst()) {
+					return -1;
+				}
+				rowId = cursor.getLong(0);
+			} finally {
+				cursor.close();
+			}
+			scriptRowIds.put(key, rowId);
+			return rowId;
+		}
+
 		/**
 		 * Retrieves all names of values owned by id.
 		 * 
@@ -862,11 +1759,12 @@ public class ScriptStoreSQLite implements ScriptStore {
 		 * @return an array of all names or an empty array if none found
 		 */
 		public String[] selectValueNames(ScriptId id) {
-			String selection = COL_NAME + " = ? AND " + COL_NAMESPACE + " = ?";
-			String[] selectionArgs = new String[] { id.getName(),
-					id.getNamespace() };
-			Cursor cursor = db.query(TBL_VALUE, new String[] { COL_VALUENAME },
-					selection, selectionArgs, null, null, null);
+			long scriptRowId = selectScriptRowId(id);
+			if (scriptRowId == -1) {
+				return new String[0];
+			}
+			Cursor cursor = db.rawQuery(SQL_SELECT_VALUE_NAMES,
+					new String[] { Long.toString(scriptRowId) });
 			ArrayList<String> valueNames = new ArrayList<String>();
 			while (cursor.moveToNext()) {
 				valueNames.add(cursor.getString(0));
@@ -875,6 +1773,90 @@ public class ScriptStoreSQLite implements ScriptStore {
 			return valueNames.toArray(new String[valueNames.size()]);
 		}
 
+		/**
+		 * Retrieves all name/value pairs owned by id.
+		 * 
+		 * @param id
+		 *            the owner script
+		 * @return the values mapped to their names; an empty map if none found
+		 */
+		public Map<String, String> selectValues(ScriptId id) {
+			Map<String, String> values = new HashMap<String, String>();
+			long scriptRowId = selectScriptRowId(id);
+			if (scriptRowId == -1) {
+				return values;
+			}
+			Cursor cursor = db.rawQuery(SQL_SELECT_VALUES,
+					new String[] { Long.toString(scriptRowId) });
+			try {
+				while (cursor.moveToNext()) {
+					values.put(cursor.getString(0), cursor.getString(1));
+				}
+			} finally {
+				cursor.close();
+			}
+			return values;
+		}
+
+		/**
+		 * Retrieves the name/value pairs identified by names owned by id.
+		 * 
+		 * Selects at most MAX_IDS_PER_QUERY names per query.
+		 * 
+		 * @param id
+		 *            the owner script
+		 * @param names
+		 *            the keys
+		 * @return the found values mapped to their names; an empty map if
+		 *         none found
+		 */
+		public Map<String, String> selectValues(ScriptId id, String[] names) {
+			Map<String, String> values = new HashMap<String, String>();
+			long scriptRowId = selectScriptRowId(id);
+			if (scriptRowId == -1 || names.length == 0) {
+				return values;
+			}
+			int from = 0;
+			do {
+				int to = Math.min(names.length, from + MAX_IDS_PER_QUERY);
+				String[] selectionArgs = new String[to - from + 1];
+				selectionArgs[0] = Long.toString(scriptRowId);
+				System.arraycopy(names, from, selectionArgs, 1, to - from);
+				Cursor cursor = db.rawQuery(makeSelectValuesSql(to - from),
+						selectionArgs);
+				try {
+					while (cursor.moveToNext()) {
+						values.put(cursor.getString(0), cursor.getString(1));
+					}
+				} finally {
+					cursor.close();
+				}
+				from = to;
+			} while (from < names.length);
+			return values;
+		}
+
+		/**
+		 * Builds a query of the values with the given number of names owned
+		 * by a script, searching the primary key of the value table.
+		 * 
+		 * @param nameCount
+		 *            the number of names
+		 * @return the query with the script's row ID and the names as
+		 *         arguments
+		 */
+		static String makeSelectValuesSql(int nameCount) {
+			StringBuilder sql = new StringBuilder("SELECT ")
+					.append(COL_VALUENAME).append(", ").append(COL_VALUE)
+					.append(" FROM ").append(TBL_VALUE).append(" WHERE ")
+					.append(COL_SCRIPT_ID).append(" = ? AND ")
+					.append(COL_VALUENAME).append(" IN (");
+			for (int i = 0; i < nameCount; i++) {
+				sql.append((i > 0) ? ", ?" : "?");
+			}
+			return sql.append(");").toString();
+		}
+
 		/**
 		 * Retrieves the value identified by name owned by id.
 		 * 
@@ -885,20 +1867,19 @@ public class ScriptStoreSQLite implements ScriptStore {
 		 * @return the value belonging to key and script, null if none found
 		 */
 		public String selectValue(ScriptId id, String name) {
-			String selection = COL_NAME + " = ? AND " + COL_NAMESPACE
-					+ " = ? AND " + COL_VALUENAME + " = ?";
-			String[] selectionArgs = new String[] { id.getName(),
-					id.getNamespace(), name };
-			Cursor cursor = db.query(TBL_VALUE, new String[] { COL_VALUE },
-					selection, selectionArgs, null, null, null);
-			try {
-				if (cursor.moveToFirst()) {
-					return cursor.getString(0);
+			long scriptRowId = selectScriptRowId(id);
+			if (scriptRowId == -1) {
+				return null;
+			}
+			synchronized (selectValueStatement) {
+				selectValueStatement.bindLong(1, scriptRowId);
+				selectValueStatement.bindString(2, name);
+				try {
+					return selectValueStatement.simpleQueryForString();
+				} catch (SQLiteDoneException e) {
+					return null;
 				}
-			} finally {
-				cursor.close();
 			}
-			return null;
 		}
 
 		/**
@@ -912,29 +1893,13 @@ public class ScriptStoreSQLite implements ScriptStore {
 		 *            the updated or new value
 		 */
 		public void updateOrInsertValue(ScriptId id, String name, String value) {
-			String selection = COL_NAME + " = ? AND " + COL_NAMESPACE
-					+ " = ? AND " + COL_VALUENAME + " = ?";
-			String[] selectionArgs = new String[] { id.getName(),
-					id.getNamespace(), name };
-			ContentValues fields = new ContentValues();
-			fields.put(COL_VALUE, value);
-			db.beginTransaction();
-			try {
-				if (db.update(TBL_VALUE, fields, selection, selectionArgs) != 1) {
-					fields.put(COL_NAME, id.getName());
-					fields.put(COL_NAMESPACE, id.getNamespace());
-					fields.put(COL_VALUENAME, name);
-					if (db.insert(TBL_VALUE, null, fields) == -1) {
-						Log.e(TAG,
-								"Error inserting new value into the database (table "
-										+ TBL_VALUE + ")");
-						return;
-					}
-					db.setTransactionSuccessful();
-				}
-			} finally {
-				db.endTransaction();
+			long scriptRowId = selectScriptRowId(id);
+			if (scriptRowId == -1) {
+				Log.e(TAG, "Error inserting new value into the database (no "
+						+ "script " + id + ")");
+				return;
 			}
+			executeUpsertValue(scriptRowId, name, value);
 		}
 
 		/**
@@ -946,97 +1911,454 @@ public class ScriptStoreSQLite implements ScriptStore {
 		 *            the key
 		 */
 		public void deleteValue(ScriptId id, String name) {
-			String selection = COL_NAME + " = ? AND " + COL_NAMESPACE
-					+ " = ? AND " + COL_VALUENAME + " = ?";
-			String[] selectionArgs = new String[] { id.getName(),
-					id.getNamespace(), name };
+			long scriptRowId = selectScriptRowId(id);
+			if (scriptRowId == -1) {
+				return;
+			}
+			executeDeleteValue(scriptRowId, name);
+		}
+
+		/**
+		 * Updates or inserts a name/value pair using the precompiled
+		 * statement.
+		 * 
+		 * @param scriptRowId
+		 *            the row ID of the owner script
+		 * @param name
+		 *            the key
+		 * @param value
+		 *            the updated or new value
+		 */
+		private void executeUpsertValue(long scriptRowId, String name,
+				String value) {
+			synchronized (upsertValueStatement) {
+				upsertValueStatement.bindLong(1, scriptRowId);
+				upsertValueStatement.bindString(2, name);
+				if (value == null) {
+					upsertValueStatement.bindNull(3);
+				} else {
+					upsertValueStatement.bindString(3, value);
+				}
+				try {
+					upsertValueStatement.executeInsert();
+				} catch (SQLException e) {
+					Log.e(TAG,
+							"Error inserting new value into the database (table "
+									+ TBL_VALUE + ")", e);
+				}
+			}
+		}
+
+		/**
+		 * Deletes a name/value pair using the precompiled statement.
+		 * 
+		 * @param scriptRowId
+		 *            the row ID of the owner script
+		 * @param name
+		 *            the key
+		 */
+		private void executeDeleteValue(long scriptRowId, String name) {
+			synchronized (deleteValueStatement) {
+				deleteValueStatement.bindLong(1, scriptRowId);
+				deleteValueStatement.bindString(2, name);
+				deleteValueStatement.execute();
+			}
+		}
+
+		@Override
+		public void writeValues(Map<ScriptId, Map<String, String>> values) {
 			db.beginTransaction();
 			try {
-				db.delete(TBL_VALUE, selection, selectionArgs);
+				for (Map.Entry<ScriptId, Map<String, String>> scriptValues : values
+						.entrySet()) {
+					long scriptRowId = selectScriptRowId(scriptValues.getKey());
+					if (scriptRowId == -1) {
+						Log.e(TAG, "Error writing values into the database (no "
+								+ "script " + scriptValues.getKey() + ")");
+						continue;
+					}
+					for (Map.Entry<String, String> value : scriptValues
+							.getValue().entrySet()) {
+						if (value.getValue() == ValueBuffer.DELETED) {
+							executeDeleteValue(scriptRowId, value.getKey());
+						} else {
+							executeUpsertValue(scriptRowId, value.getKey(),
+									value.getValue());
+						}
+					}
+				}
 				db.setTransactionSuccessful();
 			} finally {
 				db.endTransaction();
 			}
 		}
 
+		/**
+		 * Rows of a table referencing the script table, ordered by the
+		 * referenced scripts' row IDs, to be consumed script by script in the
+		 * same order.
+		 */
+		private static class ChildRows {
+
+			private final Cursor cursor;
+
+			private boolean hasRow;
+
+			public ChildRows(Cursor cursor) {
+				this.cursor = cursor;
+				this.hasRow = cursor.moveToNext();
+			}
+
+			/**
+			 * @param rowId
+			 *            the row ID of a script
+			 * @return true if the current row references the script
+			 */
+			private boolean at(long rowId) {
+				// skip rows of scripts not read by the caller
+				while (hasRow && cursor.getLong(0) < rowId) {
+					hasRow = cursor.moveToNext();
+				}
+				return hasRow && cursor.getLong(0) == rowId;
+			}
+
+			/**
+			 * Reads the pattern rows referencing a script.
+			 * 
+			 * @param rowId
+			 *            the row ID of the script
+			 * @return the patterns; null if there are none
+			 */
+			public String[] nextPatterns(long rowId) {
+				if (!at(rowId)) {
+					return null;
+				}
+				List<String> patterns = new ArrayList<String>();
+				do {
+					patterns.add(cursor.getString(1));
+					hasRow = cursor.moveToNext();
+				} while (at(rowId));
+				return patterns.toArray(new String[patterns.size()]);
+			}
+
+			/**
+			 * Reads the require rows referencing a script.
+			 * 
+			 * @param rowId
+			 *            the row ID of the script
+			 * @return the requires; null if there are none
+			 */
+			public ScriptRequire[] nextRequires(long rowId) {
+				if (!at(rowId)) {
+					return null;
+				}
+				List<ScriptRequire> requires = new ArrayList<ScriptRequire>();
+				do {
+					requires.add(new ScriptRequire(cursor.getString(1), cursor
+							.getString(2)));
+					hasRow = cursor.moveToNext();
+				} while (at(rowId));
+				return requires.toArray(new ScriptRequire[requires.size()]);
+			}
+
+			/**
+			 * Reads the resource rows referencing a script.
+			 * 
+			 * @param rowId
+			 *            the row ID of the script
+			 * @return the resources; null if there are none
+			 */
+			public ScriptResource[] nextResources(long rowId) {
+				if (!at(rowId)) {
+					return null;
+				}
+				List<ScriptResource> resources = new ArrayList<ScriptResource>();
+				do {
+					resources.add(new ScriptResource(cursor.getString(1),
+							cursor.getString(2), cursor.getBlob(3)));
+					hasRow = cursor.moveToNext();
+				} while (at(rowId));
+				return resources.toArray(new ScriptResource[resources.size()]);
+			}
+
+			public void close() {
+				cursor.close();
+			}
+
+		}
+
 	}
 
 	/**
-	 * Cache of user scripts matching most recently accessed URLs and all
-	 * available and enabled user script matching criteria.
+	 * Cache of the user scripts matching most recently accessed URLs, the most
+	 * recently used user scripts up to a total size in bytes and an index of
+	 * all available and enabled user script matching criteria.
+	 * 
+	 * URLs are mapped to user script IDs, so that each cached user script is
+	 * held in memory only once regardless of the number of URLs it matches.
+	 * The cached user scripts serve as registry of canonical instances: as
+	 * long as a user script is neither replaced nor evicted, all lookups by
+	 * URL or ID return the same instance without accessing the database.
 	 */
 	private static class ScriptCache {
 
-		private static final int CACHE_SIZE = 62;
-
-		private LinkedHashMap<String, Script[]> urlScripts = new LinkedHashMap<String, Script[]>(
-				CACHE_SIZE + 2, 1.0f, true) {
+		private final ConcurrentLruCache<String, ScriptId[]> urlScripts;
 
-			private static final long serialVersionUID = 1L;
+		private final ConcurrentLruCache<ScriptId, Script> scripts;
 
-			@Override
-			protected boolean removeEldestEntry(
-					Entry<String, Script[]> eldest) {
-				return size() > CACHE_SIZE;
-			}
+		private volatile CriteriaIndex criteriaIndex;
 
-		};
+		// row IDs of the indexed user scripts in ascending order, which is the
+		// order of the index, guarded by this
+		private long[] rowIds;
 
-		private ScriptCriteria[] scriptCriteriaArr;
+		/**
+		 * Creates an empty cache.
+		 * 
+		 * @param cacheSize
+		 *            the number of URLs to cache
+		 * @param scriptCacheBytes
+		 *            the approximate number of bytes of user scripts to cache
+		 */
+		public ScriptCache(int cacheSize, long scriptCacheBytes) {
+			urlScripts = new ConcurrentLruCache<String, ScriptId[]>(cacheSize);
+			scripts = new ConcurrentLruCache<ScriptId, Script>(
+					scriptCacheBytes, new ScriptWeigher());
+		}
 
 		/**
 		 * Looks if the given URL has a cache of matching user scripts.
 		 * 
 		 * @param url
-		 *            the URL to look up
-		 * @return if the URL is cached either the found user scripts or an
-		 *         empty array; if the URL is not cached then null
+		 *            the cache key of the URL to look up
+		 * @return if the URL is cached either the IDs of the found user
+		 *         scripts or an empty array; if the URL is not cached then null
+		 * @see CriteriaIndex#getCacheKey(ParsedUrl)
 		 */
-		public synchronized Script[] get(String url) {
+		public ScriptId[] get(String url) {
 			return urlScripts.get(url);
 		}
 
 		/**
-		 * Caches a URL and its matching user scripts.
+		 * Caches a URL and its matching user scripts unless the criteria have
+		 * changed in the meantime.
 		 * 
+		 * @param criteriaIndex
+		 *            the index used to find the matching user scripts
 		 * @param url
-		 *            the URL to cache
-		 * @param scripts
-		 *            the user scripts to execute at that URL
+		 *            the cache key of the URL to cache
+		 * @param ids
+		 *            the IDs of the user scripts to execute at that URL
 		 */
-		public synchronized void put(String url, Script[] scripts) {
-			urlScripts.put(url, scripts);
+		public void put(CriteriaIndex criteriaIndex, String url, ScriptId[] ids) {
+			if (criteriaIndex != this.criteriaIndex) {
+				return;
+			}
+			urlScripts.put(url, ids);
+			if (criteriaIndex != this.criteriaIndex) {
+				// updated concurrently, possibly before invalidating the URLs
+				urlScripts.remove(url);
+			}
 		}
 
 		/**
-		 * Goes through all user script criteria to find all that need to be run
-		 * for the given URL.
+		 * Looks if the given user script is cached.
 		 * 
-		 * @param url
-		 *            the URL to match
-		 * @return an array of matching user script IDs; an empty array if none
-		 *         matched
+		 * @param id
+		 *            the ID of the user script
+		 * @return the cached user script; null if it is not cached
 		 */
-		public ScriptId[] getMatchingScriptIds(String url) {
-			List<ScriptId> matches = new ArrayList<ScriptId>();
-			ScriptCriteria[] criteriaArr = scriptCriteriaArr;
-			for (ScriptCriteria c : criteriaArr) {
-				if (c.testUrl(url)) {
-					matches.add(c);
-				}
+		public Script getScript(ScriptId id) {
+			return scripts.get(toKey(id));
+		}
+
+		/**
+		 * Caches a user script unless the criteria have changed in the
+		 * meantime.
+		 * 
+		 * @param criteriaIndex
+		 *            the index used to find the user script
+		 * @param id
+		 *            the ID of the user script
+		 * @param script
+		 *            the user script to cache
+		 */
+		public void putScript(CriteriaIndex criteriaIndex, ScriptId id,
+				Script script) {
+			if (criteriaIndex != this.criteriaIndex) {
+				return;
+			}
+			id = toKey(id);
+			scripts.put(id, script);
+			if (criteriaIndex != this.criteriaIndex) {
+				// updated concurrently, possibly before invalidating the script
+				scripts.remove(id);
 			}
-			return matches.toArray(new ScriptId[matches.size()]);
 		}
 
 		/**
-		 * Caches the array of user script criteria to be used when matching
-		 * URLs.
+		 * @return the index of user script criteria to be used when matching
+		 *         URLs
+		 */
+		public CriteriaIndex getCriteriaIndex() {
+			return criteriaIndex;
+		}
+
+		/**
+		 * Builds and caches the index of user script criteria to be used when
+		 * matching URLs.
 		 * 
 		 * @param scriptCriteriaArr
-		 *            the array to cache
+		 *            the array of criteria to index ordered by row ID
+		 * @param rowIds
+		 *            the row IDs of the user scripts in the same order
+		 */
+		public synchronized void setScriptCriteriaArr(
+				ScriptCriteria[] scriptCriteriaArr, List<Long> rowIds) {
+			this.rowIds = new long[rowIds.size()];
+			for (int i = 0; i < this.rowIds.length; i++) {
+				this.rowIds[i] = rowIds.get(i);
+			}
+			criteriaIndex = new CriteriaIndex(scriptCriteriaArr);
+			urlScripts.clear();
+			scripts.clear();
+		}
+
+		/**
+		 * Replaces a single user script's criteria in the index and removes
+		 * the cached URLs whose matching user scripts may have changed.
+		 * 
+		 * The user script is placed by its row ID, so that the index keeps the
+		 * order in which the criteria are loaded from the database. The
+		 * criteria of all other user scripts are reused as they are, but the
+		 * index is built anew: user scripts change rarely (when installed,
+		 * enabled, disabled or deleted by the user), and building the index
+		 * takes time linear in the number of patterns, far less than reading
+		 * the criteria from the database, which is not needed.
+		 * 
+		 * @param id
+		 *            the ID of the changed user script
+		 * @param scriptCriteria
+		 *            the user script's new criteria; null if it is no longer
+		 *            available and enabled
+		 * @param rowId
+		 *            the user script's row ID; ignored if scriptCriteria is
+		 *            null
+		 * @param replaced
+		 *            true to also remove the cached user script
+		 */
+		public synchronized void update(ScriptId id,
+				ScriptCriteria scriptCriteria, long rowId, boolean replaced) {
+			id = toKey(id);
+			ScriptCriteria[] previousArr = criteriaIndex.getScriptCriteriaArr();
+			int size = previousArr.length + 1;
+			ScriptCriteria[] scriptCriteriaArr = new ScriptCriteria[size];
+			long[] updatedRowIds = new long[size];
+			int j = 0;
+			for (int i = 0; i < previousArr.length; i++) {
+				if (scriptCriteria != null && rowId < rowIds[i]
+						&& (j == 0 || rowId > updatedRowIds[j - 1])) {
+					scriptCriteriaArr[j] = scriptCriteria;
+					updatedRowIds[j++] = rowId;
+				}
+				if (!hasId(previousArr[i], id)) {
+					scriptCriteriaArr[j] = previousArr[i];
+					updatedRowIds[j++] = rowIds[i];
+				}
+			}
+			if (scriptCriteria != null
+					&& (j == 0 || rowId > updatedRowIds[j - 1])) {
+				scriptCriteriaArr[j] = scriptCriteria;
+				updatedRowIds[j++] = rowId;
+			}
+			if (j < size) {
+				ScriptCriteria[] trimmedArr = new ScriptCriteria[j];
+				System.arraycopy(scriptCriteriaArr, 0, trimmedArr, 0, j);
+				scriptCriteriaArr = trimmedArr;
+				long[] trimmedRowIds = new long[j];
+				System.arraycopy(updatedRowIds, 0, trimmedRowIds, 0, j);
+				updatedRowIds = trimmedRowIds;
+			}
+			rowIds = updatedRowIds;
+			CriteriaIndex updatedIndex = new CriteriaIndex(scriptCriteriaArr);
+			CriteriaIndex previousIndex = criteriaIndex;
+			criteriaIndex = updatedIndex;
+			if (replaced) {
+				scripts.remove(id);
+			}
+			if (updatedIndex.ignoresFragments() != previousIndex
+					.ignoresFragments()) {
+				// cache keys are normalized differently
+				urlScripts.clear();
+				return;
+			}
+			for (Map.Entry<String, ScriptId[]> entry : urlScripts.snapshot()
+					.entrySet()) {
+				if (contains(entry.getValue(), id)
+						|| (scriptCriteria != null && scriptCriteria
+								.testUrl(entry.getKey()))) {
+					urlScripts.remove(entry.getKey());
+				}
+			}
+		}
+
+		/**
+		 * @param ids
+		 *            an array of user script IDs
+		 * @param id
+		 *            the ID to look for
+		 * @return true if the array contains the ID
+		 */
+		private static boolean contains(ScriptId[] ids, ScriptId id) {
+			for (ScriptId element : ids) {
+				if (element.equals(id)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Compares IDs regardless of the objects' classes (unlike
+		 * ScriptId.equals).
+		 * 
+		 * @param script
+		 *            a user script's criteria
+		 * @param id
+		 *            the ID to compare with
+		 * @return true if the user script has the given ID
 		 */
-		public void setScriptCriteriaArr(ScriptCriteria[] scriptCriteriaArr) {
-			this.scriptCriteriaArr = scriptCriteriaArr;
+		private static boolean hasId(ScriptId script, ScriptId id) {
+			return script.getName().equals(id.getName())
+					&& script.getNamespace().equals(id.getNamespace());
+		}
+
+	}
+
+	/**
+	 * Estimates the memory retained by a user script in bytes, dominated by
+	 * its content, the content of its requires and the data of its
+	 * resources.
+	 */
+	private static class ScriptWeigher implements
+			ConcurrentLruCache.Weigher<Script> {
+
+		@Override
+		public int weigh(Script script) {
+			long bytes = 2L * script.getContent().length();
+			ScriptRequire[] requires = script.getRequires();
+			if (requires != null) {
+				for (ScriptRequire require : requires) {
+					bytes += 2L * require.getContent().length();
+				}
+			}
+			ScriptResource[] resources = script.getResources();
+			if (resources != null) {
+				for (ScriptResource resource : resources) {
+					bytes += resource.getData().length;
+				}
+			}
+			return (int) Math.min(bytes, Integer.MAX_VALUE);
 		}
 
 	}
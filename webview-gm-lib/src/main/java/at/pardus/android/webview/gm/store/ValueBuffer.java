@@ -0,0 +1,311 @@
+/*
+ *    Copyright 2012 Werner Bayer
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package at.pardus.android.webview.gm.store;
+
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import at.pardus.android.webview.gm.model.ScriptId;
+
+/**
+ * Write-behind buffer of values set and deleted by user scripts.
+ *
+ * Repeated writes to the same value only keep the latest one. Buffered values
+ * are written in a single transaction after a delay following the first
+ * buffered write, as soon as a maximum number of values is buffered or when
+ * flushed explicitly. Values being written remain visible until the write has
+ * completed.
+ *
+ * Keys are expected to be plain ScriptId instances (ScriptId.equals compares
+ * classes).
+ */
+class ValueBuffer {
+
+	private static final String TAG = ValueBuffer.class.getName();
+
+	/**
+	 * Marks a deleted value. Compared by identity.
+	 */
+	static final String DELETED = new String("deleted");
+
+	private final Writer writer;
+
+	private final long delayMillis;
+
+	private final int maxValues;
+
+	private final Timer timer = new Timer(TAG, true);
+
+	private final Object lock = new Object();
+
+	private final Object flushLock = new Object();
+
+	private Map<ScriptId, Map<String, String>> pending = new HashMap<ScriptId, Map<String, String>>();
+
+	private Map<ScriptId, Map<String, String>> flushing = Collections
+			.emptyMap();
+
+	private int pendingCount;
+
+	private boolean scheduled;
+
+	private boolean closed;
+
+	/**
+	 * Creates an empty buffer.
+	 *
+	 * @param writer
+	 *            the object writing buffered values to the database
+	 * @param delayMillis
+	 *            the time after the first buffered write when all buffered
+	 *            values are written
+	 * @param maxValues
+	 *            the number of buffered values at which they are written
+	 *            without waiting for the delay
+	 */
+	public ValueBuffer(Writer writer, long delayMillis, int maxValues) {
+		this.writer = writer;
+		this.delayMillis = delayMillis;
+		this.maxValues = maxValues;
+	}
+
+	/**
+	 * Buffers a value to be written.
+	 *
+	 * @param id
+	 *            the owner script
+	 * @param name
+	 *            the key
+	 * @param value
+	 *            the new value; DELETED to delete the value
+	 */
+	public void put(ScriptId id, String name, String value) {
+		synchronized (lock) {
+			if (closed) {
+				Log.e(TAG, "Cannot buffer value (buffer closed)");
+				return;
+			}
+			Map<String, String> values = pending.get(id);
+			if (values == null) {
+				values = new HashMap<String, String>();
+				pending.put(id, values);
+			}
+			if (!values.containsKey(name)) {
+				pendingCount++;
+			}
+			values.put(name, value);
+			if (!scheduled) {
+				timer.schedule(new FlushTask(), delayMillis);
+				scheduled = true;
+			}
+			// scheduled under the lock, close cancels the timer
+			if (pendingCount == maxValues) {
+				timer.schedule(new FlushTask(), 0);
+			}
+		}
+	}
+
+	/**
+	 * Looks up a buffered value.
+	 *
+	 * @param id
+	 *            the owner script
+	 * @param name
+	 *            the key
+	 * @return the buffered value; DELETED if the value is to be deleted; null
+	 *         if the value is not buffered
+	 */
+	public String get(ScriptId id, String name) {
+		synchronized (lock) {
+			Map<String, String> values = pending.get(id);
+			if (values != null && values.containsKey(name)) {
+				return values.get(name);
+			}
+			values = flushing.get(id);
+			if (values != null && values.containsKey(name)) {
+				return values.get(name);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Copies all buffered values of a script. To be applied to the values
+	 * read from the database afterwards.
+	 *
+	 * @param id
+	 *            the owner script
+	 * @return the buffered values mapped to their keys, including DELETED
+	 *         values; an empty map if none are buffered
+	 */
+	public Map<String, String> getAll(ScriptId id) {
+		Map<String, String> all = new LinkedHashMap<String, String>();
+		synchronized (lock) {
+			Map<String, String> values = flushing.get(id);
+			if (values != null) {
+				all.putAll(values);
+			}
+			values = pending.get(id);
+			if (values != null) {
+				all.putAll(values);
+			}
+		}
+		return all;
+	}
+
+	/**
+	 * Drops all buffered values of a script, waiting for any write in
+	 * progress to complete.
+	 *
+	 * @param id
+	 *            the owner script
+	 */
+	public void discard(ScriptId id) {
+		synchronized (flushLock) {
+			synchronized (lock) {
+				Map<String, String> values = pending.remove(id);
+				if (values != null) {
+					pendingCount -= values.size();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes all buffered values in the calling thread.
+	 *
+	 * If the write fails, the values are buffered again, unless newer values
+	 * with the same keys have been buffered in the meantime, and another write
+	 * is scheduled.
+	 *
+	 * @throws RuntimeException
+	 *             if the values could not be written
+	 */
+	public void flush() {
+		synchronized (flushLock) {
+			Map<ScriptId, Map<String, String>> values;
+			synchronized (lock) {
+				scheduled = false;
+				if (pending.isEmpty()) {
+					return;
+				}
+				values = pending;
+				flushing = pending;
+				pending = new HashMap<ScriptId, Map<String, String>>();
+				pendingCount = 0;
+			}
+			try {
+				writer.writeValues(values);
+			} catch (RuntimeException e) {
+				synchronized (lock) {
+					requeue(values);
+				}
+				throw e;
+			} finally {
+				synchronized (lock) {
+					flushing = Collections.emptyMap();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Buffers values again whose write has failed and schedules another write.
+	 * Values buffered since take precedence. To be called holding the lock.
+	 *
+	 * @param values
+	 *            the values that could not be written
+	 */
+	private void requeue(Map<ScriptId, Map<String, String>> values) {
+		for (Map.Entry<ScriptId, Map<String, String>> scriptValues : values
+				.entrySet()) {
+			Map<String, String> newer = pending.get(scriptValues.getKey());
+			if (newer == null) {
+				pending.put(scriptValues.getKey(), scriptValues.getValue());
+				pendingCount += scriptValues.getValue().size();
+				continue;
+			}
+			for (Map.Entry<String, String> value : scriptValues.getValue()
+					.entrySet()) {
+				if (!newer.containsKey(value.getKey())) {
+					newer.put(value.getKey(), value.getValue());
+					pendingCount++;
+				}
+			}
+		}
+		if (!scheduled && !closed) {
+			timer.schedule(new FlushTask(), delayMillis);
+			scheduled = true;
+		}
+	}
+
+	/**
+	 * Stops the timer and writes all buffered values. No further values may be
+	 * buffered.
+	 *
+	 * @throws RuntimeException
+	 *             if the values could not be written; they remain buffered
+	 *             and may be written by calling flush
+	 */
+	public void close() {
+		synchronized (lock) {
+			closed = true;
+			timer.cancel();
+		}
+		flush();
+	}
+
+	/**
+	 * Writes buffered values to the database.
+	 */
+	interface Writer {
+
+		/**
+		 * Writes values in a single transaction.
+		 *
+		 * @param values
+		 *            the values to write mapped to their keys mapped to their
+		 *            owner scripts; DELETED values are to be deleted
+		 */
+		void writeValues(Map<ScriptId, Map<String, String>> values);
+
+	}
+
+	/**
+	 * Task writing all buffered values in the timer's thread.
+	 */
+	private class FlushTask extends TimerTask {
+
+		@Override
+		public void run() {
+			try {
+				flush();
+			} catch (RuntimeException e) {
+				Log.e(TAG, "Error writing buffered values (retrying after "
+						+ delayMillis + " ms)", e);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,206 @@
+/*
+ *    Copyright 2012 Werner Bayer
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package at.pardus.android.webview.gm.store;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import at.pardus.android.webview.gm.model.ScriptId;
+import at.pardus.android.webview.gm.util.ConcurrentLruCache;
+
+/**
+ * Cache of all values of recently used user scripts, bounded by their
+ * approximate size in bytes. Scripts are evicted with all of their values.
+ * The values of a script exceeding the capacity on their own are not cached;
+ * such a script is remembered (among a bounded number of recently used ones)
+ * until one of its values is deleted, which may bring its values below the
+ * capacity, or until it is removed from the cache.
+ *
+ * Lookups do not lock. Loading and updating the values of a script have to be
+ * serialized by the caller, so that a script's values are not loaded while
+ * they are being changed.
+ *
+ * Keys are expected to be plain ScriptId instances (ScriptId.equals compares
+ * classes).
+ */
+class ValueCache {
+
+	// approximate memory used by a script's map and each of its entries
+	private static final int SCRIPT_OVERHEAD = 64;
+	private static final int VALUE_OVERHEAD = 64;
+
+	// number of scripts with too large values to remember
+	private static final int OVERSIZED_CAPACITY = 64;
+
+	private final long capacityBytes;
+
+	private final ConcurrentLruCache<ScriptId, Values> cache;
+
+	private final ConcurrentLruCache<ScriptId, Boolean> oversized = new ConcurrentLruCache<ScriptId, Boolean>(
+			OVERSIZED_CAPACITY);
+
+	/**
+	 * Creates an empty cache.
+	 *
+	 * @param capacityBytes
+	 *            the approximate number of bytes of values to keep in memory
+	 */
+	public ValueCache(long capacityBytes) {
+		this.capacityBytes = capacityBytes;
+		cache = new ConcurrentLruCache<ScriptId, Values>(capacityBytes,
+				new ConcurrentLruCache.Weigher<Values>() {
+
+					@Override
+					public int weigh(Values values) {
+						return (int) Math.min(Integer.MAX_VALUE, values.bytes);
+					}
+
+				});
+	}
+
+	/**
+	 * Looks up the values of a script.
+	 *
+	 * @param id
+	 *            the owner script
+	 * @return an unmodifiable view of the script's values mapped to their keys
+	 *         reflecting later changes; null if the script's values are not
+	 *         cached
+	 */
+	public Map<String, String> get(ScriptId id) {
+		Values values = cache.get(id);
+		return (values == null) ? null : values.view;
+	}
+
+	/**
+	 * @param id
+	 *            the owner script
+	 * @return false if the script's values have been too large to be cached
+	 */
+	public boolean isCacheable(ScriptId id) {
+		return oversized.get(id) == null;
+	}
+
+	/**
+	 * Caches all values of a script unless they exceed the capacity.
+	 *
+	 * @param id
+	 *            the owner script
+	 * @param loaded
+	 *            the script's values mapped to their keys
+	 * @return an unmodifiable view of the cached values reflecting later
+	 *         changes; null if the values are too large to be cached
+	 */
+	public Map<String, String> put(ScriptId id, Map<String, String> loaded) {
+		Values values = new Values();
+		for (Map.Entry<String, String> entry : loaded.entrySet()) {
+			values.set(entry.getKey(), entry.getValue());
+		}
+		if (values.bytes > capacityBytes) {
+			oversized.put(id, Boolean.TRUE);
+			return null;
+		}
+		cache.put(id, values);
+		return values.view;
+	}
+
+	/**
+	 * Updates a value of a script if the script's values are cached. Deleting
+	 * a value of a script whose values have been too large to be cached lets
+	 * them be loaded again to check whether they fit now.
+	 *
+	 * @param id
+	 *            the owner script
+	 * @param name
+	 *            the key
+	 * @param value
+	 *            the new value; null if the value has been deleted
+	 */
+	public void set(ScriptId id, String name, String value) {
+		Values values = cache.get(id);
+		if (values != null) {
+			values.set(name, value);
+			if (values.bytes > capacityBytes) {
+				oversized.put(id, Boolean.TRUE);
+				cache.remove(id);
+			} else {
+				// weigh again
+				cache.put(id, values);
+			}
+		} else if (value == null) {
+			oversized.remove(id);
+		}
+	}
+
+	/**
+	 * Drops all cached values of a script and forgets whether they have been
+	 * too large to be cached.
+	 *
+	 * @param id
+	 *            the owner script
+	 */
+	public void remove(ScriptId id) {
+		cache.remove(id);
+		oversized.remove(id);
+	}
+
+	/**
+	 * Values of a script with their approximate size in bytes.
+	 */
+	private static class Values {
+
+		private final Map<String, String> map = new ConcurrentHashMap<String, String>();
+
+		private final Map<String, String> view = Collections
+				.unmodifiableMap(map);
+
+		private volatile long bytes = SCRIPT_OVERHEAD;
+
+		/**
+		 * @param name
+		 *            the key
+		 * @param value
+		 *            the new value; null to remove it
+		 */
+		private void set(String name, String value) {
+			String replaced = (value == null) ? map.remove(name) : map.put(
+					name, value);
+			long delta = 0;
+			if (replaced != null) {
+				delta -= weigh(name, replaced);
+			}
+			if (value != null) {
+				delta += weigh(name, value);
+			}
+			bytes += delta;
+		}
+
+		/**
+		 * @param name
+		 *            a key
+		 * @param value
+		 *            its value
+		 * @return the approximate memory used by the entry
+		 */
+		private static long weigh(String name, String value) {
+			return VALUE_OVERHEAD + 2L * (name.length() + value.length());
+		}
+
+	}
+
+}
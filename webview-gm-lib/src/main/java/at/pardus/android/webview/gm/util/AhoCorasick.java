@@ -0,0 +1,163 @@
+/*
+ *    Copyright 2012 Werner Bayer
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package at.pardus.android.webview.gm.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Immutable Aho-Corasick automaton to find any number of literal strings in a
+ * text with a single scan.
+ *
+ * @see <tt><a href="https://en.wikipedia.org/wiki/Aho%E2%80%93Corasick_algorithm">Aho-Corasick algorithm</a></tt>
+ */
+public class AhoCorasick {
+
+	private final int literalCount;
+
+	private final char[][] transitionChars;
+
+	private final int[][] transitionTargets;
+
+	private final int[] failure;
+
+	private final int[] output;
+
+	private final int[] outputLink;
+
+	/**
+	 * Builds an automaton finding the given literals.
+	 *
+	 * @param literals
+	 *            the non-empty strings to search for; their indices identify
+	 *            them in search results
+	 */
+	public AhoCorasick(String[] literals) {
+		literalCount = literals.length;
+		List<TreeMap<Character, Integer>> trie = new ArrayList<TreeMap<Character, Integer>>();
+		List<Integer> outputs = new ArrayList<Integer>();
+		trie.add(new TreeMap<Character, Integer>());
+		outputs.add(-1);
+		for (int i = 0; i < literals.length; i++) {
+			int node = 0;
+			String literal = literals[i];
+			for (int j = 0; j < literal.length(); j++) {
+				Character c = literal.charAt(j);
+				Integer next = trie.get(node).get(c);
+				if (next == null) {
+					next = trie.size();
+					trie.get(node).put(c, next);
+					trie.add(new TreeMap<Character, Integer>());
+					outputs.add(-1);
+				}
+				node = next;
+			}
+			outputs.set(node, i);
+		}
+		int nodeCount = trie.size();
+		transitionChars = new char[nodeCount][];
+		transitionTargets = new int[nodeCount][];
+		failure = new int[nodeCount];
+		output = new int[nodeCount];
+		outputLink = new int[nodeCount];
+		for (int node = 0; node < nodeCount; node++) {
+			TreeMap<Character, Integer> transitions = trie.get(node);
+			transitionChars[node] = new char[transitions.size()];
+			transitionTargets[node] = new int[transitions.size()];
+			int j = 0;
+			for (Map.Entry<Character, Integer> entry : transitions.entrySet()) {
+				transitionChars[node][j] = entry.getKey();
+				transitionTargets[node][j] = entry.getValue();
+				j++;
+			}
+			output[node] = outputs.get(node);
+		}
+		// breadth-first traversal to set failure and output links
+		int[] queue = new int[nodeCount];
+		int head = 0, tail = 0;
+		queue[tail++] = 0;
+		outputLink[0] = -1;
+		while (head < tail) {
+			int node = queue[head++];
+			for (int j = 0; j < transitionChars[node].length; j++) {
+				char c = transitionChars[node][j];
+				int child = transitionTargets[node][j];
+				int fail = 0;
+				if (node != 0) {
+					fail = failure[node];
+					int next;
+					while ((next = transition(fail, c)) == -1 && fail != 0) {
+						fail = failure[fail];
+					}
+					fail = (next == -1) ? 0 : next;
+				}
+				failure[child] = fail;
+				outputLink[child] = (output[fail] != -1) ? fail
+						: outputLink[fail];
+				queue[tail++] = child;
+			}
+		}
+	}
+
+	/**
+	 * Scans a text for all literals of the automaton.
+	 *
+	 * @param text
+	 *            the text to scan
+	 * @param found
+	 *            array with one element for each literal, set to true for
+	 *            each literal occurring in text (output)
+	 */
+	public void findAll(String text, boolean[] found) {
+		int node = 0;
+		int len = text.length();
+		for (int i = 0; i < len; i++) {
+			char c = text.charAt(i);
+			int next;
+			while ((next = transition(node, c)) == -1 && node != 0) {
+				node = failure[node];
+			}
+			node = (next == -1) ? 0 : next;
+			for (int out = (output[node] != -1) ? node : outputLink[node]; out > 0; out = outputLink[out]) {
+				found[output[out]] = true;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of literals the automaton searches for
+	 */
+	public int getLiteralCount() {
+		return literalCount;
+	}
+
+	/**
+	 * @param node
+	 *            the current node
+	 * @param c
+	 *            the next character
+	 * @return the child node reached with c; -1 if there is none
+	 */
+	private int transition(int node, char c) {
+		int j = Arrays.binarySearch(transitionChars[node], c);
+		return (j < 0) ? -1 : transitionTargets[node][j];
+	}
+
+}
@@ -0,0 +1,287 @@
+/*
+ *    Copyright 2012 Werner Bayer
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package at.pardus.android.webview.gm.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Thread-safe cache evicting approximately the least recently used entries.
+ *
+ * Reads do not lock and only record the time of access. The cache may grow
+ * slightly beyond its capacity before the least recently used entries are
+ * evicted in one batch by a single thread, so that the cost of sorting the
+ * entries by access time is shared by several insertions.
+ *
+ * The capacity is either a number of entries or, if a Weigher is given, a
+ * total weight of the cached values (e.g. their size in bytes).
+ *
+ * @param <K>
+ *            the type of keys
+ * @param <V>
+ *            the type of values
+ */
+public class ConcurrentLruCache<K, V> {
+
+	private final ConcurrentHashMap<K, Node<V>> map;
+
+	private final Weigher<? super V> weigher;
+
+	private final long capacity;
+
+	private final long maxWeight;
+
+	private final AtomicLong weight = new AtomicLong();
+
+	private final AtomicLong clock = new AtomicLong();
+
+	private final ReentrantLock evictionLock = new ReentrantLock();
+
+	private final AtomicLong hitCount = new AtomicLong();
+
+	private final AtomicLong missCount = new AtomicLong();
+
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	/**
+	 * Creates an empty cache bounded by the number of entries.
+	 *
+	 * @param capacity
+	 *            the number of entries to keep after an eviction
+	 */
+	public ConcurrentLruCache(int capacity) {
+		this(capacity, null);
+	}
+
+	/**
+	 * Creates an empty cache bounded by the total weight of its values.
+	 *
+	 * @param capacity
+	 *            the total weight to keep after an eviction
+	 * @param weigher
+	 *            the function determining the weight of a value; null to
+	 *            weigh each value as 1
+	 */
+	public ConcurrentLruCache(long capacity, Weigher<? super V> weigher) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be positive");
+		}
+		this.weigher = weigher;
+		this.capacity = capacity;
+		this.maxWeight = capacity + Math.max(1, capacity / 8);
+		this.map = new ConcurrentHashMap<K, Node<V>>();
+	}
+
+	/**
+	 * Looks up a cached value and marks it as recently used.
+	 *
+	 * @param key
+	 *            the key to look up
+	 * @return the cached value; null if the key is not cached
+	 */
+	public V get(K key) {
+		Node<V> node = map.get(key);
+		if (node == null) {
+			missCount.incrementAndGet();
+			return null;
+		}
+		node.accessed = clock.incrementAndGet();
+		hitCount.incrementAndGet();
+		return node.value;
+	}
+
+	/**
+	 * Caches a value, replacing any value cached under the same key.
+	 *
+	 * @param key
+	 *            the key to cache the value under
+	 * @param value
+	 *            the value to cache
+	 */
+	public void put(K key, V value) {
+		Node<V> node = new Node<V>(value, (weigher == null) ? 1
+				: weigher.weigh(value), clock.incrementAndGet());
+		Node<V> replaced = map.put(key, node);
+		long total = weight.addAndGet((replaced == null) ? node.weight
+				: node.weight - replaced.weight);
+		if (total > maxWeight) {
+			evict();
+		}
+	}
+
+	/**
+	 * Removes a value from the cache.
+	 *
+	 * @param key
+	 *            the key of the value to remove
+	 */
+	public void remove(K key) {
+		Node<V> removed = map.remove(key);
+		if (removed != null) {
+			weight.addAndGet(-removed.weight);
+		}
+	}
+
+	/**
+	 * Removes all values from the cache.
+	 */
+	public void clear() {
+		for (K key : map.keySet()) {
+			remove(key);
+		}
+	}
+
+	/**
+	 * Copies the cached entries without marking them as recently used.
+	 *
+	 * @return the cached keys and values at some point during the call
+	 */
+	public Map<K, V> snapshot() {
+		Map<K, V> entries = new HashMap<K, V>();
+		for (Map.Entry<K, Node<V>> entry : map.entrySet()) {
+			entries.put(entry.getKey(), entry.getValue().value);
+		}
+		return entries;
+	}
+
+	/**
+	 * @return the number of cached entries
+	 */
+	public int size() {
+		return map.size();
+	}
+
+	/**
+	 * @return the total weight of the cached values
+	 */
+	public long weight() {
+		return weight.get();
+	}
+
+	/**
+	 * @return the number of entries or total weight to keep after an
+	 *         eviction
+	 */
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the number of lookups that found a cached value
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * @return the number of lookups that did not find a cached value
+	 */
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	/**
+	 * @return the number of entries removed to stay within capacity
+	 */
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	/**
+	 * Removes the least recently used entries until the cache is back within
+	 * its capacity. Skipped if another thread is already evicting.
+	 */
+	private void evict() {
+		if (!evictionLock.tryLock()) {
+			return;
+		}
+		try {
+			List<Map.Entry<K, Node<V>>> entries = new ArrayList<Map.Entry<K, Node<V>>>(
+					map.entrySet());
+			final long[] accessed = new long[entries.size()];
+			Integer[] order = new Integer[entries.size()];
+			for (int i = 0; i < order.length; i++) {
+				// read once, the entry's node may be accessed concurrently
+				accessed[i] = entries.get(i).getValue().accessed;
+				order[i] = i;
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+
+				@Override
+				public int compare(Integer lhs, Integer rhs) {
+					long l = accessed[lhs], r = accessed[rhs];
+					return (l < r) ? -1 : ((l == r) ? 0 : 1);
+				}
+
+			});
+			for (int i = 0; i < order.length && weight.get() > capacity; i++) {
+				Map.Entry<K, Node<V>> entry = entries.get(order[i]);
+				Node<V> node = entry.getValue();
+				if (map.remove(entry.getKey(), node)) {
+					weight.addAndGet(-node.weight);
+					evictionCount.incrementAndGet();
+				}
+			}
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Determines the weight of cached values.
+	 *
+	 * @param <V>
+	 *            the type of values
+	 */
+	public interface Weigher<V> {
+
+		/**
+		 * @param value
+		 *            a value to be cached
+		 * @return the non-negative weight of the value
+		 */
+		int weigh(V value);
+
+	}
+
+	/**
+	 * Cached value with its weight and the time of its last access.
+	 */
+	private static class Node<V> {
+
+		private final V value;
+
+		private final int weight;
+
+		private volatile long accessed;
+
+		public Node(V value, int weight, long accessed) {
+			this.value = value;
+			this.weight = weight;
+			this.accessed = accessed;
+		}
+
+	}
+
+}
@@ -16,122 +16,157 @@
 
 package at.pardus.android.webview.gm.util;
 
+import android.util.Log;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
 /**
- * Class offering static functions to compare a script's exclude/include/match
- * criteria with a URL.
+ * Immutable, compiled form of a script's exclude/include/match criterion to be
+ * compared with URLs. Also offers a static function to test a criterion string
+ * directly.
+ *
+ * @see MatchPattern
+ *
+ * @see <tt><a href="http://wiki.greasespot.net/Include_and_exclude_rules">Rules</a></tt>
+ * @see <tt><a href="http://code.google.com/chrome/extensions/match_patterns.html">Match Syntax</a></tt>
  */
-public class CriterionMatcher {
+public abstract class CriterionMatcher {
+
+	private static final String TAG = CriterionMatcher.class.getName();
+
+	private final String criterion;
 
 	/**
 	 * Tests a URL against a criterion (may be a regex or simple glob-type
 	 * pattern). Case-insensitive.
-	 * 
+	 *
+	 * Compiles the criterion on each call. Use compile to test the same
+	 * criterion repeatedly.
+	 *
 	 * @param criterion
 	 *            the pattern to test against
 	 * @param url
 	 *            the URL to test
 	 * @return true if the URL matches the criterion, false else
-	 * @see <tt><a href="http://wiki.greasespot.net/Include_and_exclude_rules">Rules</a></tt>
-	 * @see <tt><a href="http://code.google.com/chrome/extensions/match_patterns.html">Match Syntax</a></tt>
 	 */
 	public static boolean test(String criterion, String url) {
+		return compile(criterion).matches(new ParsedUrl(url));
+	}
+
+	/**
+	 * Compiles a criterion (may be a regex or simple glob-type pattern).
+	 *
+	 * @param criterion
+	 *            the pattern to compile
+	 * @return the compiled criterion
+	 */
+	public static CriterionMatcher compile(String criterion) {
 		if (criterion.length() == 0) {
-			return true;
+			return new AnyMatcher(criterion);
 		}
-		criterion = criterion.toLowerCase();
-		url = url.toLowerCase();
 		if (isRegExp(criterion)) {
-			return url.matches(".*" + convertJsRegExp(criterion) + ".*");
+			return new RegExpMatcher(criterion);
 		}
-		return testGlob(criterion, url);
+		return new GlobMatcher(criterion);
 	}
 
 	/**
-	 * Tests a string against a glob-type pattern (supporting only * and the
-	 * escape character \).
-	 * 
-	 * @param pattern
-	 *            the glob pattern
-	 * @param str
-	 *            the string to match against the pattern
-	 * @return true if the string matches the pattern, false else
+	 * Compiles an array of criteria.
+	 *
+	 * @param criteria
+	 *            the patterns to compile (may be null)
+	 * @return the compiled criteria in the same order; null if criteria is
+	 *         null
 	 */
-	private static boolean testGlob(String pattern, String str) {
-		return testGlob(pattern, 0, str, 0);
+	public static CriterionMatcher[] compile(String[] criteria) {
+		if (criteria == null) {
+			return null;
+		}
+		CriterionMatcher[] matchers = new CriterionMatcher[criteria.length];
+		for (int i = 0; i < criteria.length; i++) {
+			matchers[i] = compile(criteria[i]);
+		}
+		return matchers;
 	}
 
 	/**
-	 * Recursively tests a string against a glob-type pattern (supporting only *
-	 * and the escape character \).
-	 * 
-	 * @param pattern
-	 *            the glob pattern
-	 * @param pInd
-	 *            the index in the pattern to start testing from
-	 * @param str
-	 *            the string to match against the pattern
-	 * @param sInd
-	 *            the index in the string to start testing from
-	 * @return true if the string from the given index to its end matches the
-	 *         pattern from the given index to its end, false else
+	 * Constructor to be called by subclasses.
+	 *
+	 * @param criterion
+	 *            the original pattern
 	 */
-	private static boolean testGlob(String pattern, int pInd, String str,
-			int sInd) {
-		int pLen = pattern.length();
-		int sLen = str.length();
-		while (true) {
-			if (pInd == pLen) {
-				return sInd == sLen;
-			}
-			char pChar = pattern.charAt(pInd);
-			if (pChar == '*') {
-				pInd++;
-				if (pInd >= pLen) {
-					return true;
-				}
-				while (true) {
-					if (testGlob(pattern, pInd, str, sInd)) {
-						return true;
-					}
-					if (sInd == sLen) {
-						return false;
-					}
-					sInd++;
-				}
-			}
-			if (sInd == sLen) {
-				return false;
-			}
-			if (pChar == '\\') {
-				pInd++;
-				if (pInd >= pLen) {
-					return false;
-				}
-				pChar = pattern.charAt(pInd);
-			}
-			char sChar = str.charAt(sInd);
-			if (pChar != sChar) {
-				return false;
-			}
-			pInd++;
-			sInd++;
-		}
+	CriterionMatcher(String criterion) {
+		this.criterion = criterion;
+	}
+
+	/**
+	 * Tests a URL against this criterion. Case-insensitive.
+	 *
+	 * @param url
+	 *            the URL to test
+	 * @return true if the URL matches the criterion, false else
+	 */
+	public abstract boolean matches(ParsedUrl url);
+
+	/**
+	 * Determines the schemes and hosts this criterion is anchored to, i.e. the
+	 * only schemes and hosts a URL may have to match the criterion.
+	 *
+	 * Glob-type patterns starting with a literal scheme and host (e.g.
+	 * http://example.com/*) are anchored to that host. Regular expressions,
+	 * patterns with wildcards or escapes in their scheme or host part and
+	 * patterns with user info or port in their host part are not anchored.
+	 *
+	 * @return the lower-case schemes and hosts in the form scheme://host if
+	 *         the criterion is anchored, where host may be of the form
+	 *         *.domain to include domain and all of its subdomains; null if
+	 *         the criterion is not anchored
+	 * @see ParsedUrl#getHostKey()
+	 */
+	public String[] getHostKeys() {
+		return null;
 	}
 
 	/**
-	 * Converts a JS RegExp to a Java string to be used in pattern matching.
-	 * 
-	 * @param jsRegExp
-	 *            the JS RegExp
-	 * @return the JS regular expression as Java-compatible string
+	 * Determines a literal string that occurs in every URL matching this
+	 * criterion.
+	 *
+	 * @return a non-empty lower-case literal string required to match; null
+	 *         if there is none
 	 */
-	private static String convertJsRegExp(String jsRegExp) {
-        return jsRegExp.substring(1, jsRegExp.length() - 1);
+	public String getRequiredLiteral() {
+		return null;
+	}
+
+	/**
+	 * Determines whether the result of matching a URL never depends on its
+	 * fragment, so that the fragment can be stripped before matching.
+	 *
+	 * @return true if a URL matches the criterion exactly if the URL without
+	 *         its fragment does, false if that cannot be guaranteed
+	 * @see ParsedUrl#getFragmentStart()
+	 */
+	public boolean ignoresFragment() {
+		return false;
+	}
+
+	/**
+	 * @return the original pattern
+	 */
+	public String getCriterion() {
+		return criterion;
+	}
+
+	@Override
+	public String toString() {
+		return criterion;
 	}
 
 	/**
 	 * Tests whether a given string is a JS RegExp.
-	 * 
+	 *
 	 * @param str
 	 *            the string to test
 	 * @return true if the string starts with a / and ends with another /
@@ -141,9 +176,150 @@ public class CriterionMatcher {
 	}
 
 	/**
-	 * Private constructor.
+	 * Empty criterion matching any URL.
+	 */
+	private static class AnyMatcher extends CriterionMatcher {
+
+		public AnyMatcher(String criterion) {
+			super(criterion);
+		}
+
+		@Override
+		public boolean matches(ParsedUrl url) {
+			return true;
+		}
+
+		@Override
+		public boolean ignoresFragment() {
+			return true;
+		}
+
+	}
+
+	/**
+	 * Criterion given as JS RegExp (/.../) to be found anywhere in the URL.
 	 */
-	private CriterionMatcher() {
+	private static class RegExpMatcher extends CriterionMatcher {
+
+		private final Pattern pattern;
+
+		private final ThreadLocal<Matcher> matcher = new ThreadLocal<Matcher>() {
+
+			@Override
+			protected Matcher initialValue() {
+				return pattern.matcher("");
+			}
+
+		};
+
+		public RegExpMatcher(String criterion) {
+			super(criterion);
+			String lowerCaseCriterion = criterion.toLowerCase();
+			Pattern compiled = null;
+			try {
+				compiled = Pattern.compile(".*"
+						+ convertJsRegExp(lowerCaseCriterion) + ".*");
+			} catch (PatternSyntaxException e) {
+				Log.w(TAG, "Invalid regular expression " + criterion
+						+ " will not match any URL");
+			}
+			this.pattern = compiled;
+		}
+
+		@Override
+		public boolean matches(ParsedUrl url) {
+			return pattern != null
+					&& matcher.get().reset(url.getLowerCase()).matches();
+		}
+
+		/**
+		 * Converts a JS RegExp to a Java string to be used in pattern
+		 * matching.
+		 *
+		 * @param jsRegExp
+		 *            the JS RegExp
+		 * @return the JS regular expression as Java-compatible string
+		 */
+		private static String convertJsRegExp(String jsRegExp) {
+			return jsRegExp.substring(1, jsRegExp.length() - 1);
+		}
+
+	}
+
+	/**
+	 * Criterion given as glob-type pattern (supporting only * and the escape
+	 * character \) that has to match the whole URL.
+	 */
+	private static class GlobMatcher extends CriterionMatcher {
+
+		private final GlobPattern pattern;
+
+		private final String[] hostKeys;
+
+		public GlobMatcher(String criterion) {
+			super(criterion);
+			String lowerCaseCriterion = criterion.toLowerCase();
+			this.pattern = new GlobPattern(lowerCaseCriterion, true);
+			String anchoredHost = findAnchoredHost(lowerCaseCriterion);
+			this.hostKeys = (anchoredHost == null) ? null
+					: new String[] { anchoredHost };
+		}
+
+		@Override
+		public boolean matches(ParsedUrl url) {
+			String lowerCaseUrl = url.getLowerCase();
+			return pattern.matches(lowerCaseUrl, 0, lowerCaseUrl.length());
+		}
+
+		@Override
+		public String[] getHostKeys() {
+			return hostKeys;
+		}
+
+		@Override
+		public String getRequiredLiteral() {
+			return pattern.getLongestSegment(false);
+		}
+
+		@Override
+		public boolean ignoresFragment() {
+			// a wildcard followed by a literal may match inside the fragment
+			String prefix = pattern.getPrefix();
+			return prefix != null && prefix.indexOf('#') == -1;
+		}
+
+		/**
+		 * Determines the scheme and host a lower-case glob-type pattern is
+		 * anchored to.
+		 *
+		 * @param pattern
+		 *            the pattern to examine
+		 * @return the scheme and host in the form scheme://host if the pattern
+		 *         starts with them literally, null else
+		 */
+		private static String findAnchoredHost(String pattern) {
+			int hostStart = pattern.indexOf("://");
+			if (hostStart == -1) {
+				return null;
+			}
+			hostStart += 3;
+			int len = pattern.length();
+			int hostEnd = hostStart;
+			for (int i = 0; i < len; i++) {
+				char c = pattern.charAt(i);
+				if (i >= hostStart && c == '/') {
+					break;
+				}
+				if (c == '*'
+						|| c == '\\'
+						|| (i >= hostStart && (c == '?' || c == '#'
+								|| c == '@' || c == ':'))) {
+					return null;
+				}
+				hostEnd = i + 1;
+			}
+			return pattern.substring(0, hostEnd);
+		}
 
 	}
 
@@ -0,0 +1,236 @@
+/*
+ *    Copyright 2012 Werner Bayer
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package at.pardus.android.webview.gm.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Immutable, compiled glob-type pattern supporting only the wildcard * and
+ * optionally the escape character \.
+ *
+ * The pattern is compiled into the literal segments between its wildcards.
+ * Since a wildcard may match any string, the segments can be searched for
+ * greedily from left to right, which takes linear time in the length of the
+ * tested string regardless of the number of wildcards.
+ */
+class GlobPattern {
+
+	private final String[] segments;
+
+	private final int[][] failureTables;
+
+	/**
+	 * Compiles a glob-type pattern.
+	 *
+	 * @param pattern
+	 *            the pattern to compile
+	 * @param escapes
+	 *            true if \ escapes the following character, false if it is a
+	 *            literal character
+	 */
+	public GlobPattern(String pattern, boolean escapes) {
+		this.segments = split(pattern, escapes);
+		if (segments == null) {
+			this.failureTables = null;
+		} else {
+			this.failureTables = new int[segments.length][];
+			for (int i = 1; i < segments.length - 1; i++) {
+				failureTables[i] = makeFailureTable(segments[i]);
+			}
+		}
+	}
+
+	/**
+	 * Tests a region of a string against the pattern. Case-sensitive.
+	 *
+	 * @param str
+	 *            the string to test
+	 * @param from
+	 *            the start index of the region (inclusive)
+	 * @param to
+	 *            the end index of the region (exclusive)
+	 * @return true if the whole region matches the pattern, false else
+	 */
+	public boolean matches(String str, int from, int to) {
+		if (segments == null) {
+			return false;
+		}
+		int last = segments.length - 1;
+		String first = segments[0];
+		if (last == 0) {
+			return to - from == first.length()
+					&& str.regionMatches(from, first, 0, first.length());
+		}
+		String tail = segments[last];
+		int start = from + first.length();
+		int end = to - tail.length();
+		if (end < start || !str.regionMatches(from, first, 0, first.length())
+				|| !str.regionMatches(end, tail, 0, tail.length())) {
+			return false;
+		}
+		for (int i = 1; i < last; i++) {
+			int found = indexOf(str, start, end, segments[i], failureTables[i]);
+			if (found == -1) {
+				return false;
+			}
+			start = found + segments[i].length();
+		}
+		return true;
+	}
+
+	/**
+	 * Finds the longest literal segment of the pattern, which is part of
+	 * every matching string.
+	 *
+	 * @param skipLeadingChar
+	 *            true to ignore the first character of the pattern
+	 * @return the longest non-empty literal segment; null if there is none or
+	 *         the pattern cannot match anything
+	 */
+	public String getLongestSegment(boolean skipLeadingChar) {
+		if (segments == null) {
+			return null;
+		}
+		String longest = "";
+		for (int i = 0; i < segments.length; i++) {
+			String segment = segments[i];
+			if (i == 0 && skipLeadingChar && segment.length() > 0) {
+				segment = segment.substring(1);
+			}
+			if (segment.length() > longest.length()) {
+				longest = segment;
+			}
+		}
+		return (longest.length() == 0) ? null : longest;
+	}
+
+	/**
+	 * Determines whether the pattern matches exactly the strings starting with
+	 * a literal prefix, i.e. consists of that prefix followed by a single
+	 * wildcard.
+	 *
+	 * @return the literal prefix (possibly empty) if the pattern is of the
+	 *         form prefix*; null else
+	 */
+	public String getPrefix() {
+		if (segments == null || segments.length != 2
+				|| segments[1].length() != 0) {
+			return null;
+		}
+		return segments[0];
+	}
+
+	/**
+	 * Splits a glob-type pattern into the literal segments between its
+	 * wildcards, resolving escaped characters.
+	 *
+	 * @param pattern
+	 *            the glob pattern
+	 * @param escapes
+	 *            true if \ escapes the following character
+	 * @return the literal segments (the pattern has segments.length - 1
+	 *         wildcards); null if the pattern ends with an unescaped escape
+	 *         character and therefore cannot match anything
+	 */
+	private static String[] split(String pattern, boolean escapes) {
+		List<String> segments = new ArrayList<String>();
+		StringBuilder segment = new StringBuilder();
+		int len = pattern.length();
+		for (int i = 0; i < len; i++) {
+			char c = pattern.charAt(i);
+			if (c == '*') {
+				segments.add(segment.toString());
+				segment.setLength(0);
+				continue;
+			}
+			if (escapes && c == '\\') {
+				i++;
+				if (i == len) {
+					return null;
+				}
+				c = pattern.charAt(i);
+			}
+			segment.append(c);
+		}
+		segments.add(segment.toString());
+		return segments.toArray(new String[segments.size()]);
+	}
+
+	/**
+	 * Computes the Knuth-Morris-Pratt failure table of a string.
+	 *
+	 * @param str
+	 *            the string to be searched for
+	 * @return for each index i the length of the longest proper prefix of str
+	 *         that is also a suffix of str.substring(0, i + 1)
+	 */
+	private static int[] makeFailureTable(String str) {
+		int[] table = new int[str.length()];
+		int k = 0;
+		for (int i = 1; i < table.length; i++) {
+			while (k > 0 && str.charAt(i) != str.charAt(k)) {
+				k = table[k - 1];
+			}
+			if (str.charAt(i) == str.charAt(k)) {
+				k++;
+			}
+			table[i] = k;
+		}
+		return table;
+	}
+
+	/**
+	 * Finds the first occurrence of a string within a region of another string
+	 * in linear time.
+	 *
+	 * @param str
+	 *            the string to search in
+	 * @param from
+	 *            the start index of the region (inclusive)
+	 * @param to
+	 *            the end index of the region (exclusive)
+	 * @param needle
+	 *            the string to search for
+	 * @param failureTable
+	 *            the failure table of needle
+	 * @return the index of the first occurrence of needle completely inside the
+	 *         region; -1 if there is none
+	 */
+	private static int indexOf(String str, int from, int to, String needle,
+			int[] failureTable) {
+		int len = needle.length();
+		if (len == 0) {
+			return from;
+		}
+		int k = 0;
+		for (int i = from; i < to; i++) {
+			char c = str.charAt(i);
+			while (k > 0 && c != needle.charAt(k)) {
+				k = failureTable[k - 1];
+			}
+			if (c == needle.charAt(k)) {
+				k++;
+				if (k == len) {
+					return i - len + 1;
+				}
+			}
+		}
+		return -1;
+	}
+
+}
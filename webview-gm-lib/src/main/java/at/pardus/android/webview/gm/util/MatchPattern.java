@@ -0,0 +1,222 @@
+/*
+ *    Copyright 2012 Werner Bayer
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package at.pardus.android.webview.gm.util;
+
+/**
+ * Immutable, compiled form of a script's @match criterion.
+ *
+ * The pattern is parsed once into its scheme, host and path parts, which are
+ * compared with the corresponding parts of a parsed URL. Case-insensitive like
+ * all other criteria.
+ *
+ * @see <tt><a href="http://code.google.com/chrome/extensions/match_patterns.html">Match Syntax</a></tt>
+ */
+public class MatchPattern extends CriterionMatcher {
+
+	public static final String ALLURLS = "<all_urls>";
+
+	private static final String[] ALLURLS_SCHEMES = new String[] { "http",
+			"https", "file", "ftp" };
+
+	private static final String[] WILDCARD_SCHEMES = new String[] { "http",
+			"https" };
+
+	private final String[] schemes;
+
+	private final String host;
+
+	private final boolean subdomains;
+
+	private final GlobPattern path;
+
+	private final GlobPattern pathWithoutSlash;
+
+	/**
+	 * Compiles a @match criterion.
+	 *
+	 * Criteria not following the match pattern syntax are compiled as
+	 * include/exclude criteria (regex or glob-type pattern) instead.
+	 *
+	 * @param criterion
+	 *            the pattern to compile
+	 * @return the compiled criterion
+	 */
+	public static CriterionMatcher compileMatch(String criterion) {
+		String pattern = criterion.toLowerCase();
+		if (pattern.equals(ALLURLS)) {
+			return new MatchPattern(criterion, ALLURLS_SCHEMES, null, false,
+					"/*");
+		}
+		int schemeEnd = pattern.indexOf("://");
+		if (schemeEnd == -1) {
+			return compile(criterion);
+		}
+		String scheme = pattern.substring(0, schemeEnd);
+		String[] schemes;
+		if (scheme.equals("*")) {
+			schemes = WILDCARD_SCHEMES;
+		} else if (scheme.equals("http") || scheme.equals("https")
+				|| scheme.equals("file") || scheme.equals("ftp")) {
+			schemes = new String[] { scheme };
+		} else {
+			return compile(criterion);
+		}
+		int hostStart = schemeEnd + 3;
+		int pathStart = pattern.indexOf('/', hostStart);
+		if (pathStart == -1) {
+			return compile(criterion);
+		}
+		String host = pattern.substring(hostStart, pathStart);
+		boolean subdomains = false;
+		if (host.equals("*")) {
+			host = null;
+		} else if (host.startsWith("*.")) {
+			host = host.substring(2);
+			subdomains = true;
+		}
+		if (host != null
+				&& (host.length() == 0 && !scheme.equals("file")
+						|| host.indexOf('*') != -1 || host.indexOf(':') != -1 || host
+						.indexOf('@') != -1)) {
+			return compile(criterion);
+		}
+		return new MatchPattern(criterion, schemes, host, subdomains,
+				pattern.substring(pathStart));
+	}
+
+	/**
+	 * Compiles an array of @match criteria.
+	 *
+	 * @param criteria
+	 *            the patterns to compile (may be null)
+	 * @return the compiled criteria in the same order; null if criteria is
+	 *         null
+	 * @see #compileMatch(String)
+	 */
+	public static CriterionMatcher[] compileMatch(String[] criteria) {
+		if (criteria == null) {
+			return null;
+		}
+		CriterionMatcher[] matchers = new CriterionMatcher[criteria.length];
+		for (int i = 0; i < criteria.length; i++) {
+			matchers[i] = compileMatch(criteria[i]);
+		}
+		return matchers;
+	}
+
+	/**
+	 * Private constructor. Use compileMatch.
+	 *
+	 * @param criterion
+	 *            the original pattern
+	 * @param schemes
+	 *            the lower-case schemes to match
+	 * @param host
+	 *            the lower-case host to match; null to match any host
+	 * @param subdomains
+	 *            true to also match all subdomains of host
+	 * @param path
+	 *            the lower-case path glob starting with /
+	 */
+	private MatchPattern(String criterion, String[] schemes, String host,
+			boolean subdomains, String path) {
+		super(criterion);
+		this.schemes = schemes;
+		this.host = host;
+		this.subdomains = subdomains;
+		this.path = new GlobPattern(path, false);
+		this.pathWithoutSlash = new GlobPattern(path.substring(1), false);
+	}
+
+	@Override
+	public boolean matches(ParsedUrl url) {
+		String scheme = url.getScheme();
+		if (scheme == null || !matchesScheme(scheme)) {
+			return false;
+		}
+		if (host != null && !matchesHost(url.getHost())) {
+			return false;
+		}
+		String lowerCaseUrl = url.getLowerCase();
+		int pathStart = url.getPathStart();
+		int pathEnd = url.getFragmentStart();
+		if (pathStart < pathEnd && lowerCaseUrl.charAt(pathStart) == '/') {
+			return path.matches(lowerCaseUrl, pathStart, pathEnd);
+		}
+		// empty path is equivalent to /
+		return pathWithoutSlash.matches(lowerCaseUrl, pathStart, pathEnd);
+	}
+
+	@Override
+	public String[] getHostKeys() {
+		if (host == null) {
+			return null;
+		}
+		String[] hostKeys = new String[schemes.length];
+		for (int i = 0; i < schemes.length; i++) {
+			hostKeys[i] = schemes[i] + "://" + (subdomains ? "*." : "") + host;
+		}
+		return hostKeys;
+	}
+
+	@Override
+	public String getRequiredLiteral() {
+		// the leading / of the path is optional in URLs
+		return path.getLongestSegment(true);
+	}
+
+	@Override
+	public boolean ignoresFragment() {
+		return true;
+	}
+
+	/**
+	 * Tests the scheme of a URL.
+	 *
+	 * @param urlScheme
+	 *            the URL's scheme
+	 * @return true if the scheme is one of the pattern's schemes
+	 */
+	private boolean matchesScheme(String urlScheme) {
+		for (String scheme : schemes) {
+			if (scheme.equals(urlScheme)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Tests the host of a URL.
+	 *
+	 * @param urlHost
+	 *            the URL's host
+	 * @return true if the host is the pattern's host or (if the pattern
+	 *         includes subdomains) one of its subdomains
+	 */
+	private boolean matchesHost(String urlHost) {
+		int hostLen = host.length();
+		int len = urlHost.length();
+		if (len == hostLen) {
+			return urlHost.equals(host);
+		}
+		return subdomains && len > hostLen
+				&& urlHost.charAt(len - hostLen - 1) == '.'
+				&& urlHost.endsWith(host);
+	}
+
+}
@@ -0,0 +1,215 @@
+/*
+ *    Copyright 2012 Werner Bayer
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package at.pardus.android.webview.gm.util;
+
+/**
+ * Immutable object containing a URL split into the parts relevant to matching
+ * it against script criteria. All parts are lower case.
+ *
+ * Created once per URL to be shared by all criteria tested against it.
+ */
+public class ParsedUrl {
+
+	private final String url;
+
+	private final String lowerCase;
+
+	private final String scheme;
+
+	private final String host;
+
+	private final int port;
+
+	private final int pathStart;
+
+	private final int queryStart;
+
+	private final int fragmentStart;
+
+	private final String hostKey;
+
+	/**
+	 * Parses a URL.
+	 *
+	 * URLs without :// after the scheme are not split any further.
+	 *
+	 * @param url
+	 *            the URL to parse
+	 */
+	public ParsedUrl(String url) {
+		this.url = url;
+		this.lowerCase = url.toLowerCase();
+		int len = lowerCase.length();
+		int schemeEnd = lowerCase.indexOf("://");
+		if (schemeEnd == -1) {
+			scheme = null;
+			host = null;
+			port = -1;
+			hostKey = null;
+			pathStart = len;
+			queryStart = len;
+			fragmentStart = len;
+			return;
+		}
+		scheme = lowerCase.substring(0, schemeEnd);
+		int hostStart = schemeEnd + 3;
+		int authorityEnd = hostStart;
+		while (authorityEnd < len) {
+			char c = lowerCase.charAt(authorityEnd);
+			if (c == '/' || c == '?' || c == '#') {
+				break;
+			}
+			authorityEnd++;
+		}
+		int userInfoEnd = lowerCase.lastIndexOf('@', authorityEnd - 1);
+		if (userInfoEnd >= hostStart) {
+			hostStart = userInfoEnd + 1;
+		}
+		int hostEnd = lowerCase.indexOf(':', hostStart);
+		if (hostEnd == -1 || hostEnd > authorityEnd) {
+			hostEnd = authorityEnd;
+		}
+		host = lowerCase.substring(hostStart, hostEnd);
+		port = parsePort(lowerCase, hostEnd + 1, authorityEnd);
+		hostKey = lowerCase.substring(0, schemeEnd + 3) + host;
+		pathStart = authorityEnd;
+		int fragment = lowerCase.indexOf('#', authorityEnd);
+		fragmentStart = (fragment == -1) ? len : fragment;
+		int query = lowerCase.indexOf('?', authorityEnd);
+		queryStart = (query == -1 || query > fragmentStart) ? fragmentStart
+				: query;
+	}
+
+	/**
+	 * @return the original URL
+	 */
+	public String getUrl() {
+		return url;
+	}
+
+	/**
+	 * @return the whole URL in lower case
+	 */
+	public String getLowerCase() {
+		return lowerCase;
+	}
+
+	/**
+	 * @return the scheme; null if the URL does not contain ://
+	 */
+	public String getScheme() {
+		return scheme;
+	}
+
+	/**
+	 * @return the host without user info and port; null if the URL does not
+	 *         contain ://
+	 */
+	public String getHost() {
+		return host;
+	}
+
+	/**
+	 * @return the port; -1 if the URL does not specify a valid one
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * @return the path (possibly empty); empty if the URL does not contain ://
+	 */
+	public String getPath() {
+		return lowerCase.substring(pathStart, queryStart);
+	}
+
+	/**
+	 * @return the query without leading ?; null if there is none
+	 */
+	public String getQuery() {
+		if (queryStart == fragmentStart) {
+			return null;
+		}
+		return lowerCase.substring(queryStart + 1, fragmentStart);
+	}
+
+	/**
+	 * @return the fragment without leading #; null if there is none
+	 */
+	public String getFragment() {
+		if (fragmentStart == lowerCase.length()) {
+			return null;
+		}
+		return lowerCase.substring(fragmentStart + 1);
+	}
+
+	/**
+	 * @return the scheme and host in the form scheme://host as returned by
+	 *         CriterionMatcher.getHostKeys for criteria the URL may match;
+	 *         null if the URL does not contain ://
+	 */
+	public String getHostKey() {
+		return hostKey;
+	}
+
+	/**
+	 * @return the index of the path in the lower-case URL
+	 */
+	public int getPathStart() {
+		return pathStart;
+	}
+
+	/**
+	 * @return the index of the fragment's # in the lower-case URL; its length
+	 *         if there is no fragment
+	 */
+	public int getFragmentStart() {
+		return fragmentStart;
+	}
+
+	@Override
+	public String toString() {
+		return url;
+	}
+
+	/**
+	 * Parses the port part of a URL.
+	 *
+	 * @param str
+	 *            the URL
+	 * @param start
+	 *            the index of the first digit
+	 * @param end
+	 *            the index after the last digit
+	 * @return the port; -1 if it is empty or not a number
+	 */
+	private static int parsePort(String str, int start, int end) {
+		if (start >= end || end - start > 5) {
+			return -1;
+		}
+		int port = 0;
+		for (int i = start; i < end; i++) {
+			char c = str.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			port = port * 10 + (c - '0');
+		}
+		return port;
+	}
+
+}
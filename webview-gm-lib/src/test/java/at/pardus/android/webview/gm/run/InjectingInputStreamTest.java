@@ -0,0 +1,298 @@
+/*
+ *    Copyright 2012 Werner Bayer
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package at.pardus.android.webview.gm.run;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+public class InjectingInputStreamTest {
+
+	private static final String INJECTION = "<script>run();</script>";
+
+	// not encodable in windows-1252
+	private static final String JS_CODE = "run('\u00e9\u4e2d');";
+
+	// sizes of the chunks the underlying stream returns
+	private static final int[] CHUNK_SIZES = { 1, 2, 3, 5, 8, 64, 100000 };
+
+	/**
+	 * Stream returning at most a fixed number of bytes per read.
+	 */
+	private static class ChunkedInputStream extends InputStream {
+
+		private final byte[] data;
+
+		private final int chunkSize;
+
+		private int pos;
+
+		public ChunkedInputStream(byte[] data, int chunkSize) {
+			this.data = data;
+			this.chunkSize = chunkSize;
+		}
+
+		@Override
+		public int read() {
+			return (pos == data.length) ? -1 : data[pos++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (pos == data.length) {
+				return -1;
+			}
+			int n = Math.min(Math.min(len, chunkSize), data.length - pos);
+			System.arraycopy(data, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+
+	}
+
+	private static byte[] bytes(String str) {
+		try {
+			return str.getBytes("UTF-8");
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private static byte[] inject(byte[] document, int chunkSize, int bufferSize)
+			throws IOException {
+		InputStream in = new HtmlInjector.InjectingInputStream(
+				new ChunkedInputStream(document, chunkSize), bytes(INJECTION));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		if (bufferSize == 1) {
+			int b;
+			while ((b = in.read()) != -1) {
+				out.write(b);
+			}
+		} else {
+			byte[] buffer = new byte[bufferSize];
+			int n;
+			while ((n = in.read(buffer, 0, buffer.length)) != -1) {
+				out.write(buffer, 0, n);
+			}
+		}
+		in.close();
+		return out.toByteArray();
+	}
+
+	/**
+	 * Asserts the result for any sizes of reads from the underlying stream
+	 * and of the read buffer.
+	 */
+	private static void assertInjected(byte[] expected, byte[] document)
+			throws IOException {
+		for (int chunkSize : CHUNK_SIZES) {
+			for (int bufferSize : new int[] { 1, 7, 8192 }) {
+				assertArrayEquals("chunks of " + chunkSize + ", buffer of "
+						+ bufferSize, expected,
+						inject(document, chunkSize, bufferSize));
+			}
+		}
+	}
+
+	/**
+	 * Asserts that code is injected as a script element encoded in a charset.
+	 */
+	private static void assertInjectedIn(String charset, String head,
+			byte[] document, String label) throws IOException {
+		byte[] prefix = bytes(head);
+		byte[] element = HtmlInjector.toScriptElement(JS_CODE,
+				Charset.forName(charset));
+		byte[] expected = new byte[document.length + element.length];
+		System.arraycopy(document, 0, expected, 0, prefix.length);
+		System.arraycopy(element, 0, expected, prefix.length, element.length);
+		System.arraycopy(document, prefix.length, expected, prefix.length
+				+ element.length, document.length - prefix.length);
+		for (int chunkSize : CHUNK_SIZES) {
+			assertArrayEquals(label + ", chunks of " + chunkSize, expected,
+					injectCode(document, label, chunkSize));
+		}
+	}
+
+	private static byte[] injectCode(byte[] document, String label,
+			int chunkSize) throws IOException {
+		InputStream in = new HtmlInjector.InjectingInputStream(
+				new ChunkedInputStream(document, chunkSize), JS_CODE, label);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[7];
+		int n;
+		while ((n = in.read(buffer, 0, buffer.length)) != -1) {
+			out.write(buffer, 0, n);
+		}
+		in.close();
+		return out.toByteArray();
+	}
+
+	private static void assertInjected(String expected, String document)
+			throws IOException {
+		assertInjected(bytes(expected), bytes(document));
+	}
+
+	private static void assertUnchanged(String document) throws IOException {
+		assertInjected(document, document);
+	}
+
+	@Test
+	public void injectsAfterHeadStartTag() throws IOException {
+		assertInjected("<html><head>" + INJECTION + "<title>t</title></head>",
+				"<html><head><title>t</title></head>");
+		assertInjected("<HEAD>" + INJECTION + "x", "<HEAD>x");
+	}
+
+	@Test
+	public void injectsAfterHeadStartTagWithAttributes() throws IOException {
+		assertInjected("<head lang=\"en\">" + INJECTION,
+				"<head lang=\"en\">");
+		assertInjected("<head data-x=\"a>b\" data-y='c>d'>" + INJECTION
+				+ "<meta>", "<head data-x=\"a>b\" data-y='c>d'><meta>");
+		assertInjected("<head\n>" + INJECTION, "<head\n>");
+		assertInjected("<head/>" + INJECTION, "<head/>");
+	}
+
+	@Test
+	public void injectsBeforeFirstElementWithoutHead() throws IOException {
+		assertInjected("<html>" + INJECTION + "<title>t</title>",
+				"<html><title>t</title>");
+		assertInjected(INJECTION + "<body>text</body>", "<body>text</body>");
+		assertInjected("text " + INJECTION + "<p>", "text <p>");
+		assertInjected(INJECTION + "<h1>", "<h1>");
+	}
+
+	@Test
+	public void headerIsNotHead() throws IOException {
+		assertInjected("<html>" + INJECTION + "<header><head>",
+				"<html><header><head>");
+		assertInjected(INJECTION + "<headline>", "<headline>");
+	}
+
+	@Test
+	public void skipsDoctypeCommentsAndEndTags() throws IOException {
+		assertInjected("<!DOCTYPE html>\n<html><head>" + INJECTION,
+				"<!DOCTYPE html>\n<html><head>");
+		assertInjected("<!-- <head> -- > --><head>" + INJECTION,
+				"<!-- <head> -- > --><head>");
+		assertInjected("<!----><head>" + INJECTION, "<!----><head>");
+		assertInjected("<?xml version=\"1.0\"?></p>< head><head>" + INJECTION,
+				"<?xml version=\"1.0\"?></p>< head><head>");
+	}
+
+	@Test
+	public void keepsUtf8ByteOrderMark() throws IOException {
+		assertInjected("\ufeff<head>" + INJECTION, "\ufeff<head>");
+	}
+
+	@Test
+	public void doesNotInjectIntoUtf16() throws IOException {
+		byte[] be = new byte[] { (byte) 0xfe, (byte) 0xff, 0, '<', 0, 'h', 0,
+				'e', 0, 'a', 0, 'd', 0, '>' };
+		assertInjected(be, be);
+		byte[] le = new byte[] { (byte) 0xff, (byte) 0xfe, '<', 0, 'p', 0,
+				'>', 0 };
+		assertInjected(le, le);
+	}
+
+	@Test
+	public void passesDocumentWithoutElementsUnchanged() throws IOException {
+		assertUnchanged("");
+		assertUnchanged("plain text");
+		assertUnchanged("<!-- unterminated <head>");
+		assertUnchanged("text <head");
+		assertUnchanged("<");
+	}
+
+	@Test
+	public void givesUpAfterScanLimit() throws IOException {
+		char[] text = new char[HtmlInjector.MAX_SCAN_BYTES];
+		Arrays.fill(text, 'x');
+		String prefix = new String(text);
+		assertUnchanged(prefix + "<head>");
+		// the whole start tag has to be within the limit
+		assertInjected(prefix.substring(6) + "<head>" + INJECTION,
+				prefix.substring(6) + "<head>");
+		assertUnchanged(prefix.substring(5) + "<head>");
+	}
+
+	@Test
+	public void injectsOnce() throws IOException {
+		assertEquals("<head>" + INJECTION + "<head><p>",
+				new String(inject(bytes("<head><head><p>"), 3, 8192), "UTF-8"));
+	}
+
+	@Test
+	public void encodesScriptInHeaderCharset() throws IOException {
+		String doc = "<html><head><title>\u00e9</title>";
+		assertInjectedIn("UTF-8", "<html><head>", bytes(doc), "utf-8");
+		byte[] latin = doc.getBytes("windows-1252");
+		assertInjectedIn("windows-1252", "<html><head>", latin,
+				"windows-1252");
+		// decoded as windows-1252 by the WebView
+		assertInjectedIn("windows-1252", "<html><head>", latin, "ISO-8859-1");
+		assertInjectedIn("Shift_JIS", "<html><head>", bytes("<html><head>"),
+				"Shift_JIS");
+	}
+
+	@Test
+	public void encodesScriptInMetaCharset() throws IOException {
+		String doc = "<!DOCTYPE html><html><head>"
+				+ "<!-- <meta charset=\"koi8-r\"> -->"
+				+ "<meta http-equiv=\"Content-Type\""
+				+ " content=\"text/html; charset=windows-1252\">";
+		assertInjectedIn("windows-1252", "<!DOCTYPE html><html><head>",
+				bytes(doc), null);
+		assertInjectedIn("windows-1252", "<head>",
+				bytes("<head><META CHARSET='Windows-1252'>"), null);
+		// not within the prescanned bytes
+		char[] text = new char[HtmlInjector.PRESCAN_BYTES];
+		Arrays.fill(text, ' ');
+		assertInjectedIn("UTF-8", "<head>", bytes("<head>" + new String(text)
+				+ "<meta charset=\"windows-1252\">"), null);
+		// unknown, the default instead
+		assertInjectedIn("UTF-8", "<head>",
+				bytes("<head><meta charset=\"x-unknown\">"), null);
+	}
+
+	@Test
+	public void byteOrderMarkOverridesHeaderCharset() throws IOException {
+		assertInjectedIn("UTF-8", "\ufeff<head>", bytes("\ufeff<head>"),
+				"windows-1252");
+	}
+
+	@Test
+	public void doesNotInjectIntoUnsupportedCharsets() throws IOException {
+		byte[] utf16 = "<head>".getBytes("UTF-16LE");
+		byte[] doc = bytes("<head>");
+		for (int chunkSize : CHUNK_SIZES) {
+			assertArrayEquals(utf16, injectCode(utf16, "UTF-16LE", chunkSize));
+			assertArrayEquals(doc, injectCode(doc, "UTF-16", chunkSize));
+			assertArrayEquals(doc, injectCode(doc, "x-unknown", chunkSize));
+			assertArrayEquals(new byte[0], injectCode(new byte[0], null,
+					chunkSize));
+		}
+	}
+
+}
@@ -0,0 +1,140 @@
+/*
+ *    Copyright 2012 Werner Bayer
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package at.pardus.android.webview.gm.run;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+public class ScriptSourceEscaperTest {
+
+	private static String escape(String js, String charset) {
+		return ScriptSourceEscaper.escape(js, Charset.forName(charset)
+				.newEncoder());
+	}
+
+	private static void assertEscaped(String expected, String js) {
+		assertEquals(expected, escape(js, "US-ASCII"));
+	}
+
+	private static void assertUnchanged(String js) {
+		assertEscaped(js, js);
+	}
+
+	@Test
+	public void plainCodeIsUnchanged() {
+		assertUnchanged("var a = 1 < 2 && 3 > 2, b = a / 2 / 1;\n"
+				+ "if (a) { /re/g.test('<p>'); } // </p>\n");
+		assertUnchanged("'<\\/script>' + '<! --' + `${a}<script>` /* <b> */");
+	}
+
+	@Test
+	public void encodableCharactersAreUnchanged() {
+		String js = "var \u00e9t\u00e9 = '\u00e9\u2028\u00a0\ud83d\ude00';"
+				+ "\u00a0\ufeff\u2028x /* \u00e9 */";
+		assertEquals(js, escape(js, "UTF-8"));
+		assertEquals("var \u00e9 = '\u00e9\\u2028';",
+				escape("var \u00e9 = '\u00e9\u2028';", "windows-1252"));
+	}
+
+	@Test
+	public void endScriptInLiteralsIsEscaped() {
+		assertEscaped("'\\x3C/script>' + \"\\x3C/SCRIPT\"",
+				"'</script>' + \"</SCRIPT\"");
+		assertEscaped("'\\x3C/script>'", "'\\</script>'");
+		assertEscaped("`\\x3C/script>${'\\x3C/script>' + `\\x3C/script`}`",
+				"`</script>${'</script>' + `</script`}`");
+		assertEscaped("x = /a[\\x3C/script]/i", "x = /a[</script]/i");
+	}
+
+	@Test
+	public void commentStartInLiteralsIsEscaped() {
+		assertEscaped("'\\x3C!--' + `\\x3C!--` + \"a\\x3C!--b\"",
+				"'<!--' + `<!--` + \"a<!--b\"");
+		// valid in unicode mode, unlike \!
+		assertEscaped("/\\x3C!--/u.test(s)", "/<!--/u.test(s)");
+		assertEscaped("function f() { return /\\x3C!--/; }",
+				"function f() { return /<!--/; }");
+	}
+
+	@Test
+	public void sequencesInCodeKeepTheirMeaning() {
+		// an HTML-like comment
+		assertEscaped("var y = x // comment\ny", "var y = x <!-- comment\ny");
+		assertEscaped("1< /script/.source.length", "1</script/.source.length");
+		// division, not a regular expression
+		assertEscaped("b / c < /script/g", "b / c </script/g");
+		assertEscaped("z = [1] / 1 + \"\\x3C/script>\"",
+				"z = [1] / 1 + \"</script>\"");
+	}
+
+	@Test
+	public void sequencesInCommentsAreSplit() {
+		assertEscaped("/* < /script> < !-- */ x", "/* </script> <!-- */ x");
+		assertEscaped("// < /SCRIPT> < !--\nx", "// </SCRIPT> <!--\nx");
+	}
+
+	@Test
+	public void unencodableWhiteSpaceInCodeIsReplaced() {
+		assertEscaped("var a = 1;\nvar b\u000b=\f2\na + b",
+				"var a =\u00a01;\u2028var b\u000b=\f2\u2029a\u3000+\ufeffb");
+	}
+
+	@Test
+	public void unencodableCharactersInLiteralsAreEscaped() {
+		assertEscaped("'\\u00e9\\u2028\\u00a0' + \"\\ud83d\\ude00\"",
+				"'\u00e9\u2028\u00a0' + \"\ud83d\ude00\"");
+		// escaped character
+		assertEscaped("'\\u00e9'", "'\\\u00e9'");
+		assertEscaped("`\\u00e9${'\\u00e9'}` + /\\u00e9[\\u00e9]/u",
+				"`\u00e9${'\u00e9'}` + /\u00e9[\u00e9]/u");
+		// lone surrogate
+		assertEscaped("'\\ud800x'", "'\ud800x'");
+	}
+
+	@Test
+	public void unencodableIdentifiersAreEscaped() {
+		assertEscaped("var caf\\u00e9 = 3; caf\\u00e9",
+				"var caf\u00e9 = 3; caf\u00e9");
+		assertEscaped("var \\u{1d4d0} = 1;", "var \ud835\udcd0 = 1;");
+	}
+
+	@Test
+	public void unencodableCharactersInCommentsAreReplaced() {
+		assertEscaped("/* ? \n */ // ?\n7",
+				"/* \u00e9 \u2028 */ // \u00e9\u20297");
+	}
+
+	@Test
+	public void scriptElementIsEncodedInCharset() {
+		byte[] element = HtmlInjector.toScriptElement("x = '\u00e9</script>';",
+				Charset.forName("ISO-8859-1"));
+		String str = new String(element, Charset.forName("ISO-8859-1"));
+		assertEquals(1, str.split("</script>", -1).length - 1);
+		assertFalse(str.toLowerCase(Locale.ENGLISH).contains("<!--"));
+		assertEquals("x = '\u00e9\\x3C/script>';</script>",
+				str.substring(str.indexOf("x = ")));
+		assertArrayEquals(str.getBytes(Charset.forName("ISO-8859-1")),
+				element);
+	}
+
+}
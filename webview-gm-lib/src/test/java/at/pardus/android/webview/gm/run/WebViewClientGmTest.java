@@ -0,0 +1,74 @@
+/*
+ *    Copyright 2012 Werner Bayer
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package at.pardus.android.webview.gm.run;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import at.pardus.android.webview.gm.model.Script;
+
+public class WebViewClientGmTest {
+
+	private static final String CONTENT = "let a = 1; const b = 2; class C {}\n"
+			+ "var d = a + b; function e() { return new C(); }";
+
+	private static Script createScript(boolean unwrap) {
+		return new Script("name", "namespace", null, null,
+				new String[] { "*://*/*" }, null, null, null, null, null,
+				Script.RUNATEND, unwrap, null, null, null, CONTENT);
+	}
+
+	private static String isolate(Script script) {
+		return WebViewClientGm.isolate(script, new InjectionBundle(script,
+				"GM_runtime").inject("secret", "", ""));
+	}
+
+	private static void assertCaught(Script script, String jsScript) {
+		assertTrue(jsScript, jsScript.endsWith("\n} catch (e) { console.error("
+				+ "\"Error in user script \\\"" + script
+				+ "\\\": \" + e); }\n"));
+	}
+
+	@Test
+	public void wrappedScriptRunsInFunctionInTryBlock() {
+		Script script = createScript(false);
+		String jsScript = isolate(script);
+		assertTrue(jsScript, jsScript.startsWith("try {\n(function() {\n"));
+		assertCaught(script, jsScript);
+	}
+
+	/**
+	 * The documented restriction of unwrapped scripts: their code is not
+	 * wrapped into a function, but still into a block, which scopes their
+	 * top-level let, const and class declarations.
+	 */
+	@Test
+	public void unwrappedScriptRunsInTryBlock() {
+		Script script = createScript(true);
+		String jsScript = isolate(script);
+		assertTrue(jsScript, jsScript.startsWith("try {\nvar GM_api = "));
+		int content = jsScript.indexOf(CONTENT);
+		assertTrue(jsScript, content > 0);
+		assertEquals(jsScript, -1, jsScript.indexOf("function() {"));
+		assertEquals(jsScript, content + CONTENT.length(),
+				jsScript.indexOf("\n} catch (e) {"));
+		assertCaught(script, jsScript);
+	}
+
+}
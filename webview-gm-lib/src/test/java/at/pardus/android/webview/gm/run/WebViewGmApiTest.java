@@ -0,0 +1,264 @@
+/*
+ *    Copyright 2012 Werner Bayer
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package at.pardus.android.webview.gm.run;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import at.pardus.android.webview.gm.store.ScriptStore;
+
+public class WebViewGmApiTest {
+
+	private static final String SECRET = "secret";
+
+	/**
+	 * Strict parser of JSON arrays of strings (RFC 8259), independent of the
+	 * org.json stubs of the Android unit test runtime.
+	 */
+	private static class JsonStrings {
+
+		private final String json;
+
+		private int pos;
+
+		private JsonStrings(String json) {
+			this.json = json;
+		}
+
+		public static String[] parseArray(String json) {
+			JsonStrings parser = new JsonStrings(json);
+			List<String> strs = new ArrayList<String>();
+			parser.expect('[');
+			if (parser.peek() != ']') {
+				do {
+					strs.add(parser.parseString());
+				} while (parser.accept(','));
+			}
+			parser.expect(']');
+			if (parser.pos != json.length()) {
+				fail("Trailing characters at " + parser.pos);
+			}
+			return strs.toArray(new String[strs.size()]);
+		}
+
+		private char peek() {
+			if (pos >= json.length()) {
+				fail("Unexpected end of JSON");
+			}
+			return json.charAt(pos);
+		}
+
+		private boolean accept(char c) {
+			if (pos < json.length() && json.charAt(pos) == c) {
+				pos++;
+				return true;
+			}
+			return false;
+		}
+
+		private void expect(char c) {
+			if (!accept(c)) {
+				fail("Expected " + c + " at " + pos);
+			}
+		}
+
+		private String parseString() {
+			expect('"');
+			StringBuilder sb = new StringBuilder();
+			while (true) {
+				char c = peek();
+				pos++;
+				if (c == '"') {
+					return sb.toString();
+				}
+				if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+					fail("Unescaped U+" + Integer.toHexString(c) + " at "
+							+ (pos - 1));
+				}
+				if (c != '\\') {
+					sb.append(c);
+					continue;
+				}
+				char escaped = peek();
+				pos++;
+				switch (escaped) {
+				case '"':
+				case '\\':
+				case '/':
+					sb.append(escaped);
+					break;
+				case 'b':
+					sb.append('\b');
+					break;
+				case 'f':
+					sb.append('\f');
+					break;
+				case 'n':
+					sb.append('\n');
+					break;
+				case 'r':
+					sb.append('\r');
+					break;
+				case 't':
+					sb.append('\t');
+					break;
+				case 'u':
+					if (pos + 4 > json.length()) {
+						fail("Truncated escape sequence at " + pos);
+					}
+					sb.append((char) Integer.parseInt(
+							json.substring(pos, pos + 4), 16));
+					pos += 4;
+					break;
+				default:
+					fail("Invalid escape sequence \\" + escaped + " at " + pos);
+				}
+			}
+		}
+
+	}
+
+	private static String toJsonString(String str) {
+		StringBuilder sb = new StringBuilder();
+		WebViewGmApi.appendJsonString(sb, str);
+		return sb.toString();
+	}
+
+	private static String toJsonArray(String[] strs) {
+		StringBuilder sb = new StringBuilder();
+		WebViewGmApi.appendJsonArray(sb, strs);
+		return sb.toString();
+	}
+
+	private static ScriptStore storeWithValueNames(final String[] names) {
+		return (ScriptStore) Proxy.newProxyInstance(
+				ScriptStore.class.getClassLoader(),
+				new Class<?>[] { ScriptStore.class }, new InvocationHandler() {
+
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						if (method.getName().equals("getValueNames")) {
+							return names;
+						}
+						throw new UnsupportedOperationException(method
+								.getName());
+					}
+
+				});
+	}
+
+	@Test
+	public void plainStringIsOnlyQuoted() {
+		assertEquals("\"\"", toJsonString(""));
+		assertEquals("\"name 1/2\"", toJsonString("name 1/2"));
+	}
+
+	@Test
+	public void quotesAndBackslashesAreEscaped() {
+		assertEquals("\"\\\"\\\\\\\"\"", toJsonString("\"\\\""));
+		assertArrayEquals(new String[] { "a\"b", "\\", "\"\"" },
+				JsonStrings.parseArray(toJsonArray(new String[] { "a\"b",
+						"\\", "\"\"" })));
+	}
+
+	@Test
+	public void controlCharactersAreEscaped() {
+		StringBuilder all = new StringBuilder();
+		for (char c = 0; c < 0x20; c++) {
+			all.append(c);
+		}
+		all.append('\u007f').append('\u2028').append('\u2029');
+		String json = toJsonString(all.toString());
+		assertEquals("\"\\u0000", json.substring(0, 7));
+		assertTrue(json.contains("\\n") && json.contains("\\r")
+				&& json.contains("\\t") && json.contains("\\u001f"));
+		assertTrue(json.contains("\\u2028\\u2029"));
+		assertArrayEquals(new String[] { all.toString() },
+				JsonStrings.parseArray("[" + json + "]"));
+	}
+
+	@Test
+	public void nonBmpCharactersAreKeptAsSurrogatePairs() {
+		String str = "\ud83d\ude00 \ud800\udf48 \u00e4\u4e2d";
+		assertEquals("\"" + str + "\"", toJsonString(str));
+		// lone surrogates are passed through as they are
+		String lone = "\udc00x\ud800";
+		assertArrayEquals(new String[] { str, lone },
+				JsonStrings.parseArray(toJsonArray(new String[] { str, lone })));
+	}
+
+	@Test
+	public void emptyArray() {
+		assertEquals("[]", toJsonArray(new String[0]));
+	}
+
+	@Test
+	public void randomStringsRoundTrip() {
+		Random random = new Random(19);
+		String special = "\"\\/\u2028\u2029\u007f\ud83d\ude00";
+		for (int i = 0; i < 2000; i++) {
+			String[] strs = new String[random.nextInt(5)];
+			for (int j = 0; j < strs.length; j++) {
+				StringBuilder sb = new StringBuilder();
+				int len = random.nextInt(20);
+				for (int k = 0; k < len; k++) {
+					switch (random.nextInt(4)) {
+					case 0:
+						sb.append((char) random.nextInt(0x20));
+						break;
+					case 1:
+						sb.append(special.charAt(random.nextInt(special
+								.length())));
+						break;
+					case 2:
+						sb.append((char) random.nextInt(0x10000));
+						break;
+					default:
+						sb.append((char) (0x20 + random.nextInt(0x5f)));
+					}
+				}
+				strs[j] = sb.toString();
+			}
+			assertArrayEquals(strs, JsonStrings.parseArray(toJsonArray(strs)));
+		}
+	}
+
+	@Test
+	public void listValuesReturnsManyNames() {
+		String[] names = new String[10000];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = "key" + i + ((i % 7 == 0) ? "\"\n\ud83d\ude00" : "");
+		}
+		WebViewGmApi api = new WebViewGmApi(null, storeWithValueNames(names),
+				SECRET);
+		String json = api.listValues("name", "namespace", SECRET);
+		assertArrayEquals(names, JsonStrings.parseArray(json));
+	}
+
+}
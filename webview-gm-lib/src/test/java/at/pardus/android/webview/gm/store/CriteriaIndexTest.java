@@ -0,0 +1,174 @@
+/*
+ *    Copyright 2012 Werner Bayer
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package at.pardus.android.webview.gm.store;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import at.pardus.android.webview.gm.model.ScriptCriteria;
+import at.pardus.android.webview.gm.model.ScriptId;
+import at.pardus.android.webview.gm.util.ParsedUrl;
+
+public class CriteriaIndexTest {
+
+	private static final String[] PATTERN_SCHEMES = { "http", "https", "ftp",
+			"file", "*" };
+
+	private static final String[] PATTERN_HOSTS = { "example.com",
+			"www.example.com", "Example.COM", "*.example.com", "example.org",
+			"*.org", "*", "localhost", "" };
+
+	private static final String[] PATTERN_PATHS = { "/*", "/", "/a*", "/login*",
+			"*#top", "/?q=*", "*", "/a\\*" };
+
+	private static final String[] UNANCHORED_PATTERNS = { "", "*", "*login*",
+			"*example*", "*.org/*", "*#top", "*\\", "/example\\.org/",
+			"/^https:/", "/login/", "/(/", "http*://example.com/*" };
+
+	private static final String[] URL_SCHEMES = { "http", "https", "ftp",
+			"file", "HTTP" };
+
+	private static final String[] URL_HOSTS = { "example.com",
+			"www.example.com", "a.b.example.com", "Example.COM", "example.org",
+			"evil.com", "user@example.com", "example.com:8080", "localhost",
+			"" };
+
+	private static final String[] URL_PATHS = { "", "/", "/a", "/A/b",
+			"/login", "/a/login?q=1", "/?q=x#top", "#top", "/x#login", "?q=*" };
+
+	private static String pick(Random random, String[] values) {
+		return values[random.nextInt(values.length)];
+	}
+
+	private static String randomPattern(Random random) {
+		if (random.nextInt(4) == 0) {
+			return pick(random, UNANCHORED_PATTERNS);
+		}
+		return pick(random, PATTERN_SCHEMES) + "://"
+				+ pick(random, PATTERN_HOSTS) + pick(random, PATTERN_PATHS);
+	}
+
+	private static String[] randomPatterns(Random random, int max) {
+		int count = random.nextInt(max + 1);
+		if (count == 0 && random.nextBoolean()) {
+			return null;
+		}
+		String[] patterns = new String[count];
+		for (int i = 0; i < count; i++) {
+			patterns[i] = randomPattern(random);
+		}
+		return patterns;
+	}
+
+	private static String randomUrl(Random random) {
+		return pick(random, URL_SCHEMES) + "://" + pick(random, URL_HOSTS)
+				+ pick(random, URL_PATHS);
+	}
+
+	private static ScriptCriteria[] randomCriteria(Random random, int count) {
+		ScriptCriteria[] criteria = new ScriptCriteria[count];
+		for (int i = 0; i < count; i++) {
+			criteria[i] = new ScriptCriteria("script" + i, "ns",
+					randomPatterns(random, 1), randomPatterns(random, 3),
+					randomPatterns(random, 3));
+		}
+		return criteria;
+	}
+
+	private static ScriptId[] scan(ScriptCriteria[] criteria, ParsedUrl url) {
+		List<ScriptId> matches = new ArrayList<ScriptId>();
+		for (ScriptCriteria scriptCriteria : criteria) {
+			if (scriptCriteria.testUrl(url)) {
+				matches.add(new ScriptId(scriptCriteria.getName(),
+						scriptCriteria.getNamespace()));
+			}
+		}
+		return matches.toArray(new ScriptId[matches.size()]);
+	}
+
+	@Test
+	public void emptyIndexMatchesNothing() {
+		CriteriaIndex index = new CriteriaIndex(new ScriptCriteria[0]);
+		assertEquals(0, index.getMatchingScriptIds(
+				new ParsedUrl("http://example.com/")).length);
+	}
+
+	@Test
+	public void subdomainPatternMatchesParentDomains() {
+		ScriptCriteria[] criteria = {
+				new ScriptCriteria("sub", "ns", null, null,
+						new String[] { "*://*.example.com/*" }),
+				new ScriptCriteria("exact", "ns", null,
+						new String[] { "http://www.example.com/*" }, null) };
+		CriteriaIndex index = new CriteriaIndex(criteria);
+		assertArrayEquals(
+				new ScriptId[] { new ScriptId("sub", "ns"),
+						new ScriptId("exact", "ns") },
+				index.getMatchingScriptIds(new ParsedUrl(
+						"http://www.example.com/")));
+		assertArrayEquals(new ScriptId[] { new ScriptId("sub", "ns") },
+				index.getMatchingScriptIds(new ParsedUrl(
+						"https://a.b.example.com/")));
+		assertEquals(0, index.getMatchingScriptIds(new ParsedUrl(
+				"http://badexample.com/")).length);
+	}
+
+	@Test
+	public void equalsLinearScan() {
+		Random random = new Random(12);
+		for (int round = 0; round < 50; round++) {
+			ScriptCriteria[] criteria = randomCriteria(random,
+					1 + random.nextInt(200));
+			CriteriaIndex index = new CriteriaIndex(criteria);
+			for (int i = 0; i < 500; i++) {
+				ParsedUrl url = new ParsedUrl(randomUrl(random));
+				assertArrayEquals(url.getUrl(), scan(criteria, url),
+						index.getMatchingScriptIds(url));
+			}
+		}
+	}
+
+	@Test
+	public void urlsWithEqualCacheKeysMatchEqually() {
+		Random random = new Random(21);
+		for (int round = 0; round < 50; round++) {
+			ScriptCriteria[] criteria = randomCriteria(random,
+					1 + random.nextInt(50));
+			CriteriaIndex index = new CriteriaIndex(criteria);
+			for (int i = 0; i < 200; i++) {
+				String url = randomUrl(random);
+				String other = url.toUpperCase()
+						+ (url.indexOf('#') == -1 ? "#top" : "x");
+				ParsedUrl parsedUrl = new ParsedUrl(url);
+				ParsedUrl parsedOther = new ParsedUrl(other);
+				if (index.getCacheKey(parsedUrl).equals(
+						index.getCacheKey(parsedOther))) {
+					assertArrayEquals(url + " and " + other,
+							scan(criteria, parsedUrl),
+							scan(criteria, parsedOther));
+				}
+			}
+		}
+	}
+
+}
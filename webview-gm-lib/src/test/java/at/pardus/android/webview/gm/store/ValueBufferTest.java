@@ -0,0 +1,131 @@
+/*
+ *    Copyright 2012 Werner Bayer
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package at.pardus.android.webview.gm.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+
+import at.pardus.android.webview.gm.model.ScriptId;
+
+public class ValueBufferTest {
+
+	private static final ScriptId ID = new ScriptId("script", "ns");
+
+	private static final ScriptId OTHER_ID = new ScriptId("other", "ns");
+
+	/**
+	 * Records written values, failing while told to.
+	 */
+	private static class RecordingWriter implements ValueBuffer.Writer {
+
+		final List<Map<ScriptId, Map<String, String>>> written = new ArrayList<Map<ScriptId, Map<String, String>>>();
+
+		boolean failing;
+
+		@Override
+		public void writeValues(Map<ScriptId, Map<String, String>> values) {
+			if (failing) {
+				throw new IllegalStateException("disk full");
+			}
+			written.add(new HashMap<ScriptId, Map<String, String>>(values));
+		}
+
+	}
+
+	private final RecordingWriter writer = new RecordingWriter();
+
+	// delayed far enough for the timer not to interfere
+	private final ValueBuffer buffer = new ValueBuffer(writer, 3600000, 100);
+
+	@After
+	public void tearDown() {
+		writer.failing = false;
+		buffer.close();
+	}
+
+	private void flushFailing() {
+		writer.failing = true;
+		try {
+			buffer.flush();
+			fail("flush did not report the failed write");
+		} catch (IllegalStateException e) {
+			assertEquals("disk full", e.getMessage());
+		}
+		writer.failing = false;
+	}
+
+	@Test
+	public void flushWritesBufferedValues() {
+		buffer.put(ID, "a", "1");
+		buffer.put(ID, "a", "2");
+		buffer.put(OTHER_ID, "b", ValueBuffer.DELETED);
+		buffer.flush();
+		assertEquals(1, writer.written.size());
+		assertEquals("2", writer.written.get(0).get(ID).get("a"));
+		assertSame(ValueBuffer.DELETED, writer.written.get(0).get(OTHER_ID)
+				.get("b"));
+		assertNull(buffer.get(ID, "a"));
+		buffer.flush();
+		assertEquals(1, writer.written.size());
+	}
+
+	@Test
+	public void failedWriteKeepsValuesBuffered() {
+		buffer.put(ID, "a", "1");
+		buffer.put(ID, "b", "1");
+		flushFailing();
+		assertEquals("1", buffer.get(ID, "a"));
+		assertEquals(2, buffer.getAll(ID).size());
+		assertEquals(0, writer.written.size());
+		buffer.put(ID, "b", "2");
+		buffer.put(OTHER_ID, "c", "2");
+		buffer.flush();
+		assertEquals(1, writer.written.size());
+		Map<String, String> values = writer.written.get(0).get(ID);
+		assertEquals("1", values.get("a"));
+		// newer than the failed write
+		assertEquals("2", values.get("b"));
+		assertEquals("2", writer.written.get(0).get(OTHER_ID).get("c"));
+	}
+
+	@Test
+	public void failedCloseCanBeRetried() {
+		buffer.put(ID, "a", "1");
+		writer.failing = true;
+		try {
+			buffer.close();
+			fail("close did not report the failed write");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		writer.failing = false;
+		assertEquals("1", buffer.get(ID, "a"));
+		buffer.flush();
+		assertEquals("1", writer.written.get(0).get(ID).get("a"));
+	}
+
+}
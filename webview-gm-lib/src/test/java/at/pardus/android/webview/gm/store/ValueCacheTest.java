@@ -0,0 +1,87 @@
+/*
+ *    Copyright 2012 Werner Bayer
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package at.pardus.android.webview.gm.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Test;
+
+import at.pardus.android.webview.gm.model.ScriptId;
+
+public class ValueCacheTest {
+
+	private static final ScriptId ID = new ScriptId("script", "ns");
+
+	private final ValueCache cache = new ValueCache(1024);
+
+	private static String repeat(char c, int count) {
+		char[] chars = new char[count];
+		for (int i = 0; i < count; i++) {
+			chars[i] = c;
+		}
+		return new String(chars);
+	}
+
+	@Test
+	public void cachesValuesWithinCapacity() {
+		Map<String, String> values = cache.put(ID,
+				Collections.singletonMap("a", "1"));
+		assertEquals("1", values.get("a"));
+		cache.set(ID, "b", "2");
+		assertEquals("2", cache.get(ID).get("b"));
+		assertTrue(cache.isCacheable(ID));
+	}
+
+	@Test
+	public void oversizedValuesAreCacheableAfterDelete() {
+		assertNull(cache.put(ID,
+				Collections.singletonMap("a", repeat('x', 1024))));
+		assertFalse(cache.isCacheable(ID));
+		cache.set(ID, "b", "2");
+		assertFalse(cache.isCacheable(ID));
+		cache.set(ID, "a", null);
+		assertTrue(cache.isCacheable(ID));
+	}
+
+	@Test
+	public void valuesGrownTooLargeAreDropped() {
+		cache.put(ID, Collections.singletonMap("a", "1"));
+		cache.set(ID, "b", repeat('x', 1024));
+		assertNull(cache.get(ID));
+		assertFalse(cache.isCacheable(ID));
+		cache.remove(ID);
+		assertTrue(cache.isCacheable(ID));
+	}
+
+	@Test
+	public void oversizedScriptsAreBounded() {
+		Map<String, String> large = Collections.singletonMap("a",
+				repeat('x', 1024));
+		for (int i = 0; i < 1000; i++) {
+			cache.put(new ScriptId("script" + i, "ns"), large);
+		}
+		assertFalse(cache.isCacheable(new ScriptId("script999", "ns")));
+		assertTrue(cache.isCacheable(new ScriptId("script0", "ns")));
+	}
+
+}
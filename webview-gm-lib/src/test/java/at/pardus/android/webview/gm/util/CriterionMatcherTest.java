@@ -0,0 +1,142 @@
+/*
+ *    Copyright 2012 Werner Bayer
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package at.pardus.android.webview.gm.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.regex.PatternSyntaxException;
+
+import org.junit.Test;
+
+public class CriterionMatcherTest {
+
+	private static final String[] URL_PARTS = { "http://", "https://",
+			"example.com", "EXAMPLE.com", "a.example.org", "/", "/path",
+			"?q=*", "#top", "\\", "a", "b" };
+
+	private static final String[] CRITERION_PARTS = { "*", "http://",
+			"https://", "example.com", "Example.COM", "/", "/path", "?",
+			"\\*", "\\", "a", "b", "." };
+
+	private static String random(Random random, String[] parts, int maxParts) {
+		int count = random.nextInt(maxParts + 1);
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			builder.append(parts[random.nextInt(parts.length)]);
+		}
+		return builder.toString();
+	}
+
+	@Test
+	public void emptyCriterionMatchesAnyUrl() {
+		assertTrue(CriterionMatcher.test("", "http://example.com/"));
+		assertTrue(CriterionMatcher.test("", ""));
+	}
+
+	@Test
+	public void globMatchesWholeUrlCaseInsensitively() {
+		assertTrue(CriterionMatcher.test("http://example.com/*",
+				"HTTP://Example.com/Path"));
+		assertTrue(CriterionMatcher.test("HTTP://EXAMPLE.COM/*",
+				"http://example.com/"));
+		assertFalse(CriterionMatcher.test("http://example.com/*",
+				"https://example.com/"));
+		assertFalse(CriterionMatcher.test("example.com",
+				"http://example.com/"));
+		assertTrue(CriterionMatcher.test("*example.com*",
+				"http://example.com/"));
+	}
+
+	@Test
+	public void globWildcardMatchesAcrossUrlParts() {
+		assertTrue(CriterionMatcher.test("http://*.example.com/*",
+				"http://a.b.example.com/x?y#z"));
+		assertTrue(CriterionMatcher.test("http://*example.com/",
+				"http://evil.com/?example.com/"));
+		assertTrue(CriterionMatcher.test("*#top", "http://example.com/#top"));
+	}
+
+	@Test
+	public void globQuestionMarkIsLiteral() {
+		assertTrue(CriterionMatcher.test("http://example.com/?q=*",
+				"http://example.com/?q=1"));
+		assertFalse(CriterionMatcher.test("http://example.com/?",
+				"http://example.com/a"));
+	}
+
+	@Test
+	public void regExpIsFoundAnywhere() {
+		assertTrue(CriterionMatcher.test("/example\\.(com|org)/",
+				"http://a.example.org/path"));
+		assertTrue(CriterionMatcher.test("/EXAMPLE/", "http://example.com/"));
+		assertFalse(CriterionMatcher.test("/^https:/", "http://example.com/"));
+	}
+
+	@Test
+	public void invalidRegExpMatchesNothing() {
+		assertFalse(CriterionMatcher.test("/(/", "http://example.com/("));
+	}
+
+	@Test(timeout = 2000)
+	public void adversarialGlobOnLongUrlDoesNotBacktrack() {
+		StringBuilder url = new StringBuilder("http://example.com/");
+		for (int i = 0; i < 8192; i++) {
+			url.append('a');
+		}
+		CriterionMatcher matcher = CriterionMatcher
+				.compile("*a*a*a*a*a*a*a*a*a*a*a*a*a*a*a*a*b");
+		ParsedUrl parsedUrl = new ParsedUrl(url.toString());
+		for (int i = 0; i < 100; i++) {
+			assertFalse(matcher.matches(parsedUrl));
+		}
+	}
+
+	@Test
+	public void compiledMatcherIsReusable() {
+		CriterionMatcher matcher = CriterionMatcher
+				.compile("http://example.com/*");
+		assertTrue(matcher.matches(new ParsedUrl("http://example.com/a")));
+		assertFalse(matcher.matches(new ParsedUrl("http://example.org/a")));
+		assertTrue(matcher.matches(new ParsedUrl("http://example.com/b")));
+		assertEquals("http://example.com/*", matcher.getCriterion());
+	}
+
+	@Test
+	public void equivalentToRecursiveMatcher() {
+		Random random = new Random(7);
+		for (int i = 0; i < 100000; i++) {
+			String criterion = random(random, CRITERION_PARTS, 6);
+			if (random.nextInt(8) == 0) {
+				criterion = "/" + criterion.replace("*", ".*")
+						.replace("\\", "").replace("?", "") + "/";
+			}
+			String url = random(random, URL_PARTS, 6);
+			boolean expected;
+			try {
+				expected = LegacyCriterionMatcher.test(criterion, url);
+			} catch (PatternSyntaxException e) {
+				expected = false;
+			}
+			assertEquals(criterion + " on " + url, expected,
+					CriterionMatcher.test(criterion, url));
+		}
+	}
+
+}
@@ -0,0 +1,179 @@
+/*
+ *    Copyright 2012 Werner Bayer
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package at.pardus.android.webview.gm.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class GlobPatternTest {
+
+	private static boolean matches(String pattern, String str) {
+		return new GlobPattern(pattern, true).matches(str, 0, str.length());
+	}
+
+	private static String repeat(String str, int times) {
+		StringBuilder builder = new StringBuilder(str.length() * times);
+		for (int i = 0; i < times; i++) {
+			builder.append(str);
+		}
+		return builder.toString();
+	}
+
+	private static String random(Random random, String alphabet, int maxLength) {
+		int len = random.nextInt(maxLength + 1);
+		StringBuilder builder = new StringBuilder(len);
+		for (int i = 0; i < len; i++) {
+			builder.append(alphabet.charAt(random.nextInt(alphabet.length())));
+		}
+		return builder.toString();
+	}
+
+	@Test
+	public void literalMatchesWholeString() {
+		assertTrue(matches("abc", "abc"));
+		assertFalse(matches("abc", "abcd"));
+		assertFalse(matches("abc", "xabc"));
+		assertTrue(matches("", ""));
+		assertFalse(matches("", "a"));
+	}
+
+	@Test
+	public void wildcardMatchesEmptyAndAnyString() {
+		assertTrue(matches("*", ""));
+		assertTrue(matches("*", "anything"));
+		assertTrue(matches("a*", "a"));
+		assertTrue(matches("*a", "a"));
+		assertTrue(matches("a*b", "ab"));
+		assertTrue(matches("a*b", "a*b"));
+		assertFalse(matches("a*b", "ba"));
+	}
+
+	@Test
+	public void consecutiveWildcardsMatchLikeOne() {
+		assertTrue(matches("**", ""));
+		assertTrue(matches("a**b", "ab"));
+		assertTrue(matches("a***b", "axxb"));
+		assertFalse(matches("a**b", "a"));
+	}
+
+	@Test
+	public void prefixAndSuffixDoNotOverlap() {
+		assertFalse(matches("a*a", "a"));
+		assertTrue(matches("a*a", "aa"));
+		assertFalse(matches("ab*ba", "aba"));
+		assertTrue(matches("ab*ba", "abba"));
+	}
+
+	@Test
+	public void segmentsAreFoundInOrderWithoutOverlap() {
+		assertTrue(matches("*aab*", "aaab"));
+		assertTrue(matches("*abab*", "aabababa"));
+		assertFalse(matches("*ab*ba*", "aba"));
+		assertTrue(matches("*ab*ba*", "abba"));
+		assertFalse(matches("*b*a*", "ab"));
+	}
+
+	@Test
+	public void questionMarkIsLiteral() {
+		assertTrue(matches("a?b", "a?b"));
+		assertFalse(matches("a?b", "axb"));
+		assertFalse(matches("?", ""));
+		assertTrue(matches("*?q=*", "http://example.com/?q=1"));
+		assertFalse(matches("*?q=*", "http://example.com/q=1"));
+	}
+
+	@Test
+	public void escapeCharacterMakesWildcardLiteral() {
+		assertTrue(matches("a\\*b", "a*b"));
+		assertFalse(matches("a\\*b", "axb"));
+		assertTrue(matches("a\\\\b", "a\\b"));
+		assertTrue(matches("\\a", "a"));
+		assertTrue(matches("*\\**", "x*y"));
+		assertFalse(matches("*\\**", "xy"));
+	}
+
+	@Test
+	public void trailingEscapeCharacterNeverMatches() {
+		assertFalse(matches("a\\", "a"));
+		assertFalse(matches("a\\", "a\\"));
+		assertFalse(matches("*\\", "anything\\"));
+		assertNull(new GlobPattern("*\\", true).getLongestSegment(false));
+	}
+
+	@Test
+	public void backslashIsLiteralWithoutEscapes() {
+		GlobPattern pattern = new GlobPattern("a\\*", false);
+		assertTrue(pattern.matches("a\\", 0, 2));
+		assertTrue(pattern.matches("a\\bc", 0, 4));
+		assertFalse(pattern.matches("a*", 0, 2));
+	}
+
+	@Test
+	public void matchesRegionOnly() {
+		GlobPattern pattern = new GlobPattern("/a*", true);
+		String str = "http://x/abc#frag";
+		assertTrue(pattern.matches(str, 8, 12));
+		assertFalse(pattern.matches(str, 7, 12));
+		assertTrue(pattern.matches(str, 8, 10));
+		assertFalse(pattern.matches(str, 8, 8));
+		assertFalse(new GlobPattern("*c", true).matches(str, 8, 11));
+	}
+
+	@Test
+	public void longestSegmentAndPrefix() {
+		assertEquals(".example.com/", new GlobPattern("*.example.com/*", true)
+				.getLongestSegment(false));
+		assertEquals("bc", new GlobPattern("abc*d", true)
+				.getLongestSegment(true));
+		assertNull(new GlobPattern("***", true).getLongestSegment(false));
+		assertEquals("http://a/", new GlobPattern("http://a/*", true)
+				.getPrefix());
+		assertEquals("", new GlobPattern("*", true).getPrefix());
+		assertNull(new GlobPattern("http://a/*x", true).getPrefix());
+		assertNull(new GlobPattern("http://a/", true).getPrefix());
+	}
+
+	@Test(timeout = 2000)
+	public void manyWildcardsDoNotBacktrack() {
+		String str = repeat("a", 100000);
+		assertFalse(matches(repeat("*a", 50) + "*b", str));
+		assertTrue(matches(repeat("*a", 50) + "*", str));
+		assertFalse(matches(repeat("a*", 50) + "b", str));
+		assertFalse(matches("*" + repeat("a", 1000) + "b*", str));
+		assertFalse(matches(repeat("*aab", 20) + "*", repeat("aaa", 30000)
+				+ "b"));
+	}
+
+	@Test
+	public void equivalentToRecursiveMatcher() {
+		Random random = new Random(42);
+		for (int i = 0; i < 200000; i++) {
+			String pattern = random(random, "ab*?\\", 10);
+			String str = random(random, "ab*?\\", 12);
+			assertEquals(pattern + " on " + str,
+					LegacyCriterionMatcher.testGlob(pattern, str),
+					matches(pattern, str));
+		}
+	}
+
+}
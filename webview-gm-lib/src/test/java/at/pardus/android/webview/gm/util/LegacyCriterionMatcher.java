@@ -0,0 +1,128 @@
+/*
+ *    Copyright 2012 Werner Bayer
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package at.pardus.android.webview.gm.util;
+
+/**
+ * The original recursive criterion matcher, kept as reference for the
+ * compiled matchers. Exponential in the number of wildcards on adversarial
+ * input, so only to be used on short patterns.
+ */
+class LegacyCriterionMatcher {
+
+	/**
+	 * Tests a URL against a criterion (may be a regex or simple glob-type
+	 * pattern). Case-insensitive.
+	 *
+	 * @param criterion
+	 *            the pattern to test against
+	 * @param url
+	 *            the URL to test
+	 * @return true if the URL matches the criterion, false else
+	 */
+	public static boolean test(String criterion, String url) {
+		if (criterion.length() == 0) {
+			return true;
+		}
+		criterion = criterion.toLowerCase();
+		url = url.toLowerCase();
+		if (criterion.length() >= 2 && criterion.startsWith("/")
+				&& criterion.endsWith("/")) {
+			return url.matches(".*"
+					+ criterion.substring(1, criterion.length() - 1) + ".*");
+		}
+		return testGlob(criterion, 0, url, 0);
+	}
+
+	/**
+	 * Tests a string against a glob-type pattern (supporting only * and the
+	 * escape character \). Case-sensitive.
+	 *
+	 * @param pattern
+	 *            the glob pattern
+	 * @param str
+	 *            the string to match against the pattern
+	 * @return true if the string matches the pattern, false else
+	 */
+	public static boolean testGlob(String pattern, String str) {
+		return testGlob(pattern, 0, str, 0);
+	}
+
+	/**
+	 * Recursively tests a string against a glob-type pattern.
+	 *
+	 * @param pattern
+	 *            the glob pattern
+	 * @param pInd
+	 *            the index in the pattern to start testing from
+	 * @param str
+	 *            the string to match against the pattern
+	 * @param sInd
+	 *            the index in the string to start testing from
+	 * @return true if the string from the given index to its end matches the
+	 *         pattern from the given index to its end, false else
+	 */
+	private static boolean testGlob(String pattern, int pInd, String str,
+			int sInd) {
+		int pLen = pattern.length();
+		int sLen = str.length();
+		while (true) {
+			if (pInd == pLen) {
+				return sInd == sLen;
+			}
+			char pChar = pattern.charAt(pInd);
+			if (pChar == '*') {
+				pInd++;
+				if (pInd >= pLen) {
+					return true;
+				}
+				while (true) {
+					if (testGlob(pattern, pInd, str, sInd)) {
+						return true;
+					}
+					if (sInd == sLen) {
+						return false;
+					}
+					sInd++;
+				}
+			}
+			if (sInd == sLen) {
+				return false;
+			}
+			if (pChar == '\\') {
+				pInd++;
+				if (pInd >= pLen) {
+					return false;
+				}
+				pChar = pattern.charAt(pInd);
+			}
+			char sChar = str.charAt(sInd);
+			if (pChar != sChar) {
+				return false;
+			}
+			pInd++;
+			sInd++;
+		}
+	}
+
+	/**
+	 * Private constructor.
+	 */
+	private LegacyCriterionMatcher() {
+
+	}
+
+}
@@ -0,0 +1,147 @@
+/*
+ *    Copyright 2012 Werner Bayer
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package at.pardus.android.webview.gm.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class MatchPatternTest {
+
+	private static final String[] SCHEMES = { "http", "https", "ftp" };
+
+	private static final String[] HOSTS = { "example.com", "www.example.com",
+			"example.org" };
+
+	private static boolean matches(String criterion, String url) {
+		return MatchPattern.compileMatch(criterion).matches(new ParsedUrl(url));
+	}
+
+	private static String randomPath(Random random, String alphabet,
+			int maxLength) {
+		int len = random.nextInt(maxLength + 1);
+		StringBuilder builder = new StringBuilder("/");
+		for (int i = 0; i < len; i++) {
+			builder.append(alphabet.charAt(random.nextInt(alphabet.length())));
+		}
+		return builder.toString();
+	}
+
+	@Test
+	public void wildcardSchemeMatchesOnlyHttpAndHttps() {
+		assertTrue(matches("*://example.com/*", "http://example.com/"));
+		assertTrue(matches("*://example.com/*", "https://example.com/"));
+		assertFalse(matches("*://example.com/*", "ftp://example.com/"));
+		assertFalse(matches("*://example.com/*", "file:///example.com/"));
+	}
+
+	@Test
+	public void allUrlsMatchesSupportedSchemes() {
+		assertTrue(matches("<all_urls>", "http://example.com/"));
+		assertTrue(matches("<all_urls>", "ftp://example.com/file"));
+		assertTrue(matches("<all_urls>", "file:///sdcard/a.html"));
+		assertFalse(matches("<all_urls>", "about:blank"));
+		assertFalse(matches("<all_urls>", "javascript://example.com/"));
+	}
+
+	@Test
+	public void hostMatchesExactlyOrWithSubdomains() {
+		assertTrue(matches("http://example.com/*", "http://EXAMPLE.com/a"));
+		assertFalse(matches("http://example.com/*", "http://www.example.com/"));
+		assertTrue(matches("http://*.example.com/*", "http://example.com/"));
+		assertTrue(matches("http://*.example.com/*", "http://a.b.example.com/"));
+		assertFalse(matches("http://*.example.com/*",
+				"http://badexample.com/"));
+		assertFalse(matches("http://*.example.com/*",
+				"http://example.com.evil.org/"));
+		assertTrue(matches("http://*/*", "http://anything.org/"));
+	}
+
+	@Test
+	public void hostIgnoresUserInfoAndPort() {
+		assertTrue(matches("http://example.com/*",
+				"http://user:pw@example.com:8080/"));
+		assertFalse(matches("http://example.com/*",
+				"http://example.com@evil.org/"));
+	}
+
+	@Test
+	public void pathCoversQueryButNotFragment() {
+		assertTrue(matches("http://example.com/a?b=*", "http://example.com/a?b=1"));
+		assertTrue(matches("http://example.com/a", "http://example.com/a#top"));
+		assertFalse(matches("http://example.com/a*top",
+				"http://example.com/a#top"));
+		assertTrue(matches("http://example.com/", "http://example.com"));
+	}
+
+	@Test
+	public void pathWildcardAndQuestionMark() {
+		assertTrue(matches("http://example.com/*", "http://example.com/"));
+		assertTrue(matches("http://example.com/a*b", "http://example.com/ab"));
+		assertFalse(matches("http://example.com/a*b", "http://example.com/a"));
+		assertTrue(matches("http://example.com/?", "http://example.com/?"));
+		assertFalse(matches("http://example.com/?", "http://example.com/a"));
+		// no escape character in match patterns
+		assertTrue(matches("http://example.com/a\\*",
+				"http://example.com/a\\b"));
+	}
+
+	@Test
+	public void invalidMatchPatternFallsBackToGlob() {
+		assertTrue(matches("http://exa*le.com/", "http://example.com/"));
+		assertTrue(matches("http://example.com", "http://example.com"));
+		assertTrue(matches("*example*", "http://www.example.com/a"));
+		assertEquals("http://exa*le.com/",
+				MatchPattern.compileMatch("http://exa*le.com/").getCriterion());
+	}
+
+	@Test(timeout = 2000)
+	public void adversarialPathDoesNotBacktrack() {
+		StringBuilder url = new StringBuilder("http://example.com/");
+		for (int i = 0; i < 8192; i++) {
+			url.append('a');
+		}
+		CriterionMatcher matcher = MatchPattern
+				.compileMatch("http://example.com/*a*a*a*a*a*a*a*a*a*a*a*a*b");
+		ParsedUrl parsedUrl = new ParsedUrl(url.toString());
+		for (int i = 0; i < 100; i++) {
+			assertFalse(matcher.matches(parsedUrl));
+		}
+	}
+
+	@Test
+	public void equivalentToRecursiveMatcherOnPlainUrls() {
+		// both agree on URLs with a literal scheme and host and a path
+		Random random = new Random(3);
+		for (int i = 0; i < 100000; i++) {
+			String criterion = SCHEMES[random.nextInt(SCHEMES.length)] + "://"
+					+ HOSTS[random.nextInt(HOSTS.length)]
+					+ randomPath(random, "ab/?*", 6);
+			String url = SCHEMES[random.nextInt(SCHEMES.length)] + "://"
+					+ HOSTS[random.nextInt(HOSTS.length)]
+					+ randomPath(random, "ab/?=", 8);
+			assertEquals(criterion + " on " + url,
+					LegacyCriterionMatcher.test(criterion, url),
+					matches(criterion, url));
+		}
+	}
+
+}